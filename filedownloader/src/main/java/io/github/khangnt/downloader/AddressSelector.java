@@ -0,0 +1,146 @@
+package io.github.khangnt.downloader;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Spread connections to a host across all of its addresses. Each address gets connections in
+ * proportion to its observed throughput, addresses which recently failed are used only when
+ * every address failed.
+ */
+public class AddressSelector {
+    public static final long DEFAULT_ERROR_PENALTY = 30000; // 30 seconds
+    // shorter connections don't give a meaningful rate
+    private static final long MIN_RATE_SAMPLE_DURATION = 100;
+
+    private final Dns mDns;
+    private final long mErrorPenalty;
+    private final Map<String, List<AddressStats>> mHostStats = new HashMap<>();
+
+    public AddressSelector(Dns dns) {
+        this(dns, DEFAULT_ERROR_PENALTY);
+    }
+
+    /**
+     * @param errorPenalty milliseconds a failed address is avoided.
+     */
+    public AddressSelector(Dns dns, long errorPenalty) {
+        mDns = dns;
+        mErrorPenalty = errorPenalty;
+    }
+
+    public Dns getDns() {
+        return mDns;
+    }
+
+    /**
+     * Select address for a new connection, the lease must be released or failed when the
+     * connection is closed.
+     */
+    public Lease acquire(String host) throws UnknownHostException {
+        List<InetAddress> addresses = mDns.lookup(host);
+        if (addresses.isEmpty()) throw new UnknownHostException(host);
+        synchronized (this) {
+            List<AddressStats> statsList = updateStats(host, addresses);
+            long now = System.currentTimeMillis();
+            long maxRate = 1;
+            for (AddressStats stats : statsList) maxRate = Math.max(maxRate, stats.mRate);
+            AddressStats selected = null;
+            double selectedScore = 0;
+            for (AddressStats stats : statsList) {
+                // unknown rate is optimistic, so every address is tried
+                long rate = stats.mRate > 0 ? stats.mRate : maxRate;
+                double score = (stats.mActive + 1) / (double) rate;
+                if (now < stats.mPenaltyEndTime) score += Integer.MAX_VALUE;
+                if (selected == null || score < selectedScore) {
+                    selected = stats;
+                    selectedScore = score;
+                }
+            }
+            selected.mActive++;
+            return new Lease(selected);
+        }
+    }
+
+    private List<AddressStats> updateStats(String host, List<InetAddress> addresses) {
+        List<AddressStats> oldStats = mHostStats.get(host);
+        List<AddressStats> newStats = new ArrayList<>(addresses.size());
+        for (InetAddress address : addresses) {
+            AddressStats stats = null;
+            if (oldStats != null) for (AddressStats old : oldStats) {
+                if (old.mAddress.equals(address)) stats = old;
+            }
+            newStats.add(stats != null ? stats : new AddressStats(address));
+        }
+        mHostStats.put(host, newStats);
+        return newStats;
+    }
+
+    /**
+     * @return bytes per second observed of the address, 0 if unknown.
+     */
+    public synchronized long getRate(String host, InetAddress address) {
+        List<AddressStats> statsList = mHostStats.get(host);
+        if (statsList != null) for (AddressStats stats : statsList) {
+            if (stats.mAddress.equals(address)) return stats.mRate;
+        }
+        return 0;
+    }
+
+    private synchronized void onReleased(AddressStats stats, long bytes, long duration, boolean failed) {
+        stats.mActive--;
+        if (failed) {
+            stats.mPenaltyEndTime = System.currentTimeMillis() + mErrorPenalty;
+        } else if (duration >= MIN_RATE_SAMPLE_DURATION && bytes > 0) {
+            long rate = bytes * 1000 / duration;
+            stats.mRate = stats.mRate <= 0 ? rate : (stats.mRate * 3 + rate) / 4;
+        }
+    }
+
+    public class Lease {
+        private final AddressStats mStats;
+        private final long mStartTime = System.currentTimeMillis();
+        private boolean mReleased;
+
+        private Lease(AddressStats stats) {
+            mStats = stats;
+        }
+
+        public InetAddress getAddress() {
+            return mStats.mAddress;
+        }
+
+        /**
+         * Connection is closed normally after transferring bytes.
+         */
+        public synchronized void release(long bytes) {
+            if (mReleased) return;
+            mReleased = true;
+            onReleased(mStats, bytes, System.currentTimeMillis() - mStartTime, false);
+        }
+
+        /**
+         * Connection failed because of the address.
+         */
+        public synchronized void fail() {
+            if (mReleased) return;
+            mReleased = true;
+            onReleased(mStats, 0, 0, true);
+        }
+    }
+
+    private static class AddressStats {
+        private final InetAddress mAddress;
+        private int mActive;
+        private long mRate;
+        private long mPenaltyEndTime;
+
+        private AddressStats(InetAddress address) {
+            mAddress = address;
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package io.github.khangnt.downloader;
+
+/**
+ * How disk space for a task is allocated before its workers start.
+ */
+public enum AllocationPolicy {
+    /**
+     * Files grow on demand, out of space error only shows up when the disk is full.
+     */
+    NONE,
+    /**
+     * Fail the task at initialization if the disk doesn't have enough usable space.
+     */
+    CHECK_SPACE,
+    /**
+     * Check usable space, then reserve the target file with its full length, so the merged
+     * file is written in place instead of growing by appends.
+     */
+    PREALLOCATE
+}
@@ -0,0 +1,40 @@
+package io.github.khangnt.downloader;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CompletionHandler;
+
+/**
+ * File manager with positional reads and writes which complete on its own threads, for callers
+ * which don't block a thread per file, e.g. a non-blocking network engine.
+ */
+public interface AsyncFileManager extends FileManager {
+    /**
+     * Open a file for asynchronous reads and writes, the file is created if it doesn't exist.
+     */
+    AsyncFile openAsyncFile(String filePath) throws IOException;
+
+    interface AsyncFile extends Closeable {
+        /**
+         * Write all remaining bytes of the buffer at a position, handler is called once they are
+         * written with the number of bytes, or with the error.
+         */
+        <A> void write(ByteBuffer src, long position, A attachment,
+                       CompletionHandler<Integer, ? super A> handler);
+
+        /**
+         * Read bytes at a position into the buffer, handler is called with the number of bytes
+         * read, -1 at end of file, or with the error.
+         */
+        <A> void read(ByteBuffer dst, long position, A attachment,
+                      CompletionHandler<Integer, ? super A> handler);
+
+        long size() throws IOException;
+
+        /**
+         * Force written bytes to disk, blocks the caller.
+         */
+        void force() throws IOException;
+    }
+}
@@ -0,0 +1,115 @@
+package io.github.khangnt.downloader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.OpenOption;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * {@link DefaultFileManager} with asynchronous files on {@link AsynchronousFileChannel}. Reads
+ * and writes of all files run on a few shared threads, instead of blocking a thread per file.
+ */
+public class AsynchronousFileManager extends DefaultFileManager implements AsyncFileManager {
+    public static final String ASYNC_FILE_THREAD = "AsyncFileThread";
+    public static final int DEFAULT_THREADS = 4;
+
+    private static final Set<OpenOption> OPEN_OPTIONS = new HashSet<OpenOption>(EnumSet.of(
+            StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE));
+
+    private final ExecutorService mExecutor;
+
+    public AsynchronousFileManager() {
+        this(DEFAULT_THREADS);
+    }
+
+    /**
+     * @param threads number of threads completing reads and writes of all files.
+     */
+    public AsynchronousFileManager(int threads) {
+        if (threads <= 0) throw new IllegalArgumentException("Threads must > 0");
+        mExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, ASYNC_FILE_THREAD);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    @Override
+    public AsyncFile openAsyncFile(String filePath) throws IOException {
+        return new ChannelAsyncFile(AsynchronousFileChannel.open(Paths.get(filePath), OPEN_OPTIONS,
+                mExecutor));
+    }
+
+    /**
+     * Stop the threads, files opened before are closed.
+     */
+    public void shutdown() {
+        mExecutor.shutdownNow();
+    }
+
+    private static class ChannelAsyncFile implements AsyncFile {
+        private final AsynchronousFileChannel mChannel;
+
+        ChannelAsyncFile(AsynchronousFileChannel channel) {
+            mChannel = channel;
+        }
+
+        @Override
+        public <A> void write(final ByteBuffer src, final long position, final A attachment,
+                              final CompletionHandler<Integer, ? super A> handler) {
+            final int length = src.remaining();
+            // a channel may write part of the buffer, continue from where it stopped
+            mChannel.write(src, position, null, new CompletionHandler<Integer, Void>() {
+                private long mPosition = position;
+
+                @Override
+                public void completed(Integer written, Void ignore) {
+                    mPosition += written;
+                    if (src.hasRemaining()) {
+                        mChannel.write(src, mPosition, null, this);
+                    } else {
+                        handler.completed(length, attachment);
+                    }
+                }
+
+                @Override
+                public void failed(Throwable error, Void ignore) {
+                    handler.failed(error, attachment);
+                }
+            });
+        }
+
+        @Override
+        public <A> void read(ByteBuffer dst, long position, A attachment,
+                             CompletionHandler<Integer, ? super A> handler) {
+            mChannel.read(dst, position, attachment, handler);
+        }
+
+        @Override
+        public long size() throws IOException {
+            return mChannel.size();
+        }
+
+        @Override
+        public void force() throws IOException {
+            mChannel.force(false);
+        }
+
+        @Override
+        public void close() throws IOException {
+            mChannel.close();
+        }
+    }
+}
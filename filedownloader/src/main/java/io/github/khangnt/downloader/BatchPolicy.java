@@ -0,0 +1,62 @@
+package io.github.khangnt.downloader;
+
+/**
+ * Which tasks are fetched in batch mode: small tasks of an origin are queued and fetched one
+ * after another by a few batch workers, each reusing its keep-alive connection, instead of one
+ * initialization request, one chunk worker and one merge per task.
+ */
+public class BatchPolicy {
+    public static final BatchPolicy DISABLED = new BatchPolicy(0, 0, 0);
+
+    private final long mMaxLength;
+    private final int mMaxConnectionsPerOrigin;
+    private final int mTasksPerConnection;
+
+    /**
+     * @param maxLength               tasks with a known length up to this are batched. Length is
+     *                                known only if it is set to the task, e.g. from a manifest,
+     *                                batched tasks are never initialized with a HEAD request.
+     * @param maxConnectionsPerOrigin cap of batch workers of an origin.
+     * @param tasksPerConnection      a batch worker is spawned for each this many queued tasks of
+     *                                an origin.
+     */
+    public BatchPolicy(long maxLength, int maxConnectionsPerOrigin, int tasksPerConnection) {
+        if (maxLength < 0 || maxConnectionsPerOrigin < 0 || tasksPerConnection < 0)
+            throw new IllegalArgumentException("Batch policy arguments can't < 0");
+        mMaxLength = maxLength;
+        mMaxConnectionsPerOrigin = maxConnectionsPerOrigin;
+        mTasksPerConnection = tasksPerConnection;
+    }
+
+    /**
+     * Batch tasks up to 256 KB, 4 connections per origin, one connection per 8 queued tasks.
+     */
+    public static BatchPolicy createDefault() {
+        return new BatchPolicy(256 * 1024, 4, 8);
+    }
+
+    public boolean isEnabled() {
+        return mMaxLength > 0 && mMaxConnectionsPerOrigin > 0 && mTasksPerConnection > 0;
+    }
+
+    public long getMaxLength() {
+        return mMaxLength;
+    }
+
+    public int getMaxConnectionsPerOrigin() {
+        return mMaxConnectionsPerOrigin;
+    }
+
+    public int getTasksPerConnection() {
+        return mTasksPerConnection;
+    }
+
+    /**
+     * @return number of batch workers an origin should have for the queued tasks.
+     */
+    public int getConnections(int queuedTasks) {
+        if (!isEnabled() || queuedTasks <= 0) return 0;
+        return (int) Math.min(mMaxConnectionsPerOrigin,
+                (queuedTasks + (long) mTasksPerConnection - 1) / mTasksPerConnection);
+    }
+}
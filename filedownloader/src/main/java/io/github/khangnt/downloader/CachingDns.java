@@ -0,0 +1,79 @@
+package io.github.khangnt.downloader;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.security.Security;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cache lookup results for a TTL, so starting a chunk doesn't wait for name resolution.
+ * Record TTLs aren't exposed by {@link InetAddress}, the default TTL follows the JVM's
+ * {@code networkaddress.cache.ttl} security property like the JVM's own cache.
+ */
+public class CachingDns implements Dns {
+    public static final long DEFAULT_TTL = 30000; // 30 seconds, JVM default
+
+    private final Dns mDelegate;
+    private final long mTtl;
+    private final Map<String, Entry> mCache = new HashMap<>();
+
+    public CachingDns() {
+        this(Dns.SYSTEM, getJvmCacheTtl());
+    }
+
+    /**
+     * @param ttl milliseconds a lookup result is reused.
+     */
+    public CachingDns(Dns delegate, long ttl) {
+        if (ttl <= 0) throw new IllegalArgumentException("TTL must > 0");
+        mDelegate = delegate;
+        mTtl = ttl;
+    }
+
+    public long getTtl() {
+        return mTtl;
+    }
+
+    @Override
+    public List<InetAddress> lookup(String host) throws UnknownHostException {
+        long now = System.currentTimeMillis();
+        synchronized (mCache) {
+            Entry entry = mCache.get(host);
+            if (entry != null && now < entry.mExpireTime) return entry.mAddresses;
+        }
+        // lookup outside of lock, a slow host doesn't block lookups of other hosts
+        List<InetAddress> addresses = Collections.unmodifiableList(mDelegate.lookup(host));
+        synchronized (mCache) {
+            mCache.put(host, new Entry(addresses, now + mTtl));
+        }
+        return addresses;
+    }
+
+    public void clear() {
+        synchronized (mCache) {
+            mCache.clear();
+        }
+    }
+
+    private static long getJvmCacheTtl() {
+        try {
+            String ttl = Security.getProperty("networkaddress.cache.ttl");
+            if (ttl != null && Long.parseLong(ttl.trim()) > 0) return Long.parseLong(ttl.trim()) * 1000;
+        } catch (Exception ignore) {
+        }
+        return DEFAULT_TTL;
+    }
+
+    private static class Entry {
+        private final List<InetAddress> mAddresses;
+        private final long mExpireTime;
+
+        private Entry(List<InetAddress> addresses, long expireTime) {
+            mAddresses = addresses;
+            mExpireTime = expireTime;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package io.github.khangnt.downloader;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import io.github.khangnt.downloader.exception.HttpResponseException;
+
+/**
+ * Per host circuit breaker: after a number of consecutive failures, new connections to the
+ * host wait until the open duration passes, then one trial connection decides whether the host
+ * is healthy again. A Retry-After from the host opens the circuit for that long instead.
+ */
+public class CircuitBreaker {
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    public static final long DEFAULT_OPEN_DURATION = 10000; // 10 seconds
+
+    private static final int CLOSED = 0;
+    private static final int OPEN = 1;
+    private static final int HALF_OPEN = 2;
+
+    private final int mFailureThreshold;
+    private final long mOpenDuration;
+    private final Map<String, HostState> mHostStates = new HashMap<>();
+    private long mOpenCount;
+
+    public CircuitBreaker() {
+        this(DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_DURATION);
+    }
+
+    /**
+     * @param failureThreshold number of consecutive failures open the circuit of a host.
+     * @param openDuration     milliseconds new connections wait before a trial connection.
+     */
+    public CircuitBreaker(int failureThreshold, long openDuration) {
+        if (failureThreshold <= 0 || openDuration <= 0)
+            throw new IllegalArgumentException("Failure threshold and open duration must > 0");
+        mFailureThreshold = failureThreshold;
+        mOpenDuration = openDuration;
+    }
+
+    /**
+     * Block until a new connection to the host is allowed.
+     */
+    public synchronized void acquire(String host) throws InterruptedException {
+        while (true) {
+            HostState state = mHostStates.get(host);
+            if (state == null || state.mState == CLOSED) return;
+            long now = System.currentTimeMillis();
+            if (state.mState == OPEN && now >= state.mOpenUntil) {
+                state.mState = HALF_OPEN;
+                state.mTrialStartTime = now;
+                return;
+            }
+            if (state.mState == HALF_OPEN && now - state.mTrialStartTime >= mOpenDuration) {
+                // result of the last trial is never reported, try another one
+                state.mTrialStartTime = now;
+                return;
+            }
+            wait(state.mState == OPEN ? state.mOpenUntil - now
+                    : state.mTrialStartTime + mOpenDuration - now);
+        }
+    }
+
+    /**
+     * Host responded, even with an error which isn't caused by the host being unhealthy.
+     */
+    public synchronized void onSuccess(String host) {
+        HostState state = mHostStates.remove(host);
+        if (state != null && state.mState != CLOSED) notifyAll();
+    }
+
+    /**
+     * @param retryAfterMillis delay requested by host, or {@link C#UNSET}.
+     */
+    public synchronized void onFailure(String host, long retryAfterMillis) {
+        HostState state = mHostStates.get(host);
+        if (state == null) {
+            state = new HostState();
+            mHostStates.put(host, state);
+        }
+        state.mFailures++;
+        long now = System.currentTimeMillis();
+        long openUntil = C.UNSET;
+        if (retryAfterMillis > 0) {
+            // host knows better than the default open duration
+            openUntil = now + retryAfterMillis;
+        } else if (state.mState == HALF_OPEN || state.mFailures >= mFailureThreshold) {
+            openUntil = now + mOpenDuration;
+        }
+        if (openUntil != C.UNSET) {
+            if (state.mState != OPEN) {
+                mOpenCount++;
+                Log.d("Circuit of host %s is opened for %d ms", host, openUntil - now);
+            }
+            state.mState = OPEN;
+            state.mOpenUntil = openUntil;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Record a failed connection, client errors other than 408 and 429 mean the host is
+     * healthy, an interrupted connection is not recorded.
+     */
+    public void onError(String host, IOException error) {
+        if (error instanceof InterruptedIOException) return;
+        if (error instanceof HttpResponseException) {
+            HttpResponseException responseException = (HttpResponseException) error;
+            if (responseException.isTransient())
+                onFailure(host, responseException.getRetryAfterMillis());
+            else
+                onSuccess(host);
+            return;
+        }
+        onFailure(host, C.UNSET);
+    }
+
+    public synchronized boolean isOpen(String host) {
+        HostState state = mHostStates.get(host);
+        return state != null && state.mState != CLOSED;
+    }
+
+    /**
+     * @return number of times a circuit was opened.
+     */
+    public synchronized long getOpenCount() {
+        return mOpenCount;
+    }
+
+    private static class HostState {
+        private int mState = CLOSED;
+        private int mFailures;
+        private long mOpenUntil;
+        private long mTrialStartTime;
+    }
+}
@@ -0,0 +1,130 @@
+package io.github.khangnt.downloader;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * AIMD controller of connections per origin. A connection is added while it increases the
+ * origin's throughput; the limit is cut multiplicatively on errors, rising time to first byte,
+ * or when the last added connection didn't increase throughput. After a plateau, the limit
+ * stays below it for a while before probing again.
+ */
+public class ConcurrencyTuner {
+    public static final long DEFAULT_SAMPLE_INTERVAL = 2000; // 2 seconds
+
+    private static final double DECREASE_FACTOR = 0.7;
+    // throughput must grow 5% to keep an added connection
+    private static final double MIN_THROUGHPUT_GAIN = 0.05;
+    private static final int LATENCY_FACTOR = 3;
+    // latency increases smaller than this are noise, even if they triple a small latency
+    private static final long MIN_LATENCY_INCREASE = 50000000L; // 50ms
+    private static final int PLATEAU_HOLD_SAMPLES = 15;
+
+    private final int mMinLimit;
+    private final int mMaxLimit;
+    private final int mInitialLimit;
+    private final long mSampleInterval;
+    private final Map<String, OriginState> mOriginStates = new HashMap<>();
+
+    public ConcurrencyTuner() {
+        this(1, 32, 2, DEFAULT_SAMPLE_INTERVAL);
+    }
+
+    /**
+     * @param sampleInterval milliseconds between two adjustments.
+     */
+    public ConcurrencyTuner(int minLimit, int maxLimit, int initialLimit, long sampleInterval) {
+        if (minLimit <= 0 || maxLimit < minLimit || initialLimit < minLimit || initialLimit > maxLimit)
+            throw new IllegalArgumentException("Require 0 < minLimit <= initialLimit <= maxLimit");
+        if (sampleInterval <= 0)
+            throw new IllegalArgumentException("Sample interval must > 0");
+        mMinLimit = minLimit;
+        mMaxLimit = maxLimit;
+        mInitialLimit = initialLimit;
+        mSampleInterval = sampleInterval;
+    }
+
+    /**
+     * @return tuner with the same limits and no samples, e.g. for each shard of a
+     * {@link ShardedFileDownloader}. Subclasses should override it.
+     */
+    public ConcurrencyTuner newInstance() {
+        return new ConcurrencyTuner(mMinLimit, mMaxLimit, mInitialLimit, mSampleInterval);
+    }
+
+    public long getSampleInterval() {
+        return mSampleInterval;
+    }
+
+    /**
+     * @return number of connections allowed to the origin.
+     */
+    public synchronized int getLimit(String origin) {
+        OriginState state = mOriginStates.get(origin);
+        return state == null ? mInitialLimit : state.mLimit;
+    }
+
+    /**
+     * Adjust limit of origin by a sample of the last interval.
+     *
+     * @param bytes        bytes downloaded from origin.
+     * @param errors       failed requests to origin.
+     * @param latencyNanos median time to first byte of connections to origin, or {@link C#UNSET}.
+     * @param connections  connections to origin at the end of interval.
+     */
+    public synchronized void onSample(String origin, long bytes, int errors, long latencyNanos,
+                                      int connections, long intervalMillis) {
+        if (connections == 0 && bytes == 0 && errors == 0) return;
+        OriginState state = mOriginStates.get(origin);
+        if (state == null) {
+            state = new OriginState(mInitialLimit);
+            mOriginStates.put(origin, state);
+        }
+        long throughput = intervalMillis <= 0 ? 0 : bytes * 1000 / intervalMillis;
+        if (latencyNanos > 0)
+            state.mMinLatency = state.mMinLatency <= 0 ? latencyNanos : Math.min(state.mMinLatency, latencyNanos);
+        if (errors > 0) {
+            decrease(origin, state, "errors");
+        } else if (latencyNanos > 0 && latencyNanos > state.mMinLatency * LATENCY_FACTOR
+                && latencyNanos - state.mMinLatency > MIN_LATENCY_INCREASE) {
+            decrease(origin, state, "latency");
+        } else if (connections < state.mLimit) {
+            // limit isn't reached, throughput doesn't tell anything about it
+        } else if (state.mProbing && throughput < state.mThroughput * (1 + MIN_THROUGHPUT_GAIN)) {
+            state.mCeiling = state.mLimit;
+            state.mHoldSamples = PLATEAU_HOLD_SAMPLES;
+            decrease(origin, state, "plateau");
+        } else {
+            state.mThroughput = throughput;
+            state.mProbing = false;
+            if (state.mHoldSamples > 0 && state.mLimit + 1 >= state.mCeiling) {
+                state.mHoldSamples--;
+            } else if (state.mLimit < mMaxLimit) {
+                state.mLimit++;
+                state.mProbing = true;
+                Log.d("Connection limit of %s increased to %d, throughput %d B/s", origin,
+                        state.mLimit, throughput);
+            }
+        }
+    }
+
+    private void decrease(String origin, OriginState state, String reason) {
+        state.mLimit = Math.max(mMinLimit, (int) (state.mLimit * DECREASE_FACTOR));
+        state.mProbing = false;
+        state.mThroughput = 0;
+        Log.d("Connection limit of %s decreased to %d (%s)", origin, state.mLimit, reason);
+    }
+
+    private static class OriginState {
+        private int mLimit;
+        private long mThroughput;
+        private long mMinLatency;
+        private boolean mProbing;
+        private int mCeiling;
+        private int mHoldSamples;
+
+        private OriginState(int limit) {
+            mLimit = limit;
+        }
+    }
+}
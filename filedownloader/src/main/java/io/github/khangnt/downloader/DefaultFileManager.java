@@ -4,6 +4,10 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
 import java.util.UUID;
 
 import io.github.khangnt.downloader.model.Task;
@@ -13,12 +17,24 @@ import io.github.khangnt.downloader.model.Task;
  * Email: khang.neon.1997@gmail.com
  */
 
-public class DefaultFileManager implements FileManager {
+public class DefaultFileManager implements ExtendedFileManager {
     @Override
     public FileOutputStream openWritableFile(String filePath, boolean append) throws IOException {
         return new FileOutputStream(filePath, append);
     }
 
+    @Override
+    public OutputStream openWritableFileAt(String filePath, long position) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(filePath, "rw");
+        try {
+            // don't truncate, the file may be preallocated
+            return Channels.newOutputStream(file.getChannel().position(position));
+        } catch (IOException ex) {
+            file.close();
+            throw ex;
+        }
+    }
+
     @Override
     public FileInputStream openReadableFile(String filePath) throws IOException {
         return new FileInputStream(filePath);
@@ -37,7 +53,90 @@ public class DefaultFileManager implements FileManager {
     @Override
     public void deleteFile(String filePath) {
         boolean delete = new File(filePath).delete();
-        if (!delete) Log.d("Delete file %d failed", filePath);
+        if (!delete) Log.d("Delete file %s failed", filePath);
+    }
+
+    @Override
+    public void truncateFile(String filePath, long length) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(filePath, "rw");
+        try {
+            if (file.length() > length) file.setLength(length);
+        } finally {
+            file.close();
+        }
+    }
+
+    @Override
+    public void preallocateFile(String filePath, long length) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(filePath, "rw");
+        try {
+            if (file.length() < length) file.setLength(length);
+        } finally {
+            file.close();
+        }
+    }
+
+    @Override
+    public void syncFile(String filePath) throws IOException {
+        if (!isFileExists(filePath)) return;
+        RandomAccessFile file = new RandomAccessFile(filePath, "rw");
+        try {
+            // fsync flushes dirty data of the file, not only data written through this descriptor
+            file.getFD().sync();
+        } finally {
+            file.close();
+        }
+    }
+
+    @Override
+    public void renameFile(String fromPath, String toPath) throws IOException {
+        File from = new File(fromPath);
+        File to = new File(toPath);
+        // rename(2) replaces the target atomically, other platforms need the target deleted first
+        if (from.renameTo(to)) return;
+        if (to.exists() && to.delete() && from.renameTo(to)) return;
+        throw new IOException("Can't rename " + fromPath + " to " + toPath);
+    }
+
+    @Override
+    public void createDirectories(String dirPath) throws IOException {
+        File dir = new File(dirPath);
+        if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory())
+            throw new IOException("Can't create directory: " + dirPath);
+    }
+
+    @Override
+    public long getUsableSpace(String filePath) {
+        File dir = getExistingParent(filePath);
+        return dir == null ? C.UNSET : dir.getUsableSpace();
+    }
+
+    @Override
+    public boolean isSameFileStore(String filePath1, String filePath2) {
+        File dir1 = getExistingParent(filePath1);
+        File dir2 = getExistingParent(filePath2);
+        if (dir1 == null || dir2 == null) return true;
+        try {
+            return Files.getFileStore(dir1.toPath()).equals(Files.getFileStore(dir2.toPath()));
+        } catch (IOException | LinkageError ex) {
+            // java.nio.file is missing before Android API 26
+            Log.d(ex, "Can't read file store, compare roots of %s and %s", filePath1, filePath2);
+            return getRoot(dir1).equals(getRoot(dir2));
+        }
+    }
+
+    private static File getRoot(File file) {
+        while (file.getParentFile() != null) file = file.getParentFile();
+        return file;
+    }
+
+    /**
+     * @return nearest directory of the file that exists, or null if none.
+     */
+    private static File getExistingParent(String filePath) {
+        File dir = new File(filePath).getAbsoluteFile().getParentFile();
+        while (dir != null && !dir.exists()) dir = dir.getParentFile();
+        return dir;
     }
 
     @Override
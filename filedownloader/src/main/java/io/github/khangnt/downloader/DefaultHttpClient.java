@@ -1,11 +1,30 @@
 package io.github.khangnt.downloader;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+
+import io.github.khangnt.downloader.exception.HttpResponseException;
 
 import io.github.khangnt.downloader.model.Task;
 import io.github.khangnt.downloader.util.Utils;
@@ -16,18 +35,53 @@ import io.github.khangnt.downloader.util.Utils;
  */
 
 public class DefaultHttpClient implements HttpClient {
+    private final AddressSelector mAddressSelector;
+    // one factory per address, so keep-alive connections are reused per address
+    private final Map<InetAddress, AddressSocketFactory> mSocketFactories = new ConcurrentHashMap<>();
+
+    public DefaultHttpClient() {
+        this(null);
+    }
+
+    /**
+     * @param addressSelector spread https connections across all addresses of a host, or null
+     *                        to let {@link HttpURLConnection} resolve the host. The socket is
+     *                        connected to the selected address, the host name is still used for
+     *                        the Host header, SNI and certificate verification. Plain http
+     *                        connections, and connections through a proxy of the
+     *                        {@link ProxySelector}, are always resolved by
+     *                        {@link HttpURLConnection}: it has no way to connect plain http to a
+     *                        given address.
+     */
+    public DefaultHttpClient(AddressSelector addressSelector) {
+        mAddressSelector = addressSelector;
+    }
+
+    public AddressSelector getAddressSelector() {
+        return mAddressSelector;
+    }
+
     @Override
     public InputStream openConnection(Task task, Map<String, String> headers) throws IOException {
-        HttpURLConnection connection = openConnection(task.getUrl(), headers, "GET");
-        return connection.getInputStream();
+        AddressSelector.Lease[] lease = new AddressSelector.Lease[1];
+        HttpURLConnection connection = openConnection(task.getUrl(), headers, "GET", lease);
+        InputStream is;
+        try {
+            is = connection.getInputStream();
+        } catch (IOException ex) {
+            if (lease[0] != null) lease[0].fail();
+            throw ex;
+        }
+        return new ConnectionInputStream(is, connection, lease[0]);
     }
 
     @Override
     public ContentDescription fetchContentDescription(Task task) {
         Map<String, String> headers = new HashMap<>();
         headers.put("Range", "bytes=0-");
+        AddressSelector.Lease[] lease = new AddressSelector.Lease[1];
         try {
-            HttpURLConnection connection = openConnection(task.getUrl(), headers, "HEAD");
+            HttpURLConnection connection = openConnection(task.getUrl(), headers, "HEAD", lease);
             String contentLength = connection.getHeaderField("Content-Length");
             boolean acceptRange = false;
             long length;
@@ -49,39 +103,247 @@ public class DefaultHttpClient implements HttpClient {
         } catch (IOException ex) {
             Log.d("Can't get content length of task-%d", task.getId());
             return new ContentDescription(C.UNKNOWN_LENGTH, false);
+        } finally {
+            if (lease[0] != null) lease[0].release(0);
         }
     }
 
+    /**
+     * @param lease receive the address lease of the returned connection, if any.
+     */
     private HttpURLConnection openConnection(String urlStr, Map<String, String> headers,
-                                             String method) throws IOException {
+                                             String method, AddressSelector.Lease[] lease)
+            throws IOException {
+        int failedAddresses = 0;
         while (true) {
             URL url = new URL(urlStr);
-            HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
-            urlConnection.setInstanceFollowRedirects(false);
-            urlConnection.setRequestMethod(method);
-            urlConnection.setConnectTimeout(10000);
-            urlConnection.setReadTimeout(10000);
-            for (Map.Entry<String, String> entry : headers.entrySet()) {
-                urlConnection.addRequestProperty(entry.getKey(), entry.getValue());
+            lease[0] = null;
+            HttpURLConnection urlConnection;
+            if (mAddressSelector != null && "https".equalsIgnoreCase(url.getProtocol())
+                    && isDirect(url)) {
+                lease[0] = mAddressSelector.acquire(url.getHost());
+                HttpsURLConnection httpsConnection =
+                        (HttpsURLConnection) url.openConnection(Proxy.NO_PROXY);
+                httpsConnection.setSSLSocketFactory(getSocketFactory(lease[0].getAddress()));
+                urlConnection = httpsConnection;
+            } else {
+                urlConnection = (HttpURLConnection) url.openConnection();
             }
-            urlConnection.connect();
-            switch (urlConnection.getResponseCode()) {
-                case HttpURLConnection.HTTP_MOVED_PERM:
-                case HttpURLConnection.HTTP_MOVED_TEMP:
-                    String location = urlConnection.getHeaderField("Location");
-                    URL base = new URL(urlStr);
-                    URL next = new URL(base, location);  // Deal with relative URLs
-                    urlStr = next.toExternalForm();
-                    urlConnection.disconnect();
-                    continue;
+            try {
+                HttpURLConnection result = connect(urlConnection, headers, method);
+                if (result != null) return result;
+            } catch (IOException ex) {
+                if (lease[0] == null) throw ex;
+                if (ex instanceof HttpResponseException) {
+                    if (((HttpResponseException) ex).isTransient()) lease[0].fail();
+                    else lease[0].release(0);
+                    throw ex;
+                }
+                lease[0].fail();
+                // address is unreachable, fail over to the next address of host
+                if (++failedAddresses >= mAddressSelector.getDns().lookup(url.getHost()).size())
+                    throw ex;
+                Log.d("Connect to %s failed, try next address", lease[0].getAddress());
+                continue;
             }
+            // redirected
+            if (lease[0] != null) lease[0].release(0);
+            // deal with relative URLs
+            urlStr = new URL(url, urlConnection.getHeaderField("Location")).toExternalForm();
+            urlConnection.disconnect();
+        }
+    }
+
+    /**
+     * @return true if the {@link ProxySelector} connects to the URL without a proxy.
+     */
+    private static boolean isDirect(URL url) {
+        ProxySelector proxySelector = ProxySelector.getDefault();
+        if (proxySelector == null) return true;
+        try {
+            List<Proxy> proxies = proxySelector.select(url.toURI());
+            return proxies == null || proxies.isEmpty()
+                    || proxies.get(0).type() == Proxy.Type.DIRECT;
+        } catch (URISyntaxException | IllegalArgumentException ex) {
+            return false;
+        }
+    }
+
+    private SSLSocketFactory getSocketFactory(InetAddress address) {
+        SSLSocketFactory delegate = HttpsURLConnection.getDefaultSSLSocketFactory();
+        AddressSocketFactory socketFactory = mSocketFactories.get(address);
+        if (socketFactory == null || socketFactory.mDelegate != delegate) {
+            socketFactory = new AddressSocketFactory(delegate, address);
+            mSocketFactories.put(address, socketFactory);
+        }
+        return socketFactory;
+    }
+
+    /**
+     * @return null if response is a redirect.
+     */
+    private HttpURLConnection connect(HttpURLConnection urlConnection, Map<String, String> headers,
+                                      String method) throws IOException {
+        urlConnection.setInstanceFollowRedirects(false);
+        urlConnection.setRequestMethod(method);
+        urlConnection.setConnectTimeout(10000);
+        urlConnection.setReadTimeout(10000);
+        for (Map.Entry<String, String> entry : headers.entrySet()) {
+            urlConnection.addRequestProperty(entry.getKey(), entry.getValue());
+        }
+        urlConnection.connect();
+        switch (urlConnection.getResponseCode()) {
+            case HttpURLConnection.HTTP_MOVED_PERM:
+            case HttpURLConnection.HTTP_MOVED_TEMP:
+                return null;
+        }
 
-            if (urlConnection.getResponseCode() / 100 != 2) {
-                urlConnection.disconnect();
-                throw new IOException("Unsuccessful response code: " + urlConnection.getResponseCode()
-                        + " - " + urlConnection.getResponseMessage());
+        if (urlConnection.getResponseCode() / 100 != 2) {
+            HttpResponseException exception = new HttpResponseException(
+                    urlConnection.getResponseCode(), urlConnection.getResponseMessage(),
+                    parseRetryAfter(urlConnection.getHeaderField("Retry-After")));
+            urlConnection.disconnect();
+            throw exception;
+        }
+        return urlConnection;
+    }
+
+    /**
+     * @param retryAfter delay-seconds or HTTP-date.
+     * @return delay in milliseconds, or {@link C#UNSET} if the header is missing or invalid.
+     */
+    private static long parseRetryAfter(String retryAfter) {
+        if (Utils.isEmpty(retryAfter)) return C.UNSET;
+        retryAfter = retryAfter.trim();
+        try {
+            return Math.max(0, Long.parseLong(retryAfter) * 1000);
+        } catch (NumberFormatException ignore) {
+        }
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            return Math.max(0, format.parse(retryAfter).getTime() - System.currentTimeMillis());
+        } catch (ParseException ignore) {
+            return C.UNSET;
+        }
+    }
+
+    /**
+     * Connect sockets to the given address instead of resolving the host, then layer TLS over
+     * them with the host name. {@link HttpsURLConnection} connects an unconnected socket of the
+     * factory and layers TLS over it if it isn't a SSL socket.
+     */
+    private static class AddressSocketFactory extends SSLSocketFactory {
+        private final SSLSocketFactory mDelegate;
+        private final InetAddress mAddress;
+
+        private AddressSocketFactory(SSLSocketFactory delegate, InetAddress address) {
+            mDelegate = delegate;
+            mAddress = address;
+        }
+
+        @Override
+        public Socket createSocket() {
+            return new Socket() {
+                @Override
+                public void connect(SocketAddress endpoint, int timeout) throws IOException {
+                    int port = ((InetSocketAddress) endpoint).getPort();
+                    super.connect(new InetSocketAddress(mAddress, port), timeout);
+                }
+            };
+        }
+
+        @Override
+        public Socket createSocket(Socket socket, String host, int port, boolean autoClose)
+                throws IOException {
+            return mDelegate.createSocket(socket, host, port, autoClose);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return mDelegate.createSocket(new Socket(mAddress, port), host, port, true);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localAddress, int localPort)
+                throws IOException {
+            return mDelegate.createSocket(new Socket(mAddress, port, localAddress, localPort),
+                    host, port, true);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port) throws IOException {
+            return mDelegate.createSocket(address, port);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress,
+                                   int localPort) throws IOException {
+            return mDelegate.createSocket(address, port, localAddress, localPort);
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return mDelegate.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return mDelegate.getSupportedCipherSuites();
+        }
+    }
+
+    /**
+     * Release address lease (if any) when the connection is closed, with bytes read for its rate.
+     * Abort disconnects the connection, which closes its socket.
+     */
+    private static class ConnectionInputStream extends FilterInputStream
+            implements Abortable, ResponseHeaders {
+        private final HttpURLConnection mConnection;
+        private final AddressSelector.Lease mLease;
+        private long mBytesRead;
+
+        private ConnectionInputStream(InputStream in, HttpURLConnection connection,
+                                      AddressSelector.Lease lease) {
+            super(in);
+            mConnection = connection;
+            mLease = lease;
+        }
+
+        @Override
+        public void abort() {
+            mConnection.disconnect();
+        }
+
+        @Override
+        public String getHeaderField(String name) {
+            return mConnection.getHeaderField(name);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) mBytesRead++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read;
+            try {
+                read = super.read(b, off, len);
+            } catch (IOException ex) {
+                if (mLease != null) mLease.fail();
+                throw ex;
             }
-            return urlConnection;
+            if (read > 0) mBytesRead += read;
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mLease != null) mLease.release(mBytesRead);
+            super.close();
         }
     }
 }
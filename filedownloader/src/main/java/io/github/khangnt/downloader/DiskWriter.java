@@ -0,0 +1,337 @@
+package io.github.khangnt.downloader;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Write-behind stage: network threads hand filled buffers to one writer thread through a
+ * bounded queue, so a slow disk doesn't stop reading from sockets until the queue is full.
+ * <p>
+ * Writes are taken from the queue in batches and written through a buffered stream per file,
+ * which is flushed once per batch.
+ */
+public class DiskWriter implements Runnable {
+    public static final String DISK_WRITER_THREAD = "DiskWriterThread";
+    public static final int DEFAULT_QUEUE_CAPACITY = 256;
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024; // 64KB
+
+    private final BlockingQueue<WriteRequest> mQueue;
+    private final BlockingQueue<byte[]> mBufferPool;
+    private final int mBufferSize;
+
+    private final AtomicLong mStallCount = new AtomicLong();
+    private final AtomicLong mStallTimeNanos = new AtomicLong();
+    private final AtomicLong mBytesWritten = new AtomicLong();
+    private final AtomicLong mBatchCount = new AtomicLong();
+
+    private Thread mWriterThread;
+    private int mOpenSinks;
+    private boolean mShutdown;
+
+    public DiskWriter() {
+        this(DEFAULT_QUEUE_CAPACITY, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param queueCapacity max number of buffers waiting to be written, network threads are
+     *                      blocked when the queue is full.
+     * @param bufferSize    size of each buffer.
+     */
+    public DiskWriter(int queueCapacity, int bufferSize) {
+        if (queueCapacity <= 0 || bufferSize <= 0)
+            throw new IllegalArgumentException("Queue capacity and buffer size must > 0");
+        mQueue = new ArrayBlockingQueue<>(queueCapacity);
+        mBufferPool = new ArrayBlockingQueue<>(queueCapacity);
+        mBufferSize = bufferSize;
+    }
+
+    public int getBufferSize() {
+        return mBufferSize;
+    }
+
+    /**
+     * Open a sink writing to the given stream, the sink must be released by
+     * {@link Sink#release()} before the stream is closed.
+     * Sinks opened after {@link #shutdown()} write synchronously on the caller thread.
+     */
+    public Sink openSink(OutputStream os) {
+        synchronized (this) {
+            if (mShutdown) return new Sink(os, true);
+            if (mWriterThread == null) {
+                mWriterThread = new Thread(this, DISK_WRITER_THREAD);
+                mWriterThread.setDaemon(true);
+                mWriterThread.start();
+            }
+            mOpenSinks++;
+        }
+        return new Sink(os, false);
+    }
+
+    /**
+     * Stop the writer thread once all open sinks are released and queued buffers are written.
+     */
+    public void shutdown() {
+        synchronized (this) {
+            mShutdown = true;
+            stopWriterIfIdle();
+        }
+    }
+
+    private void stopWriterIfIdle() {
+        // no sink can queue a buffer anymore, so the writer thread can drain the queue and stop
+        if (mShutdown && mOpenSinks == 0 && mWriterThread != null) {
+            mWriterThread.interrupt();
+            mWriterThread = null;
+        }
+    }
+
+    private synchronized void onSinkReleased() {
+        mOpenSinks--;
+        stopWriterIfIdle();
+    }
+
+    /**
+     * @return number of buffers waiting to be written.
+     */
+    public int getQueueDepth() {
+        return mQueue.size();
+    }
+
+    /**
+     * @return number of times a network thread was blocked because the queue was full.
+     */
+    public long getStallCount() {
+        return mStallCount.get();
+    }
+
+    /**
+     * @return total time network threads were blocked because the queue was full.
+     */
+    public long getStallTimeNanos() {
+        return mStallTimeNanos.get();
+    }
+
+    public long getBytesWritten() {
+        return mBytesWritten.get();
+    }
+
+    public long getBatchCount() {
+        return mBatchCount.get();
+    }
+
+    private byte[] obtainBuffer() {
+        byte[] buffer = mBufferPool.poll();
+        return buffer != null ? buffer : new byte[mBufferSize];
+    }
+
+    private void recycleBuffer(byte[] buffer) {
+        mBufferPool.offer(buffer);
+    }
+
+    private void enqueue(WriteRequest request) throws InterruptedException {
+        if (!mQueue.offer(request)) {
+            long start = System.nanoTime();
+            mQueue.put(request);
+            mStallCount.incrementAndGet();
+            mStallTimeNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public void run() {
+        List<WriteRequest> batch = new ArrayList<>();
+        Map<Sink, Integer> touchedSinks = new IdentityHashMap<>();
+        boolean stopping = false;
+        while (true) {
+            if (!stopping) try {
+                batch.add(mQueue.take());
+            } catch (InterruptedException e) {
+                // write remaining buffers before stop, sinks may be waiting for them
+                stopping = true;
+            }
+            mQueue.drainTo(batch);
+            if (batch.isEmpty()) {
+                if (stopping) break;
+                continue;
+            }
+            for (WriteRequest request : batch) {
+                Sink sink = request.mSink;
+                Integer count = touchedSinks.get(sink);
+                touchedSinks.put(sink, count == null ? 1 : count + 1);
+                sink.checkDeadline();
+                if (sink.mError == null) try {
+                    sink.mOutputStream.write(request.mBuffer, 0, request.mLength);
+                    mBytesWritten.addAndGet(request.mLength);
+                } catch (IOException ex) {
+                    sink.mError = ex;
+                }
+                recycleBuffer(request.mBuffer);
+            }
+            for (Map.Entry<Sink, Integer> entry : touchedSinks.entrySet()) {
+                Sink sink = entry.getKey();
+                if (sink.mError == null) try {
+                    sink.mOutputStream.flush();
+                } catch (IOException ex) {
+                    sink.mError = ex;
+                }
+                sink.onWritten(entry.getValue());
+            }
+            mBatchCount.incrementAndGet();
+            batch.clear();
+            touchedSinks.clear();
+        }
+    }
+
+    /**
+     * Write side of one file, must be used by only one thread.
+     */
+    public class Sink {
+        private final OutputStream mOutputStream;
+        private final boolean mSynchronous;
+        private int mPending;
+        private boolean mReleased;
+        private volatile long mDeadline;
+        private volatile IOException mError;
+
+        private Sink(OutputStream os, boolean synchronous) {
+            mOutputStream = synchronous ? os : new BufferedOutputStream(os, mBufferSize);
+            mSynchronous = synchronous;
+        }
+
+        /**
+         * @return a buffer to fill, ownership is transferred back by {@link #write(byte[], int)}.
+         */
+        public byte[] obtainBuffer() {
+            return DiskWriter.this.obtainBuffer();
+        }
+
+        /**
+         * Drop buffers which aren't written before the deadline, e.g. when the writer of the file
+         * holds a lease, the sink fails once a buffer was dropped.
+         *
+         * @param deadlineNanos deadline in {@link System#nanoTime()}, or 0 for no deadline.
+         */
+        public void setDeadline(long deadlineNanos) {
+            mDeadline = deadlineNanos;
+        }
+
+        /**
+         * Give back a buffer obtained by {@link #obtainBuffer()} which won't be written.
+         */
+        public void recycleBuffer(byte[] buffer) {
+            DiskWriter.this.recycleBuffer(buffer);
+        }
+
+        /**
+         * Queue the buffer to be written, block if the queue is full.
+         *
+         * @throws IOException if a previous write of this sink failed.
+         */
+        public void write(byte[] buffer, int length) throws IOException, InterruptedException {
+            if (mError != null || length <= 0) {
+                recycleBuffer(buffer);
+                checkError();
+                return;
+            }
+            if (mSynchronous) {
+                try {
+                    checkDeadline();
+                    checkError();
+                    mOutputStream.write(buffer, 0, length);
+                    mBytesWritten.addAndGet(length);
+                } finally {
+                    recycleBuffer(buffer);
+                }
+                return;
+            }
+            synchronized (this) {
+                mPending++;
+            }
+            try {
+                enqueue(new WriteRequest(this, buffer, length));
+            } catch (InterruptedException ex) {
+                onWritten(1);
+                recycleBuffer(buffer);
+                throw ex;
+            }
+        }
+
+        /**
+         * Wait until all queued buffers are written to the underlying stream.
+         */
+        public void flush() throws IOException, InterruptedException {
+            if (mSynchronous) {
+                mOutputStream.flush();
+                return;
+            }
+            synchronized (this) {
+                while (mPending > 0) wait();
+            }
+            checkError();
+        }
+
+        /**
+         * Same as {@link #flush()} but can't be interrupted, the underlying stream must not be
+         * closed while the writer thread is using it.
+         */
+        public void awaitPendingWrites() {
+            boolean interrupted = false;
+            synchronized (this) {
+                while (mPending > 0) try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+
+        /**
+         * Wait for pending writes like {@link #awaitPendingWrites()} and detach this sink from the
+         * writer, so a shut down writer can stop. The underlying stream is left open.
+         */
+        public void release() {
+            awaitPendingWrites();
+            synchronized (this) {
+                if (mReleased) return;
+                mReleased = true;
+            }
+            if (!mSynchronous) onSinkReleased();
+        }
+
+        private synchronized void onWritten(int count) {
+            mPending -= count;
+            notifyAll();
+        }
+
+        private void checkDeadline() {
+            long deadline = mDeadline;
+            if (mError == null && deadline != 0 && System.nanoTime() - deadline > 0)
+                mError = new IOException("Write deadline passed");
+        }
+
+        private void checkError() throws IOException {
+            if (mError != null) throw new IOException("Write-behind failed: " + mError.getMessage(), mError);
+        }
+    }
+
+    private static class WriteRequest {
+        private final Sink mSink;
+        private final byte[] mBuffer;
+        private final int mLength;
+
+        private WriteRequest(Sink sink, byte[] buffer, int length) {
+            mSink = sink;
+            mBuffer = buffer;
+            mLength = length;
+        }
+    }
+}
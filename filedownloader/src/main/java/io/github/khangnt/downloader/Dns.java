@@ -0,0 +1,20 @@
+package io.github.khangnt.downloader;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Resolve host name to all of its addresses.
+ */
+public interface Dns {
+    Dns SYSTEM = new Dns() {
+        @Override
+        public List<InetAddress> lookup(String host) throws UnknownHostException {
+            return Arrays.asList(InetAddress.getAllByName(host));
+        }
+    };
+
+    List<InetAddress> lookup(String host) throws UnknownHostException;
+}
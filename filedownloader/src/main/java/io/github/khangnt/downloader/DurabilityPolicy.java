@@ -0,0 +1,36 @@
+package io.github.khangnt.downloader;
+
+/**
+ * When downloaded data is forced to disk, and how far persisted chunk progress can trust the
+ * size of chunk files after a crash.
+ */
+public enum DurabilityPolicy {
+    /**
+     * Never fsync, resume trusts the size of chunk files.
+     */
+    NONE,
+    /**
+     * Fsync a chunk file before its chunk is marked finished, and the merged file before its
+     * task is marked finished. Unfinished chunks still resume from the size of chunk files.
+     */
+    PER_CHUNK_FINISH,
+    /**
+     * Same as {@link #PER_CHUNK_FINISH}, plus unfinished chunk files are synced in background
+     * periodically and the synced length is recorded to the chunk. Resume discards bytes after
+     * the recorded length.
+     */
+    PERIODIC,
+    /**
+     * Same as {@link #PERIODIC}, but chunk workers wait for their data to be synced after each
+     * commit interval, so at most one interval of data is lost after a crash. Each worker
+     * syncs its own chunk file, so workers don't wait for syncs of each other.
+     */
+    GROUP_COMMIT;
+
+    /**
+     * @return true if synced length of unfinished chunks is recorded.
+     */
+    public boolean isTrackingDurableLength() {
+        return this == PERIODIC || this == GROUP_COMMIT;
+    }
+}
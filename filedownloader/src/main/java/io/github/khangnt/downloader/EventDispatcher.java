@@ -23,6 +23,15 @@ class EventDispatcher implements EventListener {
         }
     }
 
+    /**
+     * Wait strategy only applies to {@link RingEventDispatcher}, here events are posted to the
+     * executor directly.
+     */
+    public void registerListener(Executor executor, EventListener listener,
+                                 WaitStrategy waitStrategy) {
+        registerListener(executor, listener);
+    }
+
     public void unregisterListener(EventListener listener) {
         synchronized (mListenerList) {
             Iterator<ListenerWrapper> iterator = mListenerList.iterator();
@@ -42,6 +51,12 @@ class EventDispatcher implements EventListener {
         }
     }
 
+    public boolean hasListeners() {
+        synchronized (mListenerList) {
+            return !mListenerList.isEmpty();
+        }
+    }
+
 
     @Override
     public void onTaskAdded(final TaskReport taskReport) {
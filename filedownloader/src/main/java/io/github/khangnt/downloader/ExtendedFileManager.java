@@ -0,0 +1,54 @@
+package io.github.khangnt.downloader;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * File manager with positional writes, truncate, preallocate, sync and rename of files, and
+ * directories. A plain
+ * {@link FileManager} still works, {@link FileManagerAdapter} falls back to its whole file reads
+ * and writes, or skips an operation it can't emulate.
+ */
+public interface ExtendedFileManager extends FileManager {
+    /**
+     * Open a file to write from a position, bytes before and after the written range are kept.
+     */
+    OutputStream openWritableFileAt(String filePath, long position) throws IOException;
+
+    /**
+     * Cut a file to the length, no-op if it isn't longer.
+     */
+    void truncateFile(String filePath, long length) throws IOException;
+
+    /**
+     * Reserve disk space of a file up to the length, no-op if it isn't shorter.
+     */
+    void preallocateFile(String filePath, long length) throws IOException;
+
+    /**
+     * Force written bytes of a file to disk.
+     */
+    void syncFile(String filePath) throws IOException;
+
+    /**
+     * Rename a file, replacing the target if it exists. It should be atomic if both files are in
+     * the same directory.
+     */
+    void renameFile(String fromPath, String toPath) throws IOException;
+
+    /**
+     * Create a directory and its missing parents, no-op if it exists.
+     */
+    void createDirectories(String dirPath) throws IOException;
+
+    /**
+     * @return usable bytes of the disk a file would be written to, or {@link C#UNSET} if unknown.
+     */
+    long getUsableSpace(String filePath);
+
+    /**
+     * @return true if both files would be written to the same disk, so they share its usable
+     * space. Assume true if unknown.
+     */
+    boolean isSameFileStore(String filePath1, String filePath2);
+}
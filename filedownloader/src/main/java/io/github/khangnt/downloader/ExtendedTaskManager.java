@@ -0,0 +1,11 @@
+package io.github.khangnt.downloader;
+
+import io.github.khangnt.downloader.model.Chunk;
+
+/**
+ * Task manager which can remove a single chunk. With a plain {@link TaskManager}, chunks of a
+ * resumed task aren't coalesced.
+ */
+public interface ExtendedTaskManager extends TaskManager {
+    void removeChunk(Chunk chunk);
+}
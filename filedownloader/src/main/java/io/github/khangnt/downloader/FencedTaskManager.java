@@ -0,0 +1,126 @@
+package io.github.khangnt.downloader;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import io.github.khangnt.downloader.model.Chunk;
+import io.github.khangnt.downloader.model.Task;
+
+/**
+ * Task manager of a worker holds a lease, writes are rejected with
+ * {@link io.github.khangnt.downloader.exception.LeaseLostException} once another node took over
+ * the lease.
+ */
+class FencedTaskManager implements TaskManager {
+    private final TaskManager mTaskManager;
+    private final LeaseStore mLeaseStore;
+    private final LeaseStore.Lease mLease;
+
+    FencedTaskManager(TaskManager taskManager, LeaseStore leaseStore, LeaseStore.Lease lease) {
+        mTaskManager = taskManager;
+        mLeaseStore = leaseStore;
+        mLease = lease;
+    }
+
+    private <T> T fenced(Callable<T> action) {
+        try {
+            return mLeaseStore.callFenced(mLease, action);
+        } catch (RuntimeException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    @Override
+    public Task insertTask(final Task task) {
+        return fenced(new Callable<Task>() {
+            @Override
+            public Task call() {
+                return mTaskManager.insertTask(task);
+            }
+        });
+    }
+
+    @Override
+    public Task updateTask(final Task task) {
+        return fenced(new Callable<Task>() {
+            @Override
+            public Task call() {
+                return mTaskManager.updateTask(task);
+            }
+        });
+    }
+
+    @Override
+    public void removeTask(final int taskId) {
+        fenced(new Callable<Void>() {
+            @Override
+            public Void call() {
+                mTaskManager.removeTask(taskId);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public Task findTask(int taskId) {
+        return mTaskManager.findTask(taskId);
+    }
+
+    @Override
+    public List<Chunk> getChunksOfTask(Task task) {
+        return mTaskManager.getChunksOfTask(task);
+    }
+
+    @Override
+    public void removeChunksOfTask(final Task task) {
+        fenced(new Callable<Void>() {
+            @Override
+            public Void call() {
+                mTaskManager.removeChunksOfTask(task);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public Chunk insertChunk(final Chunk chunk) {
+        return fenced(new Callable<Chunk>() {
+            @Override
+            public Chunk call() {
+                return mTaskManager.insertChunk(chunk);
+            }
+        });
+    }
+
+    @Override
+    public Chunk updateChunk(final Chunk chunk) {
+        return fenced(new Callable<Chunk>() {
+            @Override
+            public Chunk call() {
+                return mTaskManager.updateChunk(chunk);
+            }
+        });
+    }
+
+    @Override
+    public List<Task> getUndoneTasks() {
+        return mTaskManager.getUndoneTasks();
+    }
+
+    @Override
+    public List<Task> getDoneTasks() {
+        return mTaskManager.getDoneTasks();
+    }
+
+    @Override
+    public List<Task> getAllTasks() {
+        return mTaskManager.getAllTasks();
+    }
+
+    @Override
+    public void cleanUpFinishedTasks() {
+        mTaskManager.cleanUpFinishedTasks();
+    }
+}
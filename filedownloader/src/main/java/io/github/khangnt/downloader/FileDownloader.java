@@ -1,15 +1,41 @@
 package io.github.khangnt.downloader;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import io.github.khangnt.downloader.metrics.EventTracer;
+import io.github.khangnt.downloader.metrics.Metrics;
+import io.github.khangnt.downloader.metrics.MetricsExporter;
+import io.github.khangnt.downloader.exception.LeaseLostException;
+import io.github.khangnt.downloader.exception.TaskNotFoundException;
+import io.github.khangnt.downloader.model.BlockCheckSums;
 import io.github.khangnt.downloader.model.Chunk;
 import io.github.khangnt.downloader.model.ChunkReport;
 import io.github.khangnt.downloader.model.Task;
@@ -17,9 +43,16 @@ import io.github.khangnt.downloader.model.TaskReport;
 import io.github.khangnt.downloader.util.Utils;
 import io.github.khangnt.downloader.worker.ChunkWorker;
 import io.github.khangnt.downloader.worker.ChunkWorkerListener;
+import io.github.khangnt.downloader.worker.ConnectionStats;
+import io.github.khangnt.downloader.worker.HedgeWorker;
+import io.github.khangnt.downloader.worker.HedgeWorkerListener;
+import io.github.khangnt.downloader.worker.BatchWorker;
+import io.github.khangnt.downloader.worker.BatchWorkerListener;
 import io.github.khangnt.downloader.worker.MergeFileWorker;
 import io.github.khangnt.downloader.worker.MergeFileWorkerListener;
 import io.github.khangnt.downloader.worker.ModeratorExecutor;
+import io.github.khangnt.downloader.worker.MultiRangeWorker;
+import io.github.khangnt.downloader.worker.MultiRangeWorkerListener;
 
 /**
  * Created by Khang NT on 6/2/17.
@@ -27,33 +60,114 @@ import io.github.khangnt.downloader.worker.ModeratorExecutor;
  */
 
 public class FileDownloader implements IFileDownloader, ChunkWorkerListener, MergeFileWorkerListener,
+        HedgeWorkerListener, BatchWorkerListener, MultiRangeWorkerListener,
         OnChecksumMismatchListener {
     public static final String MODERATOR_THREAD = "ModeratorThread";
+    public static final String TEARDOWN_THREAD = "TeardownThread";
+    public static final String PROCESSING_THREAD = "ProcessingThread";
+    public static final String EVENT_THREAD = "EventThread";
 
     private static final String CHUNK_KEY_PREFIX = "chunk:";
     private static final String MERGE_KEY_PREFIX = "merge:";
+    private static final String HEDGE_KEY_PREFIX = "hedge:";
+    private static final String INIT_KEY_PREFIX = "init:";
+    private static final String BATCH_KEY_PREFIX = "batch:";
+    private static final String RANGES_KEY_PREFIX = "ranges:";
+    private static final int MIN_TASK_REPORT_PRUNE_SIZE = 1024;
 
     private final Object lock = new Object();
+    private final String mModeratorThreadName;
 
     private FileManager mFileManager;
     private HttpClient mHttpClient;
     private TaskManager mTaskManager;
     private DownloadSpeedMeter mDownloadSpeedMeter;
+    private DiskWriter mDiskWriter;
+    private FileSyncer mFileSyncer;
+    private Metrics mMetrics;
+    private Timer mMetricsExportTimer;
+    private RetryPolicy mRetryPolicy = RetryPolicy.createDefault();
+    private CircuitBreaker mCircuitBreaker = new CircuitBreaker();
+    private HedgePolicy mHedgePolicy = HedgePolicy.DISABLED;
+    private Timer mHedgeTimer;
+    // bytes requested by hedges and download rates of finished chunks, by task id
+    private Map<Integer, Long> mHedgedBytes;
+    private Map<Integer, List<Long>> mFinishedChunkRates;
+    private ConcurrencyTuner mConcurrencyTuner;
+    private Timer mTunerTimer;
+    // totals of connection workers at the last tuner sample: bytes read, failures, first bytes,
+    // workers spawned since then are added with zero totals, so they're sampled after they exit
+    private Map<Thread, long[]> mTunerSnapshots = new IdentityHashMap<>();
+    private long mLastTuneTime;
+    private LeaseStore mLeaseStore;
+    private String mNodeId;
+    private long mLeaseTtl;
+    private Timer mLeaseTimer;
+    // leases held by workers until the worker thread exits and is removed from mWorkers, written
+    // on moderator thread only, read by workers reporting their result
+    private Map<Thread, LeaseStore.Lease> mLeases = new ConcurrentHashMap<>();
+    private BatchPolicy mBatchPolicy = BatchPolicy.DISABLED;
+    // queued batch task ids by origin, polled by batch workers
+    private final Map<String, Queue<Integer>> mBatchQueues = new ConcurrentHashMap<>();
+    // batch tasks which are queued or being fetched
+    private final Set<Integer> mBatchTaskIds =
+            Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+    private int mBatchWorkerCount;
+    private MultiRangePolicy mMultiRangePolicy = MultiRangePolicy.DISABLED;
+    // origins which answered a multi-range request without multipart/byteranges, and tasks whose
+    // multi-range request failed or left chunks unfinished, they use single range requests only
+    private Set<String> mSingleRangeOrigins = new HashSet<>();
+    private Set<Integer> mSingleRangeTaskIds = new HashSet<>();
+    // position an input stream of the task is waiting for, by task id
+    private Map<TaskInputStream, Long> mWaitingPositions;
 
-    private EventDispatcher mEventDispatcher;
+    // replaced when the ring capacity is set, events are published without the lock
+    private volatile EventDispatcher mEventDispatcher;
+    private int mEventRingCapacity;
     private Map<String, Thread> mWorkers;
+    // chunk and hedge workers stopped by pause(), chunks of their task aren't coalesced until
+    // they exited, see coalesceChunks()
+    private List<Thread> mPausedWorkers = new ArrayList<>();
+    // tasks whose cancelled workers haven't exited yet, workers aren't spawned for them
+    private Set<Integer> mTearingDownTasks = new HashSet<>();
+    private final ExecutorService mTeardownExecutor;
+    // processing stages by task id, they run on processing threads bounded by the permits
+    private final Map<Integer, List<ProcessingStage>> mProcessingStages = new ConcurrentHashMap<>();
+    private final ExecutorService mProcessingExecutor;
+    private final int mMaxProcessingThreads = Math.max(2, Runtime.getRuntime().availableProcessors());
+    private final Semaphore mProcessingPermits = new Semaphore(mMaxProcessingThreads);
     private ModeratorExecutor mModeratorExecutor;
 
     private boolean mRunning;
     private int mMaxWorker;
+    private AllocationPolicy mAllocationPolicy = AllocationPolicy.NONE;
+    // tasks passed the disk space check, accessed on the moderator thread only
+    private final Set<Integer> mSpaceReservedTaskIds = new HashSet<>();
     private Map<Integer, TaskReport> mTaskReportMap;
+    // reports are pruned on the moderator thread when the map grows beyond this,
+    // see putTaskReport()
+    private volatile int mTaskReportPruneSize = MIN_TASK_REPORT_PRUNE_SIZE;
+    private final AtomicBoolean mTaskReportPruneScheduled = new AtomicBoolean();
+    // pending futures by task id, completed on the moderator thread
+    private final Map<Integer, TaskFuture> mTaskFutures = new ConcurrentHashMap<>();
     private OnChecksumMismatchListener mOnChecksumMismatchListener;
+    private boolean mLifecycleEventsEnabled = true;
 
     public FileDownloader() {
         this(new DefaultFileManager(), new DefaultHttpClient(), new NonPersistentTaskManager());
     }
 
     public FileDownloader(FileManager fileManager, HttpClient httpClient, TaskManager taskManager) {
+        this(fileManager, httpClient, taskManager, new Metrics(), MODERATOR_THREAD);
+    }
+
+    /**
+     * Used by {@link ShardedFileDownloader}, shards share metrics and name their own moderator
+     * thread.
+     */
+    FileDownloader(FileManager fileManager, HttpClient httpClient, TaskManager taskManager,
+                   Metrics metrics, String moderatorThreadName) {
+        mModeratorThreadName = moderatorThreadName;
         mFileManager = fileManager;
         mHttpClient = httpClient;
         mTaskManager = taskManager;
@@ -62,11 +176,31 @@ public class FileDownloader implements IFileDownloader, ChunkWorkerListener, Mer
         mEventDispatcher = new EventDispatcher();
         mDownloadSpeedMeter = new DownloadSpeedMeter();
         mWorkers = new HashMap<>();
-        mTaskReportMap = new HashMap<>();
+        mTaskReportMap = new ConcurrentHashMap<>();
+        mHedgedBytes = new HashMap<>();
+        mFinishedChunkRates = new HashMap<>();
+        mWaitingPositions = new HashMap<>();
+        mMetrics = metrics;
         mModeratorExecutor = new ModeratorExecutor(new ThreadFactory() {
             @Override
             public Thread newThread(Runnable runnable) {
-                return new Thread(runnable, MODERATOR_THREAD);
+                return new Thread(runnable, mModeratorThreadName);
+            }
+        }, mMetrics);
+        mTeardownExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, TEARDOWN_THREAD);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mProcessingExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, PROCESSING_THREAD);
+                thread.setDaemon(true);
+                return thread;
             }
         });
     }
@@ -74,11 +208,68 @@ public class FileDownloader implements IFileDownloader, ChunkWorkerListener, Mer
     @Override
     public Task addTask(Task task) {
         Task result = getTaskManager().insertTask(task);
-        TaskReport taskReport = new TaskReport(result, Collections.<ChunkReport>emptyList());
-        mTaskReportMap.put(result.getId(), taskReport);
+        onTaskAdded(result);
+        return result;
+    }
+
+    @Override
+    public TaskFuture submitTask(Task task) {
+        Task result = getTaskManager().insertTask(task);
+        // register before the task can be done
+        TaskFuture taskFuture = getTaskFuture(result.getId());
+        onTaskAdded(result);
+        return taskFuture;
+    }
+
+    @Override
+    public TaskGroup submitTasks(Collection<Task> tasks) {
+        List<Task> results = new ArrayList<>();
+        List<TaskFuture> taskFutures = new ArrayList<>();
+        for (Task task : tasks) {
+            Task result = getTaskManager().insertTask(task);
+            results.add(result);
+            taskFutures.add(getTaskFuture(result.getId()));
+        }
+        for (Task result : results) {
+            onTaskAdded(result);
+        }
+        return new TaskGroup(this, taskFutures);
+    }
+
+    private void onTaskAdded(Task task) {
+        TaskReport taskReport = new TaskReport(task, Collections.<ChunkReport>emptyList());
+        putTaskReport(taskReport);
         mEventDispatcher.onTaskAdded(taskReport);
         if (isRunning()) spawnWorker();
-        return result;
+    }
+
+    @Override
+    public TaskFuture getTaskFuture(int taskId) {
+        TaskFuture taskFuture;
+        synchronized (mTaskFutures) {
+            taskFuture = mTaskFutures.get(taskId);
+            if (taskFuture != null) return taskFuture;
+            taskFuture = new TaskFuture(this, taskId);
+            mTaskFutures.put(taskId, taskFuture);
+        }
+        // the task may be done before the future was registered
+        Task task = getTaskManager().findTask(taskId);
+        if (task == null) {
+            mTaskFutures.remove(taskId);
+            taskFuture.setException(new TaskNotFoundException("Task-" + taskId + " not found"));
+        } else if (task.isDone()) {
+            completeTaskFuture(getTaskReport(task), false);
+        }
+        return taskFuture;
+    }
+
+    private void completeTaskFuture(TaskReport taskReport, boolean cancelled) {
+        TaskFuture taskFuture = mTaskFutures.remove(taskReport.getTask().getId());
+        if (taskFuture == null) return;
+        if (cancelled) taskFuture.onTaskCancelled();
+        else if (taskReport.getTask().getState() == Task.State.FINISHED)
+            taskFuture.onTaskFinished(taskReport);
+        else taskFuture.onTaskFailed(taskReport);
     }
 
     @Override
@@ -87,26 +278,112 @@ public class FileDownloader implements IFileDownloader, ChunkWorkerListener, Mer
             @Override
             public void run() {
                 Task task = getTaskManager().findTask(taskId);
-                if (task != null && !task.isDone()) {
-                    cancelAllWorkerOfTaskSync(task);
-                    getFileManager().deleteFile(task.getFilePath());
+                if (task != null && task.getState() == Task.State.FAILED) {
+                    // drop progress kept for retryTask
+                    deleteChunksOfTask(task);
+                } else if (task != null && !task.isDone()) {
+                    cancelAllWorkerOfTask(task, true, true);
+                    mProcessingStages.remove(taskId);
                     Task cancelledTask = getTaskManager().updateTask(task.newBuilder()
                             .setState(Task.State.FAILED)
                             .setMessage("Cancelled").build());
                     updateTaskReport(cancelledTask, false);
+                    completeTaskFuture(getTaskReport(cancelledTask), true);
                     mEventDispatcher.onTaskCancelled(getTaskReport(cancelledTask));
                 }
             }
         });
     }
 
+    @Override
+    public void retryTask(final int taskId) {
+        mModeratorExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Task task = getTaskManager().findTask(taskId);
+                if (task == null || task.getState() != Task.State.FAILED) return;
+                Task.State state = Task.State.WAITING;
+                List<Chunk> chunks = getTaskManager().getChunksOfTask(task);
+                for (Chunk chunk : chunks) {
+                    if (chunk.isFinished() && !getFileManager().isFileExists(chunk.getChunkFile()))
+                        state = Task.State.IDLE;
+                }
+                if (chunks.isEmpty()) state = Task.State.IDLE;
+                if (state == Task.State.IDLE) deleteChunksOfTask(task);
+                Log.d("Retry task-%d from state %s", taskId, state);
+                Task retryTask = getTaskManager().updateTask(task.newBuilder()
+                        .setState(state)
+                        .setMessage(null).build());
+                updateTaskReport(retryTask, true);
+                mEventDispatcher.onTaskUpdated(getTaskReport(retryTask));
+                synchronized (lock) {
+                    if (isRunning()) spawnWorker();
+                }
+            }
+        });
+    }
+
+    @Override
+    public TaskInputStream openInputStream(int taskId) {
+        return new TaskInputStream(this, taskId);
+    }
+
+    @Override
+    public void addProcessingStage(int taskId, ProcessingStage stage) {
+        synchronized (mProcessingStages) {
+            List<ProcessingStage> stages = mProcessingStages.get(taskId);
+            if (stages == null) {
+                stages = new CopyOnWriteArrayList<>();
+                mProcessingStages.put(taskId, stages);
+            }
+            stages.add(stage);
+        }
+    }
+
+    @Override
+    public ProcessingPipeline newProcessingPipeline(Task task) {
+        List<ProcessingStage> stages = mProcessingStages.get(task.getId());
+        if (stages == null || stages.isEmpty()) return null;
+        return new ProcessingPipeline(task, stages, mProcessingExecutor, mProcessingPermits,
+                mMaxProcessingThreads);
+    }
+
+    /**
+     * Called by {@link TaskInputStream} when it is blocked at an undownloaded position, or with
+     * {@link C#UNSET} when it isn't blocked anymore.
+     */
+    void onInputStreamWaiting(final TaskInputStream inputStream, final long position) {
+        if (isReleased()) return;
+        mModeratorExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (position == C.UNSET) {
+                    mWaitingPositions.remove(inputStream);
+                    return;
+                }
+                mWaitingPositions.put(inputStream, position);
+            }
+        });
+        synchronized (lock) {
+            if (isRunning()) spawnWorker();
+        }
+    }
+
+    /**
+     * Shards of a {@link ShardedFileDownloader} except the first one don't dispatch
+     * {@link EventListener#onResumed()} and {@link EventListener#onPaused()}.
+     */
+    void setLifecycleEventsEnabled(boolean enabled) {
+        mLifecycleEventsEnabled = enabled;
+    }
+
     @Override
     public void start() {
         synchronized (lock) {
             if (!isRunning()) {
                 mRunning = true;
                 mDownloadSpeedMeter.start();
-                mEventDispatcher.onResumed();
+                if (mLifecycleEventsEnabled) mEventDispatcher.onResumed();
             }
             spawnWorker();
         }
@@ -118,8 +395,13 @@ public class FileDownloader implements IFileDownloader, ChunkWorkerListener, Mer
             mModeratorExecutor.execute(new Runnable() {
                 @Override
                 public void run() {
+                    Iterator<Thread> iterator = mPausedWorkers.iterator();
+                    while (iterator.hasNext()) {
+                        if (!iterator.next().isAlive()) iterator.remove();
+                    }
                     for (Thread thread : mWorkers.values()) {
-                        thread.interrupt();
+                        stopWorker(thread);
+                        if (getTaskIdOfConnection(thread) != C.UNSET) mPausedWorkers.add(thread);
                     }
                     mWorkers.clear();
 
@@ -127,8 +409,11 @@ public class FileDownloader implements IFileDownloader, ChunkWorkerListener, Mer
                     for (Task undoneTask : undoneTasks) {
                         if (undoneTask.getState() == Task.State.DOWNLOADING
                                 || undoneTask.getState() == Task.State.MERGING) {
+                            // batch task has no chunks to resume, it is queued again
+                            Task.State state = mBatchTaskIds.contains(undoneTask.getId())
+                                    ? Task.State.IDLE : Task.State.WAITING;
                             Task updatedTask = getTaskManager().updateTask(undoneTask.newBuilder()
-                                    .setState(Task.State.WAITING).build());
+                                    .setState(state).build());
                             updateTaskReport(updatedTask, false);
                             mEventDispatcher.onTaskUpdated(getTaskReport(updatedTask));
                         }
@@ -140,7 +425,7 @@ public class FileDownloader implements IFileDownloader, ChunkWorkerListener, Mer
             if (isRunning()) {
                 mRunning = false;
                 mDownloadSpeedMeter.pause();
-                mEventDispatcher.onPaused();
+                if (mLifecycleEventsEnabled) mEventDispatcher.onPaused();
             }
         }
     }
@@ -151,6 +436,20 @@ public class FileDownloader implements IFileDownloader, ChunkWorkerListener, Mer
             pause();
             mModeratorExecutor.executeAllPendingRunnable();
             mEventDispatcher.unregisterAllListener();
+            for (TaskFuture taskFuture : mTaskFutures.values()) {
+                taskFuture.onTaskCancelled();
+            }
+            mTaskFutures.clear();
+            if (mDiskWriter != null) mDiskWriter.shutdown();
+            if (mFileSyncer != null) mFileSyncer.shutdown();
+            setMetricsExporter(MetricsExporter.NONE, 0);
+            setHedgePolicy(HedgePolicy.DISABLED);
+            setConcurrencyTuner(null);
+            setLeaseStore(null, null, 0);
+            // pending teardowns still delete their files
+            mTeardownExecutor.shutdown();
+            mProcessingExecutor.shutdown();
+            mProcessingStages.clear();
             mFileManager = null;
             mHttpClient = null;
             mTaskManager = null;
@@ -184,9 +483,279 @@ public class FileDownloader implements IFileDownloader, ChunkWorkerListener, Mer
         }
     }
 
+    @Override
+    public AllocationPolicy getAllocationPolicy() {
+        return mAllocationPolicy;
+    }
+
+    @Override
+    public void setAllocationPolicy(AllocationPolicy allocationPolicy) {
+        if (allocationPolicy == null)
+            throw new IllegalArgumentException("Allocation policy can't be null");
+        mAllocationPolicy = allocationPolicy;
+    }
+
+    @Override
+    public DiskWriter getDiskWriter() {
+        return mDiskWriter;
+    }
+
+    @Override
+    public void setDiskWriter(DiskWriter diskWriter) {
+        synchronized (lock) {
+            if (mDiskWriter != null && mDiskWriter != diskWriter) mDiskWriter.shutdown();
+            mDiskWriter = diskWriter;
+        }
+    }
+
+    @Override
+    public DurabilityPolicy getDurabilityPolicy() {
+        return mFileSyncer == null ? DurabilityPolicy.NONE : mFileSyncer.getPolicy();
+    }
+
+    @Override
+    public void setDurabilityPolicy(DurabilityPolicy durabilityPolicy) {
+        if (durabilityPolicy == null)
+            throw new IllegalArgumentException("Durability policy can't be null");
+        setFileSyncer(durabilityPolicy == DurabilityPolicy.NONE ? null
+                : new FileSyncer(getFileManager(), durabilityPolicy));
+    }
+
+    /**
+     * Same as {@link #setDurabilityPolicy(DurabilityPolicy)}, with custom sync period and commit
+     * interval.
+     */
+    public void setFileSyncer(FileSyncer fileSyncer) {
+        synchronized (lock) {
+            if (mFileSyncer != null && mFileSyncer != fileSyncer) mFileSyncer.shutdown();
+            mFileSyncer = fileSyncer;
+        }
+    }
+
+    public FileSyncer getFileSyncer() {
+        return mFileSyncer;
+    }
+
+    @Override
+    public Metrics getMetrics() {
+        return mMetrics;
+    }
+
+    @Override
+    public void setMetricsExporter(final MetricsExporter exporter, long periodMillis) {
+        boolean stop = exporter == null || exporter == MetricsExporter.NONE;
+        // keep the current exporter if the new one can't be scheduled
+        if (!stop && periodMillis <= 0)
+            throw new IllegalArgumentException("Export period must be positive: " + periodMillis);
+        synchronized (lock) {
+            if (mMetricsExportTimer != null) {
+                mMetricsExportTimer.cancel();
+                mMetricsExportTimer = null;
+            }
+            if (stop) return;
+            mMetricsExportTimer = new Timer("MetricsExporter", true);
+            mMetricsExportTimer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    exporter.export(mMetrics);
+                }
+            }, periodMillis, periodMillis);
+        }
+    }
+
+    @Override
+    public RetryPolicy getRetryPolicy() {
+        return mRetryPolicy;
+    }
+
+    @Override
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        if (retryPolicy == null)
+            throw new IllegalArgumentException("Retry policy can't be null");
+        mRetryPolicy = retryPolicy;
+    }
+
+    @Override
+    public CircuitBreaker getCircuitBreaker() {
+        return mCircuitBreaker;
+    }
+
+    @Override
+    public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        mCircuitBreaker = circuitBreaker;
+    }
+
+    @Override
+    public ConcurrencyTuner getConcurrencyTuner() {
+        return mConcurrencyTuner;
+    }
+
+    @Override
+    public void setConcurrencyTuner(ConcurrencyTuner concurrencyTuner) {
+        synchronized (lock) {
+            mConcurrencyTuner = concurrencyTuner;
+            if (mTunerTimer != null) {
+                mTunerTimer.cancel();
+                mTunerTimer = null;
+            }
+            if (concurrencyTuner == null) return;
+            mLastTuneTime = System.currentTimeMillis();
+            mTunerTimer = new Timer("ConcurrencyTuner", true);
+            mTunerTimer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    synchronized (lock) {
+                        if (!isRunning()) return;
+                        mModeratorExecutor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                tuneConcurrency();
+                            }
+                        });
+                        // limit may be increased
+                        spawnWorker();
+                    }
+                }
+            }, concurrencyTuner.getSampleInterval(), concurrencyTuner.getSampleInterval());
+        }
+    }
+
+    @Override
+    public HedgePolicy getHedgePolicy() {
+        return mHedgePolicy;
+    }
+
+    @Override
+    public void setHedgePolicy(HedgePolicy hedgePolicy) {
+        if (hedgePolicy == null)
+            throw new IllegalArgumentException("Hedge policy can't be null");
+        synchronized (lock) {
+            mHedgePolicy = hedgePolicy;
+            if (mHedgeTimer != null) {
+                mHedgeTimer.cancel();
+                mHedgeTimer = null;
+            }
+            if (!hedgePolicy.isEnabled()) return;
+            // chunk progress changes without any worker event, look for stragglers periodically
+            mHedgeTimer = new Timer("HedgeChecker", true);
+            mHedgeTimer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    synchronized (lock) {
+                        if (isRunning()) spawnWorker();
+                    }
+                }
+            }, hedgePolicy.getCheckIntervalMillis(), hedgePolicy.getCheckIntervalMillis());
+        }
+    }
+
+    @Override
+    public BatchPolicy getBatchPolicy() {
+        return mBatchPolicy;
+    }
+
+    @Override
+    public void setBatchPolicy(BatchPolicy batchPolicy) {
+        if (batchPolicy == null)
+            throw new IllegalArgumentException("Batch policy can't be null");
+        synchronized (lock) {
+            mBatchPolicy = batchPolicy;
+            if (isRunning()) spawnWorker();
+        }
+    }
+
+    @Override
+    public MultiRangePolicy getMultiRangePolicy() {
+        return mMultiRangePolicy;
+    }
+
+    @Override
+    public void setMultiRangePolicy(MultiRangePolicy multiRangePolicy) {
+        if (multiRangePolicy == null)
+            throw new IllegalArgumentException("Multi-range policy can't be null");
+        synchronized (lock) {
+            mMultiRangePolicy = multiRangePolicy;
+            if (isRunning()) spawnWorker();
+        }
+    }
+
+    @Override
+    public LeaseStore getLeaseStore() {
+        return mLeaseStore;
+    }
+
+    @Override
+    public void setLeaseStore(LeaseStore leaseStore, String nodeId, long leaseTtlMillis) {
+        if (leaseStore != null && (nodeId == null || leaseTtlMillis <= 0))
+            throw new IllegalArgumentException("Node ID can't be null and lease TTL must > 0");
+        synchronized (lock) {
+            if (mLeaseTimer != null) {
+                mLeaseTimer.cancel();
+                mLeaseTimer = null;
+            }
+            mLeaseStore = leaseStore;
+            mNodeId = nodeId;
+            mLeaseTtl = leaseTtlMillis;
+            if (leaseStore == null) return;
+            // renew leases well before they expire, and pick up work added by other nodes
+            long period = Math.max(1, leaseTtlMillis / 3);
+            mLeaseTimer = new Timer("LeaseRenewer", true);
+            mLeaseTimer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    mModeratorExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            renewLeases();
+                        }
+                    });
+                    synchronized (lock) {
+                        if (isRunning()) spawnWorker();
+                    }
+                }
+            }, period, period);
+        }
+    }
+
+    @Override
+    public void setEventTracer(EventTracer eventTracer) {
+        mMetrics.setEventTracer(eventTracer);
+    }
+
     @Override
     public void registerListener(EventListener listener, Executor executor) {
-        mEventDispatcher.registerListener(executor, listener);
+        // setEventRingCapacity() may be replacing the dispatcher
+        synchronized (lock) {
+            mEventDispatcher.registerListener(executor, listener);
+        }
+    }
+
+    @Override
+    public void registerListener(EventListener listener, Executor executor,
+                                 WaitStrategy waitStrategy) {
+        if (waitStrategy == null)
+            throw new IllegalArgumentException("Wait strategy can't be null");
+        synchronized (lock) {
+            mEventDispatcher.registerListener(executor, listener, waitStrategy);
+        }
+    }
+
+    @Override
+    public int getEventRingCapacity() {
+        return mEventRingCapacity;
+    }
+
+    @Override
+    public void setEventRingCapacity(int capacity) {
+        if (capacity < 0)
+            throw new IllegalArgumentException("Event ring capacity must >= 0");
+        synchronized (lock) {
+            if (mEventDispatcher.hasListeners())
+                throw new IllegalStateException("Set event ring capacity before registering listeners");
+            mEventDispatcher = capacity > 0 ? new RingEventDispatcher(capacity, EVENT_THREAD)
+                    : new EventDispatcher();
+            mEventRingCapacity = capacity;
+        }
     }
 
     @Override
@@ -219,11 +788,34 @@ public class FileDownloader implements IFileDownloader, ChunkWorkerListener, Mer
                 chunkReports.add(new ChunkReport(chunk, getFileManager()));
             }
             taskReport = new TaskReport(task, chunkReports);
-            mTaskReportMap.put(task.getId(), taskReport);
+            putTaskReport(taskReport);
         }
         return taskReport;
     }
 
+    /**
+     * Cache a report. Once the cache doubled since the last prune, the moderator thread drops
+     * reports of tasks removed from the task manager (e.g. by
+     * {@link TaskManager#cleanUpFinishedTasks()}), so callers never pay for the scan.
+     */
+    private void putTaskReport(TaskReport taskReport) {
+        mTaskReportMap.put(taskReport.getTask().getId(), taskReport);
+        if (mTaskReportMap.size() <= mTaskReportPruneSize
+                || !mTaskReportPruneScheduled.compareAndSet(false, true)) return;
+        mModeratorExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Iterator<Integer> iterator = mTaskReportMap.keySet().iterator();
+                while (iterator.hasNext()) {
+                    if (getTaskManager().findTask(iterator.next()) == null) iterator.remove();
+                }
+                mTaskReportPruneSize = Math.max(MIN_TASK_REPORT_PRUNE_SIZE,
+                        2 * mTaskReportMap.size());
+                mTaskReportPruneScheduled.set(false);
+            }
+        });
+    }
+
     private void updateTaskReport(Task task, boolean chunkChanged) {
         TaskReport taskReport = mTaskReportMap.get(task.getId());
         if (taskReport != null) {
@@ -268,14 +860,43 @@ public class FileDownloader implements IFileDownloader, ChunkWorkerListener, Mer
         mModeratorExecutor.execute(new Runnable() {
             @Override
             public void run() {
-                if (!Thread.currentThread().getName().equals(MODERATOR_THREAD))
+                if (!Thread.currentThread().getName().equals(mModeratorThreadName))
                     throw new IllegalStateException("Spawn worker must run on Moderator thread");
                 if (!isRunning() || Thread.interrupted()) return;
+                releaseLeasesOfStoppedWorkers();
                 List<Task> unfinishedTasks = getTaskManager().getUndoneTasks();
                 for (Task task : unfinishedTasks) {
                     if (!isRunning() || Thread.interrupted()) return;
+                    if (mTearingDownTasks.contains(task.getId())) continue;
+                    // queued or being fetched by a batch worker
+                    if (mBatchTaskIds.contains(task.getId())) continue;
+                    if (task.getState() == Task.State.IDLE && isBatchTask(task)) {
+                        enqueueBatchTask(task);
+                        continue;
+                    }
+                    LeaseStore.Lease initLease = null;
+                    if (task.getState() == Task.State.IDLE && mLeaseStore != null) {
+                        // another node may be initializing the task
+                        initLease = acquireLease(INIT_KEY_PREFIX + task.getId(), task.getId());
+                        if (initLease == null) continue;
+                        task = getTaskManager().findTask(task.getId());
+                        if (task == null || task.getState() != Task.State.IDLE) {
+                            mLeaseStore.release(initLease);
+                            initLease = null;
+                            if (task == null || task.isDone()) continue;
+                        }
+                    }
+                    // chunks of a paused or failed task are left by its previous workers
+                    boolean resumed = task.getState() == Task.State.WAITING;
                     if (task.getState() == Task.State.IDLE) try {
+                        long startTime = System.nanoTime();
                         task = initTask(task);
+                        EventTracer tracer = mMetrics.getEventTracer();
+                        if (tracer.isEnabled()) {
+                            tracer.onTaskInitialized(task.getId(), task.getLength(), task.isResumable(),
+                                    getTaskManager().getChunksOfTask(task).size(),
+                                    System.nanoTime() - startTime);
+                        }
                         updateTaskReport(task, true);
                         mEventDispatcher.onTaskUpdated(getTaskReport(task));
                     } catch (Exception e) {
@@ -283,26 +904,113 @@ public class FileDownloader implements IFileDownloader, ChunkWorkerListener, Mer
                         // INIT -> FAILED
                         Task failedTask = getTaskManager().updateTask(task.newBuilder()
                                 .setState(Task.State.FAILED)
-                                .setMessage("Failed to read content length: " + e.getMessage())
+                                .setMessage("Failed to initialize task: " + e.getMessage())
                                 .build());
                         updateTaskReport(failedTask, false);
+                        mMetrics.getTaskFailures().increment();
+                        completeTaskFuture(getTaskReport(failedTask), false);
                         mEventDispatcher.onTaskFailed(getTaskReport(failedTask));
                         continue;
+                    } finally {
+                        if (initLease != null) mLeaseStore.release(initLease);
                     }
                     if (mWorkers.size() < getMaxWorkers()) {
                         List<Chunk> chunks = mTaskManager.getChunksOfTask(task);
                         if (areAllChunkFinished(chunks)) {
                             spawnMergeFileWorkerIfNotExists(task, chunks);
                         } else {
-                            spawnChunkWorkerIfNotExists(task, chunks);
+                            if (resumed) chunks = coalesceChunks(task, chunks);
+                            spawnMultiRangeWorkerIfNeeded(task, chunks);
+                            spawnChunkWorkerIfNotExists(task, sortByWaitingPosition(task, chunks));
+                            fetchWaitingPositionFirst(task);
                             splitLargeChunkIfPossible(task);
+                            hedgeStragglersIfNeeded(task);
                         }
                     }
                 }
+                spawnBatchWorkersIfNeeded();
             }
         });
     }
 
+    /**
+     * Small task of known length is fetched by a batch worker of its origin, without
+     * initialization, chunks and merging. With a lease store, tasks always take the chunk path,
+     * which leases decide which node works on.
+     */
+    protected boolean isBatchTask(Task task) {
+        return mBatchPolicy.isEnabled() && mLeaseStore == null && task.getLength() > 0
+                && task.getLength() <= mBatchPolicy.getMaxLength()
+                && task.getBlockCheckSums() == null && getOrigin(task) != null;
+    }
+
+    private static String getOrigin(Task task) {
+        try {
+            URL url = new URL(task.getUrl());
+            int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+            return url.getProtocol().toLowerCase(Locale.US) + "://"
+                    + url.getHost().toLowerCase(Locale.US) + ":" + port;
+        } catch (MalformedURLException ex) {
+            return null;
+        }
+    }
+
+    private void enqueueBatchTask(Task task) {
+        String origin = getOrigin(task);
+        Queue<Integer> queue = mBatchQueues.get(origin);
+        if (queue == null) {
+            queue = new ConcurrentLinkedDeque<>();
+            mBatchQueues.put(origin, queue);
+        }
+        mBatchTaskIds.add(task.getId());
+        queue.add(task.getId());
+    }
+
+    /**
+     * Batch workers of an origin follow the depth of its queue, see
+     * {@link BatchPolicy#getConnections(int)}.
+     */
+    protected void spawnBatchWorkersIfNeeded() {
+        if (mBatchQueues.isEmpty()) return;
+        Map<String, Integer> runningWorkers = new HashMap<>();
+        for (Thread thread : mWorkers.values()) {
+            if (thread instanceof BatchWorker) {
+                String origin = ((BatchWorker) thread).getOrigin();
+                Integer count = runningWorkers.get(origin);
+                runningWorkers.put(origin, count == null ? 1 : count + 1);
+            }
+        }
+        Iterator<Map.Entry<String, Queue<Integer>>> iterator = mBatchQueues.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Queue<Integer>> entry = iterator.next();
+            Integer running = runningWorkers.get(entry.getKey());
+            int count = running == null ? 0 : running;
+            if (count == 0 && entry.getValue().isEmpty()) {
+                iterator.remove();
+                continue;
+            }
+            int connections = mBatchPolicy.getConnections(entry.getValue().size());
+            ConcurrencyTuner tuner = mConcurrencyTuner;
+            if (tuner != null) {
+                // batch workers share the connection limit of the host with chunk workers
+                String host = Utils.getHost(entry.getKey());
+                connections = Math.min(connections,
+                        count + tuner.getLimit(host) - countHostConnections(host));
+            }
+            while (count < connections && mWorkers.size() < getMaxWorkers()) {
+                BatchWorker batchWorker = new BatchWorker(entry.getKey(), getHttpClient(),
+                        getFileManager(), mDownloadSpeedMeter, mFileSyncer, mMetrics, mRetryPolicy,
+                        mCircuitBreaker, this);
+                String key = BATCH_KEY_PREFIX + entry.getKey() + "#" + (mBatchWorkerCount++);
+                batchWorker.start();
+                Log.d("Spawn worker %s", key);
+                mWorkers.put(key, batchWorker);
+                trackConnection(batchWorker);
+                count++;
+            }
+        }
+    }
+
     protected Task initTask(Task task) throws Exception {
         Log.d("Initializing task-%d...", task.getId());
         mTaskManager.removeChunksOfTask(task);
@@ -312,72 +1020,402 @@ public class FileDownloader implements IFileDownloader, ChunkWorkerListener, Mer
             after.setLength(contentDescription.getLength())
                     .setResumable(contentDescription.isAcceptRange());
         }
-        if (!after.isResumable()) {
-            getTaskManager().insertChunk(new Chunk.Builder(after.getId(),
-                    mFileManager.getUniqueTempFile(task)).build());
-        } else {
-            long length = after.getLength();
-            int numberOfChunks = 1;
+        BlockCheckSums blockCheckSums = initBlockCheckSums(after);
+        long length = after.getLength();
+        int numberOfChunks = 1;
+        long lengthPerChunk = length;
+        if (after.isResumable()) {
             while (numberOfChunks < after.getMaxChunks()
                     && length / (numberOfChunks + 1) > C.MIN_CHUNK_LENGTH)
                 numberOfChunks++;
-            final long lengthPerChunk = length / numberOfChunks;
+            lengthPerChunk = length / numberOfChunks;
+            if (blockCheckSums != null) {
+                // chunk boundaries must be block boundaries, so each chunk can verify its own blocks
+                lengthPerChunk = Math.max(blockCheckSums.alignDown(lengthPerChunk),
+                        blockCheckSums.getBlockSize());
+                numberOfChunks = (int) Math.min(numberOfChunks,
+                        (length + lengthPerChunk - 1) / lengthPerChunk);
+            }
+        }
+        allocateDiskSpace(task, length, numberOfChunks == 1);
+        if (!after.isResumable()) {
+            getTaskManager().insertChunk(new Chunk.Builder(after.getId(),
+                    newTempFileBeside(task)).build());
+        } else {
+            long durableLength = getDurabilityPolicy().isTrackingDurableLength() ? 0 : C.UNSET;
             for (int i = 0; i < numberOfChunks - 1; i++) {
                 getTaskManager().insertChunk(new Chunk.Builder(after.getId(),
                         mFileManager.getUniqueTempFile(task))
                         .setRange(i * lengthPerChunk, (i + 1) * lengthPerChunk - 1)
+                        .setDurableLength(durableLength)
                         .build());
             }
             getTaskManager().insertChunk(new Chunk.Builder(after.getId(),
-                    mFileManager.getUniqueTempFile(task))
+                    numberOfChunks == 1 ? newTempFileBeside(task) : mFileManager.getUniqueTempFile(task))
                     .setRange((numberOfChunks - 1) * lengthPerChunk, length - 1)
+                    .setDurableLength(durableLength)
                     .build());
         }
         // INIT -> WAITING
         return mTaskManager.updateTask(after.setState(Task.State.WAITING).build());
     }
 
-    protected void spawnChunkWorkerIfNotExists(Task task, List<Chunk> chunks) {
-        for (Chunk chunk : chunks) {
-            if (!isRunning() || Thread.interrupted()) return;
-            if (chunk.isFinished()) continue;
-            if (mWorkers.size() < getMaxWorkers()) {
-                ChunkWorker chunkWorker = (ChunkWorker) mWorkers.get(CHUNK_KEY_PREFIX + chunk.getId());
-                if (chunkWorker == null) {
-                    chunkWorker = new ChunkWorker(chunk, getHttpClient(), getTaskManager(),
-                            getFileManager(), mDownloadSpeedMeter, this);
-                    chunkWorker.start();
-                    Log.d("Spawn worker %s for task %d", CHUNK_KEY_PREFIX + chunk.getId(), task.getId());
-                    mWorkers.put(CHUNK_KEY_PREFIX + chunk.getId(), chunkWorker);
+    /**
+     * Chunk file of a single chunk task is beside the target file, so the task is finished by
+     * renaming it instead of copying it.
+     */
+    @Override
+    public String getTempFileBeside(Task task) {
+        return task.getFilePath() + "." + task.getId() + ".part";
+    }
 
-                    if (task.getState() == Task.State.WAITING) {
-                        task = getTaskManager().updateTask(task.newBuilder()
-                                .setState(Task.State.DOWNLOADING).build());
-                        updateTaskReport(task, false);
-                        mEventDispatcher.onTaskUpdated(getTaskReport(task));
-                    }
-                }
+    private String newTempFileBeside(Task task) {
+        String tempFile = getTempFileBeside(task);
+        // left by a previous attempt, chunk worker would resume from it
+        if (getFileManager().isFileExists(tempFile)) getFileManager().deleteFile(tempFile);
+        return tempFile;
+    }
+
+    private boolean isSingleChunkBesideTarget(Task task, List<Chunk> chunks) {
+        return chunks.size() == 1 && chunks.get(0).getChunkFile().equals(getTempFileBeside(task));
+    }
+
+    /**
+     * Apply {@link #getAllocationPolicy()} before any worker of the task starts, so a task
+     * doesn't fail with out of space after hours of downloading.
+     *
+     * @param singleChunk the task is downloaded into a single chunk file beside the target file.
+     */
+    protected void allocateDiskSpace(Task task, long length, boolean singleChunk) throws Exception {
+        if (mAllocationPolicy == AllocationPolicy.NONE || length <= 0) return;
+        ExtendedFileManager fileManager = FileManagerAdapter.of(getFileManager());
+        String targetFile = task.getFilePath();
+        if (singleChunk) {
+            // the chunk file is renamed to the target file, only one copy is ever on disk
+            checkUsableSpace(fileManager, targetFile, length);
+        } else {
+            // chunk files and the merged file co-exist until merging is finished
+            String tempFile = fileManager.getUniqueTempFile(task);
+            if (fileManager.isSameFileStore(targetFile, tempFile)) {
+                checkUsableSpace(fileManager, targetFile, 2 * length);
             } else {
-                break;
+                checkUsableSpace(fileManager, targetFile, length);
+                checkUsableSpace(fileManager, tempFile, length);
             }
         }
+        mSpaceReservedTaskIds.add(task.getId());
+        // a preallocated target file would be replaced by the renamed chunk file
+        if (mAllocationPolicy == AllocationPolicy.PREALLOCATE && !singleChunk) {
+            fileManager.preallocateFile(targetFile, length);
+        }
     }
 
-    protected void spawnMergeFileWorkerIfNotExists(Task task, List<Chunk> chunks) {
+    private void checkUsableSpace(ExtendedFileManager fileManager, String filePath, long length)
+            throws IOException {
+        long usableSpace = fileManager.getUsableSpace(filePath);
+        if (usableSpace == C.UNSET) return;
+        long required = length + getReservedSpace(fileManager, filePath);
+        if (usableSpace < required) {
+            throw new IOException(String.format(Locale.US,
+                    "Insufficient disk space, require %d bytes but available %d bytes",
+                    required, usableSpace));
+        }
+    }
+
+    /**
+     * @return bytes that tasks passed {@link #allocateDiskSpace(Task, long, boolean)} are yet to
+     * write to the file store of the file.
+     */
+    private long getReservedSpace(ExtendedFileManager fileManager, String filePath) {
+        long reserved = 0;
+        Iterator<Integer> iterator = mSpaceReservedTaskIds.iterator();
+        while (iterator.hasNext()) {
+            Task task = getTaskManager().findTask(iterator.next());
+            if (task == null || task.isDone()) {
+                iterator.remove();
+                continue;
+            }
+            List<Chunk> chunks = getTaskManager().getChunksOfTask(task);
+            if (chunks.isEmpty()) continue;
+            long written = 0;
+            for (Chunk chunk : chunks) {
+                written += fileManager.getFileSize(chunk.getChunkFile());
+            }
+            if (fileManager.isSameFileStore(filePath, chunks.get(0).getChunkFile())) {
+                reserved += Math.max(0, task.getLength() - written);
+            }
+            if (!isSingleChunkBesideTarget(task, chunks)
+                    && fileManager.isSameFileStore(filePath, task.getFilePath())) {
+                // a preallocated target file already took its space
+                reserved += Math.max(0, task.getLength() - fileManager.getFileSize(task.getFilePath()));
+            }
+        }
+        return reserved;
+    }
+
+    /**
+     * Fetch block checksums manifest if needed and make sure the checksums are matched with
+     * task length.
+     *
+     * @return block checksums of task or null if it doesn't have.
+     */
+    protected BlockCheckSums initBlockCheckSums(Task.Builder task) throws IOException {
+        BlockCheckSums blockCheckSums = task.getBlockCheckSums();
+        if (blockCheckSums == null) return null;
+        if (blockCheckSums.getBlockCount() == 0 && task.getBlockCheckSumManifestUrl() != null) {
+            Task manifestTask = new Task.Builder(task.getFilePath(), task.getBlockCheckSumManifestUrl())
+                    .setId(task.getId()).build();
+            InputStream is = getHttpClient().openConnection(manifestTask,
+                    Collections.<String, String>emptyMap());
+            try {
+                blockCheckSums = BlockCheckSums.parseManifest(blockCheckSums.getAlgorithm(),
+                        blockCheckSums.getBlockSize(), is);
+            } finally {
+                try {
+                    is.close();
+                } catch (Exception ignore) {
+                }
+            }
+            task.setBlockCheckSums(blockCheckSums);
+        }
+        if (!blockCheckSums.isValidFor(task.getLength())) {
+            throw new IOException("Block checksums don't match content length " + task.getLength()
+                    + ": " + blockCheckSums);
+        }
+        return blockCheckSums;
+    }
+
+    protected void spawnChunkWorkerIfNotExists(Task task, List<Chunk> chunks) {
+        // without tuner, number of chunks limits connections of the task
+        int connectionsCanSpawn = mConcurrencyTuner == null ? Integer.MAX_VALUE
+                : getMaxParallelConnections(task) - countConnections(task);
+        MultiRangeWorker multiRangeWorker =
+                (MultiRangeWorker) mWorkers.get(RANGES_KEY_PREFIX + task.getId());
+        for (Chunk chunk : chunks) {
+            if (!isRunning() || Thread.interrupted()) return;
+            if (chunk.isFinished()) continue;
+            if (multiRangeWorker != null && multiRangeWorker.hasChunk(chunk.getId())) continue;
+            if (mWorkers.size() < getMaxWorkers()) {
+                ChunkWorker chunkWorker = (ChunkWorker) mWorkers.get(CHUNK_KEY_PREFIX + chunk.getId());
+                if (chunkWorker == null) {
+                    if (connectionsCanSpawn <= 0) break;
+                    String key = CHUNK_KEY_PREFIX + chunk.getId();
+                    TaskManager taskManager = getTaskManager();
+                    LeaseStore.Lease lease = null;
+                    if (mLeaseStore != null) {
+                        // chunk is downloading by another node
+                        lease = acquireLease(key, task.getId());
+                        if (lease == null) continue;
+                        chunk = findChunk(task, chunk.getId());
+                        if (chunk == null || chunk.isFinished()) {
+                            mLeaseStore.release(lease);
+                            continue;
+                        }
+                        if (lease.isReclaimed()) {
+                            // previous owner stopped writing before its lease expired, resume
+                            // from the chunk file like after a restart
+                            Log.d("Reclaim chunk-%d of task %d from expired lease", chunk.getId(),
+                                    task.getId());
+                        }
+                        taskManager = new FencedTaskManager(taskManager, mLeaseStore, lease);
+                    }
+                    connectionsCanSpawn--;
+                    chunkWorker = new ChunkWorker(chunk, getHttpClient(), taskManager,
+                            getFileManager(), mDownloadSpeedMeter, mDiskWriter, mFileSyncer, mMetrics,
+                            mRetryPolicy, mCircuitBreaker, this);
+                    if (lease != null) {
+                        chunkWorker.setLeaseDeadline(leaseDeadline(System.nanoTime()));
+                        mLeases.put(chunkWorker, lease);
+                    } else if (isSingleChunkBesideTarget(task, chunks)) {
+                        // stages are fed while downloading, the task is finished with the
+                        // pipeline instead of reading the chunk file again
+                        chunkWorker.setProcessingPipeline(newProcessingPipeline(task));
+                    }
+                    mWorkers.put(key, chunkWorker);
+                    trackConnection(chunkWorker);
+                    // before the worker starts, it may finish the task before this returns
+                    task = setDownloading(task);
+                    chunkWorker.start();
+                    Log.d("Spawn worker %s for task %d", key, task.getId());
+                }
+            } else {
+                break;
+            }
+        }
+    }
+
+    private Task setDownloading(Task task) {
+        if (task.getState() != Task.State.WAITING) return task;
+        task = getTaskManager().updateTask(task.newBuilder()
+                .setState(Task.State.DOWNLOADING).build());
+        updateTaskReport(task, false);
+        mEventDispatcher.onTaskUpdated(getTaskReport(task));
+        return task;
+    }
+
+    /**
+     * Fetch small gaps of the task with one multi-range request, see {@link MultiRangePolicy}.
+     * A task has at most one multi-range worker, it takes the place of a chunk worker.
+     */
+    protected void spawnMultiRangeWorkerIfNeeded(Task task, List<Chunk> chunks) {
+        MultiRangePolicy policy = mMultiRangePolicy;
+        String key = RANGES_KEY_PREFIX + task.getId();
+        if (!policy.isEnabled() || !task.isResumable() || mLeaseStore != null
+                || mWorkers.size() >= getMaxWorkers() || mWorkers.containsKey(key)
+                || mSingleRangeTaskIds.contains(task.getId())
+                || mSingleRangeOrigins.contains(getOrigin(task)))
+            return;
+        if (mConcurrencyTuner != null && countConnections(task) >= getMaxParallelConnections(task))
+            return;
+        List<Chunk> gaps = new ArrayList<>();
+        List<Long> waitingPositions = getWaitingPositions(task);
+        for (Chunk chunk : chunks) {
+            if (chunk.isFinished() || mWorkers.containsKey(CHUNK_KEY_PREFIX + chunk.getId()))
+                continue;
+            // a chunk worker fetches it first, multi-range parts arrive in request order
+            if (containsAny(chunk, waitingPositions)) continue;
+            long remaining = chunk.getLength() - getFileManager().getFileSize(chunk.getChunkFile());
+            if (remaining > 0 && remaining <= policy.getMaxGapLength()) gaps.add(chunk);
+            if (gaps.size() == policy.getMaxRanges()) break;
+        }
+        // a single gap takes a round-trip either way
+        if (gaps.size() < 2) return;
+        MultiRangeWorker multiRangeWorker = new MultiRangeWorker(task, gaps, getHttpClient(),
+                getTaskManager(), getFileManager(), mDownloadSpeedMeter, mFileSyncer, mMetrics,
+                mCircuitBreaker, this);
+        mWorkers.put(key, multiRangeWorker);
+        trackConnection(multiRangeWorker);
+        setDownloading(task);
+        multiRangeWorker.start();
+        Log.d("Spawn worker %s for %d chunks of task %d", key, gaps.size(), task.getId());
+    }
+
+    protected void spawnMergeFileWorkerIfNotExists(Task task, List<Chunk> chunks) {
         MergeFileWorker mergeFileWorker = (MergeFileWorker) mWorkers.get(MERGE_KEY_PREFIX + task.getId());
         if (mergeFileWorker == null) {
-            mergeFileWorker = new MergeFileWorker(task, chunks, getFileManager(), this);
-            mergeFileWorker.start();
-            Log.d("Spawn worker %s for task %d", MERGE_KEY_PREFIX + task.getId(), task.getId());
-            mWorkers.put(MERGE_KEY_PREFIX + task.getId(), mergeFileWorker);
-
+            // task of a stale snapshot may be finished meanwhile, and removed with its chunks
+            Task current = getTaskManager().findTask(task.getId());
+            if (current == null || current.isDone()) return;
+            if (isSingleChunkBesideTarget(task, chunks)
+                    && mWorkers.containsKey(CHUNK_KEY_PREFIX + chunks.get(0).getId())) {
+                // its chunk worker is finishing the task, see finishSingleChunkTask()
+                return;
+            }
+            LeaseStore.Lease lease = null;
+            if (mLeaseStore != null) {
+                // another node may be merging the task
+                lease = acquireLease(MERGE_KEY_PREFIX + task.getId(), task.getId());
+                if (lease == null) return;
+                task = getTaskManager().findTask(task.getId());
+                if (task == null || task.isDone()) {
+                    mLeaseStore.release(lease);
+                    return;
+                }
+                chunks = getTaskManager().getChunksOfTask(task);
+            }
+            // before the worker starts, it may finish the task before this returns
             if (task.getState() != Task.State.MERGING) {
                 task = getTaskManager().updateTask(task.newBuilder()
                         .setState(Task.State.MERGING).build());
                 updateTaskReport(task, false);
                 mEventDispatcher.onTaskUpdated(getTaskReport(task));
             }
+            mergeFileWorker = new MergeFileWorker(task, chunks, getFileManager(), mFileSyncer,
+                    mMetrics, this);
+            mergeFileWorker.setRenameChunkFile(isSingleChunkBesideTarget(task, chunks));
+            mergeFileWorker.setProcessingPipeline(newProcessingPipeline(task));
+            if (lease != null) {
+                mergeFileWorker.setLeaseDeadline(leaseDeadline(System.nanoTime()));
+                mLeases.put(mergeFileWorker, lease);
+            }
+            mergeFileWorker.start();
+            Log.d("Spawn worker %s for task %d", MERGE_KEY_PREFIX + task.getId(), task.getId());
+            mWorkers.put(MERGE_KEY_PREFIX + task.getId(), mergeFileWorker);
+        }
+    }
+
+    private Chunk findChunk(Task task, int chunkId) {
+        for (Chunk chunk : getTaskManager().getChunksOfTask(task)) {
+            if (chunk.getId() == chunkId) return chunk;
+        }
+        return null;
+    }
+
+    /**
+     * @return lease of the worker key, or null if another node holds it.
+     */
+    private LeaseStore.Lease acquireLease(String workerKey, int taskId) {
+        // worker keys are unique in a task manager only, task ID is unique across shards too
+        return mLeaseStore.acquire("task-" + taskId + "/" + workerKey, mNodeId, mLeaseTtl);
+    }
+
+    /**
+     * Worker stops writing at 3/4 of the lease TTL after the lease was last renewed, so it never
+     * writes after another node could take over the lease.
+     */
+    private long leaseDeadline(long renewNanos) {
+        return renewNanos + TimeUnit.MILLISECONDS.toNanos(mLeaseTtl * 3 / 4);
+    }
+
+    /**
+     * Renew leases of workers, stop workers whose lease was lost. A lease is kept until its
+     * worker thread exits, a stopped worker may still be writing. Must run on moderator thread.
+     */
+    private void renewLeases() {
+        releaseLeasesOfStoppedWorkers();
+        Iterator<Map.Entry<Thread, LeaseStore.Lease>> iterator = mLeases.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Thread, LeaseStore.Lease> entry = iterator.next();
+            Thread worker = entry.getKey();
+            long renewNanos = System.nanoTime();
+            if (mLeaseStore.renew(entry.getValue(), mLeaseTtl)) {
+                if (worker instanceof ChunkWorker)
+                    ((ChunkWorker) worker).setLeaseDeadline(leaseDeadline(renewNanos));
+                else if (worker instanceof MergeFileWorker)
+                    ((MergeFileWorker) worker).setLeaseDeadline(leaseDeadline(renewNanos));
+            } else {
+                Log.e("Lost lease %s, stop its worker", entry.getValue().getKey());
+                mWorkers.values().remove(worker);
+                stopWorker(worker);
+                iterator.remove();
+            }
+        }
+    }
+
+    private void releaseLeasesOfStoppedWorkers() {
+        if (mLeaseStore == null) {
+            // lease store was removed, leases are left to expire
+            mLeases.clear();
+            return;
+        }
+        Iterator<Map.Entry<Thread, LeaseStore.Lease>> iterator = mLeases.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Thread, LeaseStore.Lease> entry = iterator.next();
+            // result of the worker may not be handled yet, it's written with the lease
+            if (!entry.getKey().isAlive() && !mWorkers.containsValue(entry.getKey())) {
+                mLeaseStore.release(entry.getValue());
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Write the task on behalf of the worker, fenced by the lease of the worker if leases are used.
+     *
+     * @return updated task, or null if the worker lost its lease and another node owns the work.
+     */
+    private Task updateTaskOf(Thread worker, Task task) {
+        LeaseStore leaseStore = mLeaseStore;
+        LeaseStore.Lease lease = leaseStore == null ? null : mLeases.get(worker);
+        try {
+            if (leaseStore == null) return getTaskManager().updateTask(task);
+            if (lease != null) {
+                return new FencedTaskManager(getTaskManager(), leaseStore, lease).updateTask(task);
+            }
+        } catch (LeaseLostException ignore) {
         }
+        Log.e("Worker of task %d lost its lease, don't update the task", task.getId());
+        return null;
     }
 
     protected void splitLargeChunkIfPossible(Task task) {
@@ -391,7 +1429,7 @@ public class FileDownloader implements IFileDownloader, ChunkWorkerListener, Mer
             }
         }
         int maxWorkersCanSpawn = Math.min(getMaxWorkers() - mWorkers.size(),
-                task.getMaxParallelConnections() - runningChunks.size());
+                getMaxParallelConnections(task) - runningChunks.size());
         if (maxWorkersCanSpawn > 0) {
             // sort running chunk workers by remaining bytes of chunk
             Collections.sort(runningChunks, new Comparator<ChunkWorker>() {
@@ -411,6 +1449,404 @@ public class FileDownloader implements IFileDownloader, ChunkWorkerListener, Mer
         }
     }
 
+    /**
+     * Task resumed with more unfinished chunks than connections would open a connection for each
+     * of them in turn. Merge unfinished chunks into the adjacent unfinished chunk before them,
+     * cheapest first, until the chunks fit the connections: the earlier chunk keeps appending to
+     * its file through the range of the later one, whose downloaded bytes (at most
+     * {@link C#MIN_CHUNK_LENGTH}) are fetched again. Chunks are split again by
+     * {@link #splitLargeChunkIfPossible(Task)} and {@link #stealWork(int)} while connections are
+     * free.
+     * <p>
+     * The earlier chunk is extended before the later one is removed, so a crash between them
+     * leaves the later chunk inside the earlier one, it is removed when the task is resumed again.
+     * Needs an {@link ExtendedTaskManager} to remove chunks.
+     *
+     * @return chunks of the task after merging.
+     */
+    protected List<Chunk> coalesceChunks(Task task, List<Chunk> chunks) {
+        if (!task.isResumable() || mLeaseStore != null
+                || !(getTaskManager() instanceof ExtendedTaskManager)) return chunks;
+        ExtendedTaskManager taskManager = (ExtendedTaskManager) getTaskManager();
+        for (Thread worker : mPausedWorkers) {
+            // a stopping worker may still update its chunk
+            if (getTaskIdOfConnection(worker) == task.getId() && worker.isAlive()) return chunks;
+        }
+        List<Chunk> sorted = new ArrayList<>(chunks);
+        Collections.sort(sorted, new Comparator<Chunk>() {
+            @Override
+            public int compare(Chunk c1, Chunk c2) {
+                return Utils.compare(c1.getBegin(), c2.getBegin());
+            }
+        });
+        int removed = 0;
+        Chunk covering = null;
+        for (Iterator<Chunk> iterator = sorted.iterator(); iterator.hasNext(); ) {
+            Chunk chunk = iterator.next();
+            if (covering != null && !covering.isFinished() && !chunk.isFinished()
+                    && covering.getEnd() >= chunk.getEnd()) {
+                // left by a coalesce or a split interrupted by a crash, the earlier chunk covers it
+                Log.d("Remove chunk-%d inside chunk-%d of task-%d", chunk.getId(), covering.getId(),
+                        task.getId());
+                iterator.remove();
+                taskManager.removeChunk(chunk);
+                getFileManager().deleteFile(chunk.getChunkFile());
+                removed++;
+            } else {
+                covering = chunk;
+            }
+        }
+        if (removed > 0) chunks = new ArrayList<>(sorted);
+        int connections = Math.min(getMaxParallelConnections(task), getMaxWorkers());
+        int unfinished = 0;
+        for (Chunk chunk : chunks) {
+            if (!chunk.isFinished()) unfinished++;
+        }
+        if (unfinished <= connections) return chunks;
+        // bytes fetched again if the chunk is merged into the one before it, UNSET if it can't
+        List<Long> costs = new ArrayList<>(sorted.size());
+        for (int i = 0; i < sorted.size(); i++) {
+            Chunk chunk = sorted.get(i);
+            Chunk previous = i > 0 ? sorted.get(i - 1) : null;
+            long cost = C.UNSET;
+            if (previous != null && !previous.isFinished() && !chunk.isFinished()
+                    && previous.getEnd() + 1 == chunk.getBegin()) {
+                cost = getFileManager().getFileSize(chunk.getChunkFile());
+                if (getDurabilityPolicy().isTrackingDurableLength()
+                        && chunk.getDurableLength() != C.UNSET)
+                    cost = Math.min(cost, chunk.getDurableLength());
+                if (cost > C.MIN_CHUNK_LENGTH) cost = C.UNSET;
+            }
+            costs.add(cost);
+        }
+        int merged = 0;
+        while (unfinished > connections) {
+            int cheapest = -1;
+            for (int i = 0; i < costs.size(); i++) {
+                if (costs.get(i) != C.UNSET
+                        && (cheapest == -1 || costs.get(i) < costs.get(cheapest))) cheapest = i;
+            }
+            if (cheapest == -1) break;
+            Chunk previous = sorted.get(cheapest - 1);
+            Chunk chunk = sorted.remove(cheapest);
+            costs.remove(cheapest);
+            sorted.set(cheapest - 1, taskManager.updateChunk(previous.newBuilder()
+                    .setRange(previous.getBegin(), chunk.getEnd()).build()));
+            taskManager.removeChunk(chunk);
+            getFileManager().deleteFile(chunk.getChunkFile());
+            mMetrics.getCoalescedChunks().increment();
+            unfinished--;
+            merged++;
+        }
+        if (merged == 0) return chunks;
+        Log.d("Coalesced %d chunks of task-%d, %d unfinished chunks left", merged, task.getId(),
+                unfinished);
+        updateTaskReport(task, true);
+        mEventDispatcher.onTaskUpdated(getTaskReport(task));
+        return sorted;
+    }
+
+    /**
+     * If the chunk contains the position an input stream is waiting for is downloading but far
+     * from the position, split the chunk at the position so the stream doesn't wait for the whole
+     * range before it. Needs a free worker slot, it is checked again whenever a slot is freed.
+     *
+     * @return true if a chunk was split.
+     */
+    protected boolean fetchWaitingPositionFirst(Task task) {
+        if (!task.isResumable()) return false;
+        for (long position : getWaitingPositions(task)) {
+            if (mWorkers.size() >= getMaxWorkers()) return false;
+            if (fetchPositionFirst(task, position)) return true;
+        }
+        return false;
+    }
+
+    private boolean fetchPositionFirst(Task task, long position) {
+        for (Chunk chunk : getTaskManager().getChunksOfTask(task)) {
+            if (chunk.isFinished() || position < chunk.getBegin() || position > chunk.getEnd())
+                continue;
+            ChunkWorker worker = (ChunkWorker) mWorkers.get(CHUNK_KEY_PREFIX + chunk.getId());
+            // without worker, the chunk is spawned first by sortByWaitingPosition
+            if (worker == null) return false;
+            Chunk newChunk = worker.splitChunkAt(task, position);
+            if (newChunk == null) return false;
+            Log.d("Split chunk-%d at position %d for input stream", chunk.getId(), position);
+            spawnChunkWorkerIfNotExists(task, Collections.singletonList(newChunk));
+            updateTaskReport(task, true);
+            mEventDispatcher.onTaskUpdated(getTaskReport(task));
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return chunks with the chunk contains the position an input stream is waiting for first.
+     */
+    protected List<Chunk> sortByWaitingPosition(Task task, List<Chunk> chunks) {
+        List<Long> positions = getWaitingPositions(task);
+        if (positions.isEmpty() || !task.isResumable()) return chunks;
+        List<Chunk> waited = new ArrayList<>();
+        List<Chunk> others = new ArrayList<>();
+        for (Chunk chunk : chunks) {
+            if (containsAny(chunk, positions)) waited.add(chunk);
+            else others.add(chunk);
+        }
+        waited.addAll(others);
+        return waited;
+    }
+
+    private static boolean containsAny(Chunk chunk, List<Long> positions) {
+        for (long position : positions) {
+            if (chunk.getBegin() <= position && position <= chunk.getEnd()) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return positions input streams of the task are blocked at, in ascending order.
+     */
+    private List<Long> getWaitingPositions(Task task) {
+        List<Long> positions = new ArrayList<>();
+        for (Map.Entry<TaskInputStream, Long> entry : mWaitingPositions.entrySet()) {
+            if (entry.getKey().getTaskId() == task.getId()) positions.add(entry.getValue());
+        }
+        Collections.sort(positions);
+        return positions;
+    }
+
+    /**
+     * Called when a chunk worker of the task finished, give its slot to the upper half of the
+     * chunk which will finish last, so connections of the task stay busy near its end. Split is
+     * done under the chunk worker's lock, so it doesn't race with the worker's write.
+     * <p>
+     * Halves are at least {@link C#MIN_CHUNK_LENGTH}, a shorter tail costs a round-trip more than
+     * it saves and is left to {@link HedgePolicy}. The stolen range is a new request: the split
+     * worker stops reading its response early, so its connection is closed, not reused.
+     */
+    protected void stealWork(int taskId) {
+        if (!isRunning() || mWorkers.size() >= getMaxWorkers()) return;
+        Task task = getTaskManager().findTask(taskId);
+        if (task == null || task.isDone() || !task.isResumable()) return;
+        if (fetchWaitingPositionFirst(task)) return;
+        List<ChunkWorker> runningChunks = new ArrayList<ChunkWorker>();
+        for (Thread thread : mWorkers.values()) {
+            if (thread instanceof ChunkWorker) {
+                ChunkWorker worker = (ChunkWorker) thread;
+                if (worker.getChunk().getTaskId() == taskId && worker.isResumable())
+                    runningChunks.add(worker);
+            }
+        }
+        if (runningChunks.isEmpty() || runningChunks.size() >= getMaxParallelConnections(task))
+            return;
+        // slowest chunk first, chunks with unknown rate are ordered by remaining bytes at the end
+        final Map<ChunkWorker, Long> remainingTimes = new HashMap<>();
+        for (ChunkWorker worker : runningChunks) {
+            remainingTimes.put(worker, worker.getEstimatedRemainingTime());
+        }
+        Collections.sort(runningChunks, new Comparator<ChunkWorker>() {
+            @Override
+            public int compare(ChunkWorker c1, ChunkWorker c2) {
+                long t1 = remainingTimes.get(c1);
+                long t2 = remainingTimes.get(c2);
+                if (t1 != t2) return - Utils.compare(t1, t2);
+                return - Utils.compare(c1.getRemainingBytes(), c2.getRemainingBytes());
+            }
+        });
+        for (ChunkWorker worker : runningChunks) {
+            long remainingBytes = worker.getRemainingBytes();
+            if (remainingBytes < 2 * C.MIN_CHUNK_LENGTH) continue;
+            // no-op if the chunk was shrunk meanwhile, position is checked under the worker's lock
+            Chunk newChunk = worker.splitChunkAt(task,
+                    worker.getChunk().getEnd() - remainingBytes / 2 + 1);
+            if (newChunk == null) continue;
+            Log.d("Steal chunk-%d from chunk-%d", newChunk.getId(), worker.getChunk().getId());
+            spawnChunkWorkerIfNotExists(task, Collections.singletonList(newChunk));
+            updateTaskReport(task, true);
+            mEventDispatcher.onTaskUpdated(getTaskReport(task));
+            return;
+        }
+    }
+
+    /**
+     * Send a hedge request for the remaining range of chunks which are too small to split but
+     * much slower than other chunks of the task, see {@link HedgePolicy}.
+     */
+    protected void hedgeStragglersIfNeeded(Task task) {
+        HedgePolicy policy = mHedgePolicy;
+        if (!policy.isEnabled() || !task.isResumable() || task.getLength() <= 0) return;
+        List<ChunkWorker> runningChunks = new ArrayList<ChunkWorker>();
+        int connections = 0;
+        for (Thread thread : mWorkers.values()) {
+            if (thread instanceof ChunkWorker) {
+                ChunkWorker worker = (ChunkWorker) thread;
+                if (worker.getChunk().getTaskId() == task.getId()) {
+                    runningChunks.add(worker);
+                    connections++;
+                }
+            } else if (thread instanceof HedgeWorker) {
+                if (((HedgeWorker) thread).getTask().getId() == task.getId()) connections++;
+            }
+        }
+        List<Long> rates = new ArrayList<>();
+        List<Long> finishedRates = mFinishedChunkRates.get(task.getId());
+        if (finishedRates != null) rates.addAll(finishedRates);
+        for (ChunkWorker worker : runningChunks) {
+            if (worker.getConnectionElapsedTime() >= policy.getMinElapsedMillis()) {
+                long rate = worker.getDownloadRate();
+                if (rate != C.UNSET) rates.add(rate);
+            }
+        }
+        // need other chunks to compare with
+        if (rates.size() < 2) return;
+        Collections.sort(rates);
+        long medianRate = rates.get(rates.size() / 2);
+        long hedgedBytes = mHedgedBytes.containsKey(task.getId()) ? mHedgedBytes.get(task.getId()) : 0;
+        long maxHedgedBytes = (long) (task.getLength() * policy.getMaxExtraBytesRatio());
+        int maxConnections = getMaxParallelConnections(task);
+        for (ChunkWorker worker : runningChunks) {
+            if (mWorkers.size() >= getMaxWorkers() || connections >= maxConnections)
+                return;
+            if (mWorkers.containsKey(HEDGE_KEY_PREFIX + worker.getChunk().getId())
+                    || !worker.isResumable()
+                    || worker.getConnectionElapsedTime() < policy.getMinElapsedMillis()) continue;
+            long rate = worker.getDownloadRate();
+            long remainingBytes = worker.getRemainingBytes();
+            // large chunks are split instead
+            if (rate == C.UNSET || rate >= medianRate * policy.getSlowRatio()
+                    || remainingBytes <= 0 || remainingBytes >= C.MIN_CHUNK_LENGTH * 4) continue;
+            if (hedgedBytes + remainingBytes > maxHedgedBytes) continue;
+            HedgeWorker hedgeWorker = worker.hedge(task, this);
+            if (hedgeWorker == null) continue;
+            hedgeWorker.start();
+            Log.d("Spawn worker %s for task %d, chunk rate %d B/s, median %d B/s",
+                    HEDGE_KEY_PREFIX + worker.getChunk().getId(), task.getId(), rate, medianRate);
+            mWorkers.put(HEDGE_KEY_PREFIX + worker.getChunk().getId(), hedgeWorker);
+            trackConnection(hedgeWorker);
+            hedgedBytes += hedgeWorker.getLength();
+            mHedgedBytes.put(task.getId(), hedgedBytes);
+            mMetrics.getHedgedRequests().increment();
+            connections++;
+        }
+    }
+
+    /**
+     * Sample the worker by the next {@link #tuneConcurrency()}, even if it exits before.
+     */
+    private void trackConnection(Thread worker) {
+        if (mConcurrencyTuner != null) mTunerSnapshots.put(worker, new long[3]);
+    }
+
+    /**
+     * Feed bytes, failed requests and time to first byte of each origin since the last sample
+     * to {@link ConcurrencyTuner}. Connections are counted like
+     * {@link #getMaxParallelConnections(Task)} does, workers exited since the last sample add
+     * their bytes and failures but aren't connections anymore.
+     */
+    protected void tuneConcurrency() {
+        ConcurrencyTuner tuner = mConcurrencyTuner;
+        if (tuner == null) return;
+        long now = System.currentTimeMillis();
+        long interval = now - mLastTuneTime;
+        mLastTuneTime = now;
+        Map<String, long[]> samples = new HashMap<>();
+        Map<String, List<Long>> latencies = new HashMap<>();
+        Map<Thread, long[]> snapshots = new IdentityHashMap<>();
+        Map<Thread, Boolean> connected = new IdentityHashMap<>();
+        for (Thread thread : mWorkers.values()) {
+            if (thread instanceof ConnectionStats) connected.put(thread, true);
+        }
+        Map<Thread, Boolean> workers = new IdentityHashMap<>(connected);
+        for (Thread thread : mTunerSnapshots.keySet()) {
+            workers.put(thread, false);
+        }
+        for (Thread thread : workers.keySet()) {
+            ConnectionStats worker = (ConnectionStats) thread;
+            String origin = getHostOfConnection(thread);
+            if (origin == null) continue;
+            long[] sample = samples.get(origin);
+            if (sample == null) {
+                // bytes, failures, connections
+                sample = new long[3];
+                samples.put(origin, sample);
+                latencies.put(origin, new ArrayList<Long>());
+            }
+            long[] current = new long[]{worker.getBytesRead(), worker.getRequestFailures(),
+                    worker.getFirstByteCount()};
+            long[] last = mTunerSnapshots.get(thread);
+            if (last == null) last = new long[3];
+            sample[0] += current[0] - last[0];
+            sample[1] += current[1] - last[1];
+            // only connections started in this interval, old values would hide latency changes
+            if (current[2] != last[2]) latencies.get(origin).add(worker.getLastTimeToFirstByte());
+            if (connected.containsKey(thread)) {
+                sample[2]++;
+                snapshots.put(thread, current);
+            }
+        }
+        mTunerSnapshots = snapshots;
+        for (Map.Entry<String, long[]> entry : samples.entrySet()) {
+            List<Long> originLatencies = latencies.get(entry.getKey());
+            Collections.sort(originLatencies);
+            long latency = originLatencies.isEmpty() ? C.UNSET
+                    : originLatencies.get(originLatencies.size() / 2);
+            long[] sample = entry.getValue();
+            tuner.onSample(entry.getKey(), sample[0], (int) sample[1], latency, (int) sample[2], interval);
+        }
+    }
+
+    /**
+     * @return max connections the task can have, {@link ConcurrencyTuner} may lower it to the
+     * connections left of its origin.
+     */
+    protected int getMaxParallelConnections(Task task) {
+        ConcurrencyTuner tuner = mConcurrencyTuner;
+        if (tuner == null) return task.getMaxParallelConnections();
+        String origin = Utils.getHost(task.getUrl());
+        return Math.min(task.getMaxParallelConnections(),
+                countConnections(task) + tuner.getLimit(origin) - countHostConnections(origin));
+    }
+
+    /**
+     * @return connections of all workers to the host, include batch workers.
+     */
+    private int countHostConnections(String host) {
+        int connections = 0;
+        for (Thread thread : mWorkers.values()) {
+            if (host.equals(getHostOfConnection(thread))) connections++;
+        }
+        return connections;
+    }
+
+    /**
+     * @return host the worker connects to, or null if it doesn't have a connection.
+     */
+    private String getHostOfConnection(Thread worker) {
+        if (worker instanceof BatchWorker) return Utils.getHost(((BatchWorker) worker).getOrigin());
+        int taskId = getTaskIdOfConnection(worker);
+        if (taskId == C.UNSET) return null;
+        Task task = getTaskManager().findTask(taskId);
+        return task == null ? null : Utils.getHost(task.getUrl());
+    }
+
+    private int countConnections(Task task) {
+        int connections = 0;
+        for (Thread thread : mWorkers.values()) {
+            if (getTaskIdOfConnection(thread) == task.getId()) connections++;
+        }
+        return connections;
+    }
+
+    /**
+     * @return task id if the worker has a connection, otherwise {@link C#UNSET}.
+     */
+    private static int getTaskIdOfConnection(Thread worker) {
+        if (worker instanceof ChunkWorker) return ((ChunkWorker) worker).getChunk().getTaskId();
+        if (worker instanceof HedgeWorker) return ((HedgeWorker) worker).getTask().getId();
+        if (worker instanceof MultiRangeWorker) return ((MultiRangeWorker) worker).getTask().getId();
+        return C.UNSET;
+    }
+
     protected boolean areAllChunkFinished(List<Chunk> chunks) {
         for (Chunk chunk : chunks) {
             if (!chunk.isFinished()) return false;
@@ -446,36 +1882,113 @@ public class FileDownloader implements IFileDownloader, ChunkWorkerListener, Mer
 //        return cancelledTask;
 //    }
 
-    private void cancelAllWorkerOfTaskSync(Task task) {
-        List<Chunk> chunksOfTask = getTaskManager().getChunksOfTask(task);
-        for (Chunk chunk : chunksOfTask) {
-            ChunkWorker worker = (ChunkWorker) mWorkers.remove(CHUNK_KEY_PREFIX + chunk.getId());
-            if (worker != null) {
-                worker.interrupt();
-                try {
-                    worker.join();
-                } catch (InterruptedException ignore) {
-                }
+    /**
+     * Stop all workers of the task without waiting for them, their slots are free right away.
+     * Connections are aborted and files are deleted on {@link #TEARDOWN_THREAD} after the workers
+     * exited, the task isn't scheduled until then.
+     *
+     * @param deleteChunkFiles false to keep downloaded chunks, so {@link #retryTask(int)} can
+     *                         resume the task.
+     * @param deleteTargetFile true to delete the target file, e.g. a partially merged file.
+     */
+    private void cancelAllWorkerOfTask(final Task task, boolean deleteChunkFiles,
+                                       boolean deleteTargetFile) {
+        final List<Thread> workers = new ArrayList<>();
+        final List<String> files = new ArrayList<>();
+        for (Chunk chunk : getTaskManager().getChunksOfTask(task)) {
+            Thread worker = mWorkers.remove(CHUNK_KEY_PREFIX + chunk.getId());
+            if (worker != null) workers.add(worker);
+            Thread hedgeWorker = mWorkers.remove(HEDGE_KEY_PREFIX + chunk.getId());
+            if (hedgeWorker != null) workers.add(hedgeWorker);
+            if (deleteChunkFiles) files.add(chunk.getChunkFile());
+        }
+        if (mBatchTaskIds.remove(task.getId())) {
+            // batch worker keeps fetching other tasks
+            for (Thread thread : mWorkers.values()) {
+                if (thread instanceof BatchWorker) ((BatchWorker) thread).cancelTask(task.getId());
             }
-            getFileManager().deleteFile(chunk.getChunkFile());
+            if (deleteChunkFiles) files.add(getTempFileBeside(task));
         }
-        MergeFileWorker mergeFileWorker = (MergeFileWorker) mWorkers.remove(MERGE_KEY_PREFIX + task.getId());
-        if (mergeFileWorker != null) {
-            mergeFileWorker.interrupt();
-            try {
-                mergeFileWorker.join();
-            } catch (InterruptedException ignore) {
+        mHedgedBytes.remove(task.getId());
+        mFinishedChunkRates.remove(task.getId());
+        mSingleRangeTaskIds.remove(task.getId());
+        Thread multiRangeWorker = mWorkers.remove(RANGES_KEY_PREFIX + task.getId());
+        if (multiRangeWorker != null) workers.add(multiRangeWorker);
+        Thread mergeFileWorker = mWorkers.remove(MERGE_KEY_PREFIX + task.getId());
+        if (mergeFileWorker != null) workers.add(mergeFileWorker);
+        if (deleteTargetFile) files.add(task.getFilePath());
+        for (Thread worker : workers) {
+            stopWorker(worker);
+        }
+        if (workers.isEmpty() && files.isEmpty()) return;
+        mTearingDownTasks.add(task.getId());
+        final FileManager fileManager = getFileManager();
+        mTeardownExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean interrupted = false;
+                for (Thread worker : workers) {
+                    if (worker instanceof ChunkWorker) ((ChunkWorker) worker).abort();
+                    else if (worker instanceof HedgeWorker) ((HedgeWorker) worker).abort();
+                    else if (worker instanceof MultiRangeWorker) ((MultiRangeWorker) worker).abort();
+                }
+                for (Thread worker : workers) {
+                    while (worker.isAlive()) try {
+                        worker.join();
+                    } catch (InterruptedException ex) {
+                        interrupted = true;
+                    }
+                }
+                for (String file : files) {
+                    fileManager.deleteFile(file);
+                }
+                Log.d("Teardown of task-%d finished", task.getId());
+                mModeratorExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        mTearingDownTasks.remove(task.getId());
+                    }
+                });
+                synchronized (lock) {
+                    if (isRunning()) spawnWorker();
+                }
+                if (interrupted) Thread.currentThread().interrupt();
             }
+        });
+    }
+
+    private static void stopWorker(Thread worker) {
+        if (worker instanceof ChunkWorker) ((ChunkWorker) worker).cancel();
+        else if (worker instanceof HedgeWorker) ((HedgeWorker) worker).cancel();
+        else if (worker instanceof MultiRangeWorker) ((MultiRangeWorker) worker).cancel();
+        else worker.interrupt();
+    }
+
+    private void deleteChunksOfTask(Task task) {
+        for (Chunk chunk : getTaskManager().getChunksOfTask(task)) {
+            getFileManager().deleteFile(chunk.getChunkFile());
         }
+        getTaskManager().removeChunksOfTask(task);
     }
 
     @Override
     public void onChunkFinished(final ChunkWorker worker) {
         Log.d("Chunk-%d finished", worker.getChunk().getId());
+        finishSingleChunkTask(worker);
         mModeratorExecutor.execute(new Runnable() {
             @Override
             public void run() {
                 mWorkers.remove(CHUNK_KEY_PREFIX + worker.getChunk().getId());
+                stealWork(worker.getChunk().getTaskId());
+                long rate = worker.getDownloadRate();
+                if (mHedgePolicy.isEnabled() && rate != C.UNSET) {
+                    List<Long> rates = mFinishedChunkRates.get(worker.getChunk().getTaskId());
+                    if (rates == null) {
+                        rates = new ArrayList<>();
+                        mFinishedChunkRates.put(worker.getChunk().getTaskId(), rates);
+                    }
+                    rates.add(rate);
+                }
             }
         });
         synchronized (lock) {
@@ -483,6 +1996,30 @@ public class FileDownloader implements IFileDownloader, ChunkWorkerListener, Mer
         }
     }
 
+    /**
+     * Finish a single chunk task on its chunk worker thread by renaming the chunk file, without a
+     * merge worker thread and the MERGING state. The chunk worker is still registered meanwhile,
+     * so the moderator doesn't spawn a merge worker for the task.
+     */
+    private void finishSingleChunkTask(ChunkWorker worker) {
+        synchronized (lock) {
+            // with leases, merge lease decides which node finishes the task
+            if (!isRunning() || mLeaseStore != null) return;
+        }
+        Task task = getTaskManager().findTask(worker.getChunk().getTaskId());
+        if (task == null || task.isDone()) return;
+        List<Chunk> chunks = getTaskManager().getChunksOfTask(task);
+        if (!isSingleChunkBesideTarget(task, chunks) || !chunks.get(0).isFinished()) return;
+        MergeFileWorker mergeFileWorker = new MergeFileWorker(task, chunks, getFileManager(),
+                mFileSyncer, mMetrics, this);
+        mergeFileWorker.setRenameChunkFile(true);
+        ProcessingPipeline pipeline = worker.getProcessingPipeline();
+        mergeFileWorker.setProcessingPipeline(pipeline != null && !pipeline.isAborted() ? pipeline
+                : newProcessingPipeline(task));
+        // run on this thread, it reports to the same listener as a started merge worker
+        mergeFileWorker.run();
+    }
+
     @Override
     public void onChunkError(final ChunkWorker worker, final String reason, Throwable throwable) {
         Log.e(throwable, "Chunk-%d failed: %s", worker.getChunk().getId(), reason);
@@ -496,15 +2033,20 @@ public class FileDownloader implements IFileDownloader, ChunkWorkerListener, Mer
                     @Override
                     public void run() {
                         Task task = getTaskManager().findTask(worker.getChunk().getTaskId());
-                        if (task != null && task.getState() != Task.State.FAILED) {
-                            cancelAllWorkerOfTaskSync(task);
-                            getFileManager().deleteFile(task.getFilePath());
-                            Task failedTask = getTaskManager().updateTask(task.newBuilder()
-                                    .setState(Task.State.FAILED)
-                                    .setMessage(reason).build());
+                        // with leases, fail the task only while this node owns the chunk
+                        Task failedTask = task == null || task.getState() == Task.State.FAILED
+                                ? null : updateTaskOf(worker, task.newBuilder()
+                                .setState(Task.State.FAILED)
+                                .setMessage(reason).build());
+                        if (failedTask != null) {
+                            cancelAllWorkerOfTask(task, false, true);
                             updateTaskReport(failedTask, false);
+                            mMetrics.getTaskFailures().increment();
+                            completeTaskFuture(getTaskReport(failedTask), false);
                             mEventDispatcher.onTaskFailed(getTaskReport(failedTask));
                         }
+                        String key = CHUNK_KEY_PREFIX + worker.getChunk().getId();
+                        if (mWorkers.get(key) == worker) mWorkers.remove(key);
                     }
                 });
             }
@@ -522,6 +2064,120 @@ public class FileDownloader implements IFileDownloader, ChunkWorkerListener, Mer
         Log.d("Chunk-%d is interrupted", worker.getChunk().getId());
     }
 
+    @Override
+    public void onHedgeFinished(final HedgeWorker worker, final boolean won) {
+        Log.d("Hedge of chunk-%d finished, won: %b", worker.getPrimary().getChunk().getId(), won);
+        mModeratorExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                removeHedgeWorker(worker);
+                if (won) {
+                    mMetrics.getHedgeWins().increment();
+                    Task task = getTaskManager().findTask(worker.getTask().getId());
+                    if (task != null && !task.isDone()) {
+                        updateTaskReport(task, true);
+                        mEventDispatcher.onTaskUpdated(getTaskReport(task));
+                    }
+                }
+            }
+        });
+        synchronized (lock) {
+            if (isRunning()) spawnWorker();
+        }
+    }
+
+    @Override
+    public void onHedgeError(final HedgeWorker worker, String reason, Throwable throwable) {
+        // primary chunk worker is still downloading the range, hedge error doesn't fail the task
+        Log.d(throwable, "Hedge of chunk-%d failed: %s", worker.getPrimary().getChunk().getId(), reason);
+        mModeratorExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                removeHedgeWorker(worker);
+            }
+        });
+        synchronized (lock) {
+            if (isRunning()) spawnWorker();
+        }
+    }
+
+    @Override
+    public void onHedgeInterrupted(final HedgeWorker worker) {
+        mModeratorExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                removeHedgeWorker(worker);
+            }
+        });
+        Log.d("Hedge of chunk-%d is interrupted", worker.getPrimary().getChunk().getId());
+    }
+
+    @Override
+    public void onMultiRangeFinished(final MultiRangeWorker worker, final int unfinishedChunks) {
+        Log.d("Multi-range worker of task-%d finished, %d chunks left", worker.getTask().getId(),
+                unfinishedChunks);
+        // ranges left out by the origin are fetched by chunk workers
+        removeMultiRangeWorker(worker, unfinishedChunks > 0, false);
+    }
+
+    @Override
+    public void onMultiRangeUnsupported(MultiRangeWorker worker) {
+        Log.d("Origin of task-%d doesn't support multi-range, fall back to single ranges",
+                worker.getTask().getId());
+        removeMultiRangeWorker(worker, false, true);
+    }
+
+    @Override
+    public void onMultiRangeError(MultiRangeWorker worker, String reason, Throwable throwable) {
+        // chunk workers retry the ranges with the retry policy, multi-range error doesn't fail the task
+        Log.d(throwable, "Multi-range worker of task-%d failed: %s", worker.getTask().getId(), reason);
+        removeMultiRangeWorker(worker, true, false);
+    }
+
+    @Override
+    public void onMultiRangeInterrupted(final MultiRangeWorker worker) {
+        mModeratorExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                String key = RANGES_KEY_PREFIX + worker.getTask().getId();
+                if (mWorkers.get(key) == worker) mWorkers.remove(key);
+            }
+        });
+        Log.d("Multi-range worker of task-%d is interrupted", worker.getTask().getId());
+    }
+
+    /**
+     * @param singleRangeTask   fetch remaining chunks of the task with single range requests.
+     * @param singleRangeOrigin fetch all tasks of the origin with single range requests.
+     */
+    private void removeMultiRangeWorker(final MultiRangeWorker worker, final boolean singleRangeTask,
+                                        final boolean singleRangeOrigin) {
+        mModeratorExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                String key = RANGES_KEY_PREFIX + worker.getTask().getId();
+                // task was cancelled if the worker isn't registered anymore
+                if (mWorkers.get(key) != worker) return;
+                mWorkers.remove(key);
+                if (singleRangeTask) mSingleRangeTaskIds.add(worker.getTask().getId());
+                if (singleRangeOrigin) mSingleRangeOrigins.add(getOrigin(worker.getTask()));
+                Task task = getTaskManager().findTask(worker.getTask().getId());
+                if (task != null && !task.isDone()) {
+                    updateTaskReport(task, true);
+                    mEventDispatcher.onTaskUpdated(getTaskReport(task));
+                }
+            }
+        });
+        synchronized (lock) {
+            if (isRunning()) spawnWorker();
+        }
+    }
+
+    private void removeHedgeWorker(HedgeWorker worker) {
+        String key = HEDGE_KEY_PREFIX + worker.getPrimary().getChunk().getId();
+        if (mWorkers.get(key) == worker) mWorkers.remove(key);
+    }
+
     @Override
     public void onMergeFileFinished(final MergeFileWorker worker, final long fileLength, String checkSum) {
         final Task task = worker.getTask();
@@ -529,12 +2185,25 @@ public class FileDownloader implements IFileDownloader, ChunkWorkerListener, Mer
         synchronized (lock) {
             if (isRunning()) spawnWorker();
             if (!isReleased()) {
-                Task finishedTask = getTaskManager().updateTask(task.newBuilder()
+                Task finishedTask = updateTaskOf(worker, task.newBuilder()
                         .setLength(fileLength)
                         .setState(Task.State.FINISHED)
                         .setCheckSum(task.getCheckSumAlgorithm(), checkSum)
+                        .setStageResults(worker.getStageResults())
                         .setMessage("Successful").build());
+                if (finishedTask == null) {
+                    // another node took over merging, it still needs the chunk files
+                    mModeratorExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            mWorkers.remove(MERGE_KEY_PREFIX + worker.getTask().getId());
+                        }
+                    });
+                    return;
+                }
+                mProcessingStages.remove(task.getId());
                 updateTaskReport(finishedTask, false);
+                completeTaskFuture(getTaskReport(finishedTask), false);
                 mEventDispatcher.onTaskFinished(getTaskReport(finishedTask));
                 mModeratorExecutor.execute(new Runnable() {
                     @Override
@@ -554,28 +2223,31 @@ public class FileDownloader implements IFileDownloader, ChunkWorkerListener, Mer
     public void onMergeFileError(final MergeFileWorker worker, final String reason, Throwable error) {
         final Task task = worker.getTask();
         Log.e(error, "Merge task-%d failed: %s", task.getId(), reason);
-        mModeratorExecutor.execute(new Runnable() {
-            @Override
-            public void run() {
-                mWorkers.remove(MERGE_KEY_PREFIX + worker.getTask().getId());
-            }
-        });
         synchronized (lock) {
-            if (isRunning()) spawnWorker();
             if (!isReleased()) {
                 mModeratorExecutor.execute(new Runnable() {
                     @Override
                     public void run() {
-                        cancelAllWorkerOfTaskSync(task);
-                        getFileManager().deleteFile(task.getFilePath());
-                        Task failedTask = getTaskManager().updateTask(task.newBuilder()
+                        Task failedTask = updateTaskOf(worker, task.newBuilder()
                                 .setState(Task.State.FAILED)
                                 .setMessage(reason).build());
+                        if (failedTask == null) return;
+                        cancelAllWorkerOfTask(task, false, true);
                         updateTaskReport(failedTask, false);
+                        mMetrics.getTaskFailures().increment();
+                        completeTaskFuture(getTaskReport(failedTask), false);
                         mEventDispatcher.onTaskFailed(getTaskReport(failedTask));
                     }
                 });
             }
+            // after the task is FAILED, or spawnWorker() merges it again
+            mModeratorExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mWorkers.remove(MERGE_KEY_PREFIX + worker.getTask().getId());
+                }
+            });
+            if (isRunning()) spawnWorker();
         }
     }
 
@@ -594,12 +2266,6 @@ public class FileDownloader implements IFileDownloader, ChunkWorkerListener, Mer
     public void onCheckSumFailed(final MergeFileWorker worker, final String algorithm, String expect, String found) {
         final Task task = worker.getTask();
         Log.e("task-%d onCheckSumFailed (%s) [%s] [%s]", task.getId(), algorithm, expect, found);
-        mModeratorExecutor.execute(new Runnable() {
-            @Override
-            public void run() {
-                mWorkers.remove(MERGE_KEY_PREFIX + worker.getTask().getId());
-            }
-        });
         final boolean shouldDeleteFile = onChecksumMismatch(task, algorithm, expect, found);
         synchronized (lock) {
             if (isRunning()) spawnWorker();
@@ -607,16 +2273,149 @@ public class FileDownloader implements IFileDownloader, ChunkWorkerListener, Mer
                 mModeratorExecutor.execute(new Runnable() {
                     @Override
                     public void run() {
-                        cancelAllWorkerOfTaskSync(task);
-                        if (shouldDeleteFile) getFileManager().deleteFile(task.getFilePath());
-                        Task failedTask = getTaskManager().updateTask(task.newBuilder()
+                        Task failedTask = updateTaskOf(worker, task.newBuilder()
                                 .setState(Task.State.FAILED)
                                 .setMessage(algorithm + " checksum mismatch").build());
+                        if (failedTask == null) return;
+                        cancelAllWorkerOfTask(task, true, shouldDeleteFile);
                         updateTaskReport(failedTask, false);
+                        mMetrics.getTaskFailures().increment();
+                        completeTaskFuture(getTaskReport(failedTask), false);
                         mEventDispatcher.onTaskFailed(getTaskReport(failedTask));
                     }
                 });
             }
+            // after the task is FAILED, like onMergeFileError()
+            mModeratorExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mWorkers.remove(MERGE_KEY_PREFIX + worker.getTask().getId());
+                }
+            });
+        }
+    }
+
+    @Override
+    public Task pollBatchTask(BatchWorker worker) {
+        Queue<Integer> queue = mBatchQueues.get(worker.getOrigin());
+        Integer taskId;
+        while (queue != null && (taskId = queue.poll()) != null) {
+            Task task = getTaskManager().findTask(taskId);
+            synchronized (lock) {
+                if (!isRunning()) {
+                    // fetch it first after resumed
+                    ((ConcurrentLinkedDeque<Integer>) queue).addFirst(taskId);
+                    return null;
+                }
+                // cancelled or removed while it was queued
+                if (task == null || task.getState() != Task.State.IDLE) continue;
+                task = getTaskManager().updateTask(task.newBuilder()
+                        .setState(Task.State.DOWNLOADING).build());
+                updateTaskReport(task, false);
+                mEventDispatcher.onTaskUpdated(getTaskReport(task));
+                return task;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void onBatchTaskFinished(BatchWorker worker, Task task, long fileLength, String checkSum,
+                                    Map<String, String> stageResults) {
+        Log.d("Batch task-%d is finished", task.getId());
+        synchronized (lock) {
+            try {
+                if (isReleased()) return;
+                Task current = getTaskManager().findTask(task.getId());
+                // it is IDLE if downloader was paused meanwhile
+                if (current == null || current.isDone()) {
+                    // cancelled while it was fetched
+                    if (current != null) getFileManager().deleteFile(current.getFilePath());
+                    return;
+                }
+                Task finishedTask = getTaskManager().updateTask(current.newBuilder()
+                        .setLength(fileLength)
+                        .setState(Task.State.FINISHED)
+                        .setCheckSum(current.getCheckSumAlgorithm(), checkSum)
+                        .setStageResults(stageResults)
+                        .setMessage("Successful").build());
+                mProcessingStages.remove(task.getId());
+                updateTaskReport(finishedTask, false);
+                completeTaskFuture(getTaskReport(finishedTask), false);
+                mEventDispatcher.onTaskFinished(getTaskReport(finishedTask));
+            } finally {
+                // only after the task left DOWNLOADING, it has no chunks for spawnWorker()
+                mBatchTaskIds.remove(task.getId());
+            }
+        }
+    }
+
+    @Override
+    public void onBatchTaskError(BatchWorker worker, Task task, String reason, Throwable error) {
+        Log.e(error, "Batch task-%d failed: %s", task.getId(), reason);
+        failBatchTask(task.getId(), reason);
+    }
+
+    @Override
+    public void onBatchTaskCheckSumFailed(BatchWorker worker, Task task, String algorithm,
+                                          String expect, String found) {
+        Log.e("task-%d onCheckSumFailed (%s) [%s] [%s]", task.getId(), algorithm, expect, found);
+        // file is never renamed to the target, nothing to delete
+        onChecksumMismatch(task, algorithm, expect, found);
+        failBatchTask(task.getId(), algorithm + " checksum mismatch");
+    }
+
+    private void failBatchTask(final int taskId, final String reason) {
+        synchronized (lock) {
+            if (isReleased()) return;
+            mModeratorExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mBatchTaskIds.remove(taskId);
+                    Task task = getTaskManager().findTask(taskId);
+                    if (task == null || task.isDone()) return;
+                    Task failedTask = getTaskManager().updateTask(task.newBuilder()
+                            .setState(Task.State.FAILED)
+                            .setMessage(reason).build());
+                    updateTaskReport(failedTask, false);
+                    mMetrics.getTaskFailures().increment();
+                    completeTaskFuture(getTaskReport(failedTask), false);
+                    mEventDispatcher.onTaskFailed(getTaskReport(failedTask));
+                }
+            });
+        }
+    }
+
+    @Override
+    public void onBatchTaskInterrupted(final BatchWorker worker, final Task task) {
+        Log.d("Batch task-%d is interrupted", task.getId());
+        mModeratorExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mWorkers.values().remove(worker);
+                mBatchTaskIds.remove(task.getId());
+                Task current = getTaskManager().findTask(task.getId());
+                if (current != null && current.getState() == Task.State.DOWNLOADING) {
+                    // queued again when workers are spawned
+                    current = getTaskManager().updateTask(current.newBuilder()
+                            .setState(Task.State.IDLE).build());
+                    updateTaskReport(current, false);
+                    mEventDispatcher.onTaskUpdated(getTaskReport(current));
+                }
+            }
+        });
+    }
+
+    @Override
+    public void onBatchWorkerFinished(final BatchWorker worker) {
+        mModeratorExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mWorkers.values().remove(worker);
+            }
+        });
+        synchronized (lock) {
+            if (isRunning()) spawnWorker();
         }
     }
 
@@ -0,0 +1,147 @@
+package io.github.khangnt.downloader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import io.github.khangnt.downloader.model.Task;
+
+/**
+ * Adapt a plain {@link FileManager} to {@link ExtendedFileManager}, operations it doesn't have
+ * are emulated by copying files, or skipped:
+ * <ul>
+ * <li>positional writes only start at the beginning or the end of a file</li>
+ * <li>truncate and rename copy the file</li>
+ * <li>preallocate and sync are no-op, files aren't durable</li>
+ * <li>directories aren't created, opening a file must create its parents</li>
+ * <li>usable space is unknown</li>
+ * </ul>
+ */
+public class FileManagerAdapter implements ExtendedFileManager {
+    private static final int BUFFER_SIZE = 16 * 1024; // 16 KB
+    private static final String TRUNCATE_SUFFIX = ".truncate";
+
+    private final FileManager mFileManager;
+
+    /**
+     * @return the file manager itself if it is an {@link ExtendedFileManager}, otherwise an adapter.
+     */
+    public static ExtendedFileManager of(FileManager fileManager) {
+        if (fileManager == null || fileManager instanceof ExtendedFileManager)
+            return (ExtendedFileManager) fileManager;
+        return new FileManagerAdapter(fileManager);
+    }
+
+    private FileManagerAdapter(FileManager fileManager) {
+        mFileManager = fileManager;
+    }
+
+    @Override
+    public OutputStream openWritableFile(String filePath, boolean append) throws IOException {
+        return mFileManager.openWritableFile(filePath, append);
+    }
+
+    @Override
+    public OutputStream openWritableFileAt(String filePath, long position) throws IOException {
+        if (position == 0) return mFileManager.openWritableFile(filePath, false);
+        long fileSize = mFileManager.isFileExists(filePath) ? mFileManager.getFileSize(filePath) : 0;
+        if (position == fileSize) return mFileManager.openWritableFile(filePath, true);
+        throw new IOException("Can't write " + filePath + " at " + position + ", "
+                + mFileManager.getClass().getName() + " doesn't support positional writes");
+    }
+
+    @Override
+    public InputStream openReadableFile(String filePath) throws IOException {
+        return mFileManager.openReadableFile(filePath);
+    }
+
+    @Override
+    public boolean isFileExists(String filePath) {
+        return mFileManager.isFileExists(filePath);
+    }
+
+    @Override
+    public long getFileSize(String filePath) {
+        return mFileManager.getFileSize(filePath);
+    }
+
+    @Override
+    public void deleteFile(String filePath) {
+        mFileManager.deleteFile(filePath);
+    }
+
+    @Override
+    public void truncateFile(String filePath, long length) throws IOException {
+        if (!mFileManager.isFileExists(filePath) || mFileManager.getFileSize(filePath) <= length)
+            return;
+        if (length == 0) {
+            mFileManager.openWritableFile(filePath, false).close();
+            return;
+        }
+        // copy the kept bytes out and back, a plain file manager can only rewrite a whole file
+        String copyPath = filePath + TRUNCATE_SUFFIX;
+        try {
+            copy(filePath, copyPath, length);
+            copy(copyPath, filePath, length);
+        } finally {
+            mFileManager.deleteFile(copyPath);
+        }
+    }
+
+    @Override
+    public void preallocateFile(String filePath, long length) {
+    }
+
+    @Override
+    public void syncFile(String filePath) {
+    }
+
+    @Override
+    public void renameFile(String fromPath, String toPath) throws IOException {
+        // not atomic, the target is partly written if the copy fails
+        copy(fromPath, toPath, Long.MAX_VALUE);
+        mFileManager.deleteFile(fromPath);
+    }
+
+    @Override
+    public void createDirectories(String dirPath) {
+    }
+
+    @Override
+    public long getUsableSpace(String filePath) {
+        return C.UNSET;
+    }
+
+    @Override
+    public boolean isSameFileStore(String filePath1, String filePath2) {
+        return true;
+    }
+
+    @Override
+    public String getUniqueTempFile(Task task) throws Exception {
+        return mFileManager.getUniqueTempFile(task);
+    }
+
+    private void copy(String fromPath, String toPath, long length) throws IOException {
+        InputStream is = mFileManager.openReadableFile(fromPath);
+        try {
+            OutputStream os = mFileManager.openWritableFile(toPath, false);
+            try {
+                int len;
+                byte buffer[] = new byte[BUFFER_SIZE];
+                while (length > 0
+                        && (len = is.read(buffer, 0, (int) Math.min(BUFFER_SIZE, length))) > 0) {
+                    os.write(buffer, 0, len);
+                    length -= len;
+                }
+            } finally {
+                os.close();
+            }
+        } finally {
+            try {
+                is.close();
+            } catch (Exception ignore) {
+            }
+        }
+    }
+}
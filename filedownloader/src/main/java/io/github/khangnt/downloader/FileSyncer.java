@@ -0,0 +1,178 @@
+package io.github.khangnt.downloader;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Force files to disk. {@link #sync(String)} syncs on the calling thread, so workers committing
+ * their own chunk files sync in parallel. Background requests of {@link #requestSync(String,
+ * Callback)} are served by a dedicated thread, requests queued while a round is syncing are
+ * grouped in the next round, a file requested many times is synced once per round.
+ */
+public class FileSyncer implements Runnable {
+    public static final String FILE_SYNCER_THREAD = "FileSyncerThread";
+    public static final long DEFAULT_SYNC_PERIOD = 1000; // 1 second
+    public static final long DEFAULT_COMMIT_INTERVAL_BYTES = 4 * 1024 * 1024L; // 4MB
+
+    public interface Callback {
+        /**
+         * @param durableLength bytes of file which are surely on disk.
+         */
+        void onSynced(long durableLength);
+        void onSyncFailed(IOException error);
+    }
+
+    private final ExtendedFileManager mFileManager;
+    private final DurabilityPolicy mPolicy;
+    private final long mSyncPeriod;
+    private final long mCommitIntervalBytes;
+
+    private Map<String, List<Callback>> mPendingRequests = new LinkedHashMap<>();
+    private Thread mSyncerThread;
+    private long mSyncCount;
+    private long mRequestCount;
+
+    public FileSyncer(FileManager fileManager, DurabilityPolicy policy) {
+        this(fileManager, policy, DEFAULT_SYNC_PERIOD, DEFAULT_COMMIT_INTERVAL_BYTES);
+    }
+
+    /**
+     * @param syncPeriod          interval in milliseconds between background syncs of a chunk file,
+     *                            used by {@link DurabilityPolicy#PERIODIC}.
+     * @param commitIntervalBytes bytes a chunk worker downloads between two commits, used by
+     *                            {@link DurabilityPolicy#GROUP_COMMIT}.
+     */
+    public FileSyncer(FileManager fileManager, DurabilityPolicy policy, long syncPeriod,
+                      long commitIntervalBytes) {
+        if (syncPeriod <= 0 || commitIntervalBytes <= 0)
+            throw new IllegalArgumentException("Sync period and commit interval must > 0");
+        mFileManager = FileManagerAdapter.of(fileManager);
+        mPolicy = policy;
+        mSyncPeriod = syncPeriod;
+        mCommitIntervalBytes = commitIntervalBytes;
+    }
+
+    public DurabilityPolicy getPolicy() {
+        return mPolicy;
+    }
+
+    public long getSyncPeriod() {
+        return mSyncPeriod;
+    }
+
+    public long getCommitIntervalBytes() {
+        return mCommitIntervalBytes;
+    }
+
+    /**
+     * @return number of fsync calls.
+     */
+    public synchronized long getSyncCount() {
+        return mSyncCount;
+    }
+
+    /**
+     * @return number of sync requests, greater than {@link #getSyncCount()} when requests are
+     * grouped.
+     */
+    public synchronized long getRequestCount() {
+        return mRequestCount;
+    }
+
+    /**
+     * Queue a sync request, callback is invoked on syncer thread. Requests queued while the
+     * syncer is shutting down are served before its thread exits.
+     */
+    public void requestSync(String filePath, Callback callback) {
+        synchronized (this) {
+            List<Callback> callbacks = mPendingRequests.get(filePath);
+            if (callbacks == null) {
+                callbacks = new ArrayList<>();
+                mPendingRequests.put(filePath, callbacks);
+            }
+            callbacks.add(callback);
+            mRequestCount++;
+            if (mSyncerThread == null) {
+                mSyncerThread = new Thread(this, FILE_SYNCER_THREAD);
+                mSyncerThread.setDaemon(true);
+                mSyncerThread.start();
+            }
+            notifyAll();
+        }
+    }
+
+    /**
+     * Sync the file on the calling thread, the caller records its durable length after this
+     * returns.
+     *
+     * @return bytes of file which are surely on disk.
+     */
+    public long sync(String filePath) throws IOException, InterruptedException {
+        if (Thread.interrupted()) throw new InterruptedException();
+        synchronized (this) {
+            mRequestCount++;
+        }
+        // bytes written before fsync starts are durable after it returns
+        long durableLength = mFileManager.getFileSize(filePath);
+        mFileManager.syncFile(filePath);
+        synchronized (this) {
+            mSyncCount++;
+        }
+        return durableLength;
+    }
+
+    /**
+     * Stop the syncer thread after it served pending requests.
+     */
+    public void shutdown() {
+        synchronized (this) {
+            // the thread clears itself when it exits, a new one isn't started meanwhile
+            if (mSyncerThread != null) mSyncerThread.interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        boolean stopping = false;
+        while (true) {
+            Map<String, List<Callback>> requests;
+            synchronized (this) {
+                if (!stopping && mPendingRequests.isEmpty()) try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // serve remaining requests before stop, their callers may be waiting
+                    stopping = true;
+                }
+                if (mPendingRequests.isEmpty()) {
+                    if (stopping) {
+                        mSyncerThread = null;
+                        break;
+                    }
+                    continue;
+                }
+                requests = mPendingRequests;
+                mPendingRequests = new LinkedHashMap<>();
+            }
+            for (Map.Entry<String, List<Callback>> entry : requests.entrySet()) {
+                IOException error = null;
+                // bytes written before fsync starts are durable after it returns
+                long durableLength = mFileManager.getFileSize(entry.getKey());
+                try {
+                    mFileManager.syncFile(entry.getKey());
+                } catch (IOException ex) {
+                    error = ex;
+                }
+                synchronized (this) {
+                    mSyncCount++;
+                }
+                for (Callback callback : entry.getValue()) {
+                    if (error == null) callback.onSynced(durableLength);
+                    else callback.onSyncFailed(error);
+                }
+            }
+        }
+    }
+}
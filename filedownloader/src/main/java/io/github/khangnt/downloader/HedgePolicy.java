@@ -0,0 +1,61 @@
+package io.github.khangnt.downloader;
+
+/**
+ * When a straggling chunk gets a second, speculative request for its remaining range.
+ * The first request to finish wins and the other one is cancelled.
+ */
+public class HedgePolicy {
+    public static final HedgePolicy DISABLED = new HedgePolicy(0, 0, 0, 0);
+
+    private final double mSlowRatio;
+    private final long mMinElapsedMillis;
+    private final double mMaxExtraBytesRatio;
+    private final long mCheckIntervalMillis;
+
+    /**
+     * @param slowRatio          a chunk is straggling if its download rate is lower than
+     *                           {@code slowRatio} times the median rate of its task's chunks.
+     * @param minElapsedMillis   a chunk isn't judged before it has been downloading for this long.
+     * @param maxExtraBytesRatio cap of bytes requested by hedges of a task, as a ratio of the
+     *                           task length.
+     * @param checkIntervalMillis interval between two straggler checks.
+     */
+    public HedgePolicy(double slowRatio, long minElapsedMillis, double maxExtraBytesRatio,
+                       long checkIntervalMillis) {
+        if (slowRatio < 0 || slowRatio >= 1)
+            throw new IllegalArgumentException("Slow ratio must in range [0, 1)");
+        if (minElapsedMillis < 0 || maxExtraBytesRatio < 0 || checkIntervalMillis < 0)
+            throw new IllegalArgumentException("Hedge policy arguments can't < 0");
+        mSlowRatio = slowRatio;
+        mMinElapsedMillis = minElapsedMillis;
+        mMaxExtraBytesRatio = maxExtraBytesRatio;
+        mCheckIntervalMillis = checkIntervalMillis;
+    }
+
+    /**
+     * Hedge chunks slower than 1/4 of the median after 3 seconds, spend at most 5% extra bytes.
+     */
+    public static HedgePolicy createDefault() {
+        return new HedgePolicy(0.25, 3000, 0.05, 1000);
+    }
+
+    public boolean isEnabled() {
+        return mSlowRatio > 0 && mMaxExtraBytesRatio > 0 && mCheckIntervalMillis > 0;
+    }
+
+    public double getSlowRatio() {
+        return mSlowRatio;
+    }
+
+    public long getMinElapsedMillis() {
+        return mMinElapsedMillis;
+    }
+
+    public double getMaxExtraBytesRatio() {
+        return mMaxExtraBytesRatio;
+    }
+
+    public long getCheckIntervalMillis() {
+        return mCheckIntervalMillis;
+    }
+}
@@ -30,6 +30,26 @@ public interface HttpClient {
         }
     }
 
+    /**
+     * Implemented by streams returned from {@link #openConnection(Task, Map)} which can be closed
+     * from another thread, to unblock a read before the read timeout. Abort may block until the
+     * read returns if the underlying stream can't be closed while it is read.
+     */
+    interface Abortable {
+        void abort();
+    }
+
+    /**
+     * Implemented by streams returned from {@link #openConnection(Task, Map)} which expose headers
+     * of the response, e.g. Content-Type and Content-Range of a multi-range response.
+     */
+    interface ResponseHeaders {
+        /**
+         * @return value of the header, or null if the response doesn't have it.
+         */
+        String getHeaderField(String name);
+    }
+
     InputStream openConnection(Task task, Map<String, String> headers) throws IOException;
     ContentDescription fetchContentDescription(Task task);
 }
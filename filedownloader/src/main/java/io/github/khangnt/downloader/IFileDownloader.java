@@ -4,6 +4,9 @@ import java.util.Collection;
 import java.util.List;
 import java.util.concurrent.Executor;
 
+import io.github.khangnt.downloader.metrics.EventTracer;
+import io.github.khangnt.downloader.metrics.Metrics;
+import io.github.khangnt.downloader.metrics.MetricsExporter;
 import io.github.khangnt.downloader.model.Task;
 import io.github.khangnt.downloader.model.TaskReport;
 
@@ -22,19 +25,140 @@ public interface IFileDownloader {
     boolean isReleased();
 
     Task addTask(Task task);
+
+    /**
+     * Same as {@link #addTask(Task)}, returns a future completed when the task is finished,
+     * failed or cancelled.
+     */
+    TaskFuture submitTask(Task task);
+
+    /**
+     * Add tasks as a group, the group is a future of all tasks and reports their total progress.
+     */
+    TaskGroup submitTasks(Collection<Task> tasks);
+
+    /**
+     * @return future of the task, completed right away if the task is done already.
+     */
+    TaskFuture getTaskFuture(int taskId);
     void cancelTask(int taskId);
 
+    /**
+     * Resume a failed task, chunks downloaded before the failure are kept.
+     */
+    void retryTask(int taskId);
+
+    /**
+     * Open a stream reads content of the task in order while it is downloading, blocks at
+     * positions not downloaded yet. Use {@link java.nio.channels.Channels#newChannel(InputStream)}
+     * for a {@link java.nio.channels.ReadableByteChannel}.
+     */
+    TaskInputStream openInputStream(int taskId);
+
+    /**
+     * Attach a stage consuming content of the task while it is merged or fetched, the task is
+     * finished after all of its stages return, with their results in
+     * {@link io.github.khangnt.downloader.model.Task#getStageResults()}. Attach stages before the
+     * task is merged, stages aren't persisted.
+     */
+    void addProcessingStage(int taskId, ProcessingStage stage);
+
     int getMaxWorkers();
     void setMaxWorkers(int maxWorkers);
 
+    AllocationPolicy getAllocationPolicy();
+    void setAllocationPolicy(AllocationPolicy allocationPolicy);
+
+    /**
+     * @return write-behind stage used by chunk workers, or null if they write to disk directly.
+     */
+    DiskWriter getDiskWriter();
+    void setDiskWriter(DiskWriter diskWriter);
+
+    DurabilityPolicy getDurabilityPolicy();
+    void setDurabilityPolicy(DurabilityPolicy durabilityPolicy);
+
+    RetryPolicy getRetryPolicy();
+    void setRetryPolicy(RetryPolicy retryPolicy);
+
+    /**
+     * @return circuit breaker shared by connections of all tasks, null if disabled.
+     */
+    CircuitBreaker getCircuitBreaker();
+    void setCircuitBreaker(CircuitBreaker circuitBreaker);
+
+    /**
+     * @return tuner adjusts connections per origin, null if connections are only limited by
+     * {@link #getMaxWorkers()} and {@link Task#getMaxParallelConnections()}.
+     */
+    ConcurrencyTuner getConcurrencyTuner();
+    void setConcurrencyTuner(ConcurrencyTuner concurrencyTuner);
+
+    /**
+     * Default is {@link HedgePolicy#DISABLED}.
+     */
+    HedgePolicy getHedgePolicy();
+    void setHedgePolicy(HedgePolicy hedgePolicy);
+
+    /**
+     * Default is {@link BatchPolicy#DISABLED}.
+     */
+    BatchPolicy getBatchPolicy();
+    void setBatchPolicy(BatchPolicy batchPolicy);
+
+    /**
+     * Default is {@link MultiRangePolicy#DISABLED}. Multi-range responses are read from streams
+     * implementing {@link HttpClient.ResponseHeaders}, like those of {@link DefaultHttpClient},
+     * other http clients always fall back to single range requests.
+     */
+    MultiRangePolicy getMultiRangePolicy();
+    void setMultiRangePolicy(MultiRangePolicy multiRangePolicy);
+
+    /**
+     * Share tasks with other downloader nodes using the same task manager: each chunk, merge and
+     * initialization of a task is done by the node holding its lease in the lease store, leases
+     * of a node which stopped renewing are taken over after TTL. Pass null to disable (default).
+     */
+    LeaseStore getLeaseStore();
+    void setLeaseStore(LeaseStore leaseStore, String nodeId, long leaseTtlMillis);
+
+    /**
+     * Listeners are kept by weak reference. Default wait strategy of ring mode is
+     * {@link WaitStrategy#BLOCKING}.
+     */
     void registerListener(EventListener listener, Executor executor);
+    void registerListener(EventListener listener, Executor executor, WaitStrategy waitStrategy);
     void clearAllListener();
     void unregisterListener(EventListener listener);
 
+    /**
+     * Dispatch events through a preallocated ring of this many slots (rounded up to a power of
+     * two): producers don't lock nor allocate, each listener follows the ring on its own thread
+     * and its executor gets events one at a time. A listener falling a whole ring behind misses
+     * the overwritten events. 0 (default) posts a runnable per event to each listener's executor.
+     * Must be set before any listener is registered.
+     */
+    int getEventRingCapacity();
+    void setEventRingCapacity(int capacity);
+
     void setOnChecksumMismatchListener(OnChecksumMismatchListener listener);
 
     long getSpeed();
 
+    Metrics getMetrics();
+
+    /**
+     * Export {@link #getMetrics()} every period, pass {@link MetricsExporter#NONE} to stop.
+     *
+     * @throws IllegalArgumentException if period isn't positive, the current exporter is kept.
+     */
+    void setMetricsExporter(MetricsExporter exporter, long periodMillis);
+
+    /**
+     * Report task, chunk and moderator lifecycle events, default is {@link EventTracer#NONE}.
+     */
+    void setEventTracer(EventTracer eventTracer);
+
     TaskReport getTaskReport(Task task);
     List<TaskReport> getTaskReports(Collection<Task> tasks);
 
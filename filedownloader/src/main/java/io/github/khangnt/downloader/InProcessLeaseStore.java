@@ -0,0 +1,63 @@
+package io.github.khangnt.downloader;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import io.github.khangnt.downloader.exception.LeaseLostException;
+
+/**
+ * Lease store for downloaders in the same process, e.g. to test nodes sharing a task manager.
+ */
+public class InProcessLeaseStore implements LeaseStore {
+    private final Map<String, Entry> mEntries = new HashMap<>();
+    private long mLastToken;
+
+    @Override
+    public synchronized Lease acquire(String key, String owner, long ttlMillis) {
+        long now = System.currentTimeMillis();
+        Entry entry = mEntries.get(key);
+        boolean expired = entry != null && now >= entry.mExpireTime;
+        if (entry != null && !expired && !entry.mOwner.equals(owner)) return null;
+        // owner acquiring its own lease again gets a new token too, its older lease is superseded
+        Entry newEntry = new Entry(owner, ++mLastToken, now + ttlMillis);
+        mEntries.put(key, newEntry);
+        return new Lease(key, owner, newEntry.mToken, expired);
+    }
+
+    @Override
+    public synchronized boolean renew(Lease lease, long ttlMillis) {
+        Entry entry = mEntries.get(lease.getKey());
+        if (entry == null || entry.mToken != lease.getToken()) return false;
+        entry.mExpireTime = System.currentTimeMillis() + ttlMillis;
+        return true;
+    }
+
+    @Override
+    public synchronized void release(Lease lease) {
+        Entry entry = mEntries.get(lease.getKey());
+        if (entry != null && entry.mToken == lease.getToken()) mEntries.remove(lease.getKey());
+    }
+
+    @Override
+    public <T> T callFenced(Lease lease, Callable<T> action) throws Exception {
+        synchronized (this) {
+            Entry entry = mEntries.get(lease.getKey());
+            if (entry == null || entry.mToken != lease.getToken())
+                throw new LeaseLostException("Lease lost: " + lease);
+            return action.call();
+        }
+    }
+
+    private static class Entry {
+        private final String mOwner;
+        private final long mToken;
+        private long mExpireTime;
+
+        private Entry(String owner, long token, long expireTime) {
+            mOwner = owner;
+            mToken = token;
+            mExpireTime = expireTime;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package io.github.khangnt.downloader;
+
+import java.util.concurrent.Callable;
+
+/**
+ * Leases shared by downloader nodes using the same {@link TaskManager} backend, so only one node
+ * initializes a task, downloads a chunk or merges a task at a time.
+ * <p>
+ * A lease expires unless it is renewed. Every new lease of a key gets a greater fencing token,
+ * writes to the task manager made with an older lease are rejected by
+ * {@link #callFenced(Lease, Callable)}.
+ */
+public interface LeaseStore {
+
+    class Lease {
+        private final String mKey;
+        private final String mOwner;
+        private final long mToken;
+        private final boolean mReclaimed;
+
+        public Lease(String key, String owner, long token, boolean reclaimed) {
+            this.mKey = key;
+            this.mOwner = owner;
+            this.mToken = token;
+            this.mReclaimed = reclaimed;
+        }
+
+        public String getKey() {
+            return mKey;
+        }
+
+        public String getOwner() {
+            return mOwner;
+        }
+
+        public long getToken() {
+            return mToken;
+        }
+
+        /**
+         * @return true if the previous lease of the key expired without being released, its owner
+         * may have left the work half done.
+         */
+        public boolean isReclaimed() {
+            return mReclaimed;
+        }
+
+        @Override
+        public String toString() {
+            return "Lease{" +
+                    "mKey='" + mKey + '\'' +
+                    ", mOwner='" + mOwner + '\'' +
+                    ", mToken=" + mToken +
+                    ", mReclaimed=" + mReclaimed +
+                    '}';
+        }
+    }
+
+    /**
+     * Acquire a lease of the key with a new token, also if the owner holds the key already: the
+     * older lease of the owner is superseded, so releasing it doesn't release the new one.
+     *
+     * @return new lease, or null if the key is leased by another owner and the lease isn't
+     * expired.
+     */
+    Lease acquire(String key, String owner, long ttlMillis);
+
+    /**
+     * @return false if the lease was taken over by a newer lease.
+     */
+    boolean renew(Lease lease, long ttlMillis);
+
+    void release(Lease lease);
+
+    /**
+     * Call the action only if the lease is the latest lease of its key, atomically with
+     * {@link #acquire(String, String, long)} of the key.
+     *
+     * @throws io.github.khangnt.downloader.exception.LeaseLostException if the lease was taken
+     *                                                                  over.
+     */
+    <T> T callFenced(Lease lease, Callable<T> action) throws Exception;
+}
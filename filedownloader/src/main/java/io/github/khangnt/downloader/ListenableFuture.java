@@ -0,0 +1,119 @@
+package io.github.khangnt.downloader;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Future which runs listeners when it is done, completed by the downloader instead of a
+ * thread pool.
+ */
+public abstract class ListenableFuture<V> implements Future<V> {
+    private static final int PENDING = 0;
+    private static final int SUCCEEDED = 1;
+    private static final int FAILED = 2;
+    private static final int CANCELLED = 3;
+
+    private int mState = PENDING;
+    private V mValue;
+    private Throwable mError;
+    private List<Runnable> mListeners = new ArrayList<>();
+
+    /**
+     * Run the listener on the executor when this future is done, right away if it is done
+     * already. Listeners of a future completed by the downloader must not block if they are run
+     * by a direct executor, they are run on the moderator thread.
+     */
+    public void addListener(final Runnable listener, final Executor executor) {
+        Runnable runnable = new Runnable() {
+            @Override
+            public void run() {
+                executor.execute(listener);
+            }
+        };
+        synchronized (this) {
+            if (mState == PENDING) {
+                mListeners.add(runnable);
+                return;
+            }
+        }
+        runnable.run();
+    }
+
+    protected boolean set(V value) {
+        return complete(SUCCEEDED, value, null);
+    }
+
+    protected boolean setException(Throwable error) {
+        return complete(FAILED, null, error);
+    }
+
+    protected boolean setCancelled() {
+        return complete(CANCELLED, null, null);
+    }
+
+    private boolean complete(int state, V value, Throwable error) {
+        List<Runnable> listeners;
+        synchronized (this) {
+            if (mState != PENDING) return false;
+            mState = state;
+            mValue = value;
+            mError = error;
+            listeners = mListeners;
+            mListeners = null;
+            notifyAll();
+        }
+        for (Runnable listener : listeners) {
+            try {
+                listener.run();
+            } catch (RuntimeException ex) {
+                Log.e(ex, "Future listener failed");
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return mState == CANCELLED;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return mState != PENDING;
+    }
+
+    @Override
+    public synchronized V get() throws InterruptedException, ExecutionException {
+        while (mState == PENDING) wait();
+        return getDone();
+    }
+
+    @Override
+    public synchronized V get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (mState == PENDING) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) throw new TimeoutException();
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return getDone();
+    }
+
+    private V getDone() throws ExecutionException {
+        switch (mState) {
+            case SUCCEEDED:
+                return mValue;
+            case FAILED:
+                throw new ExecutionException(mError);
+            default:
+                throw new CancellationException();
+        }
+    }
+}
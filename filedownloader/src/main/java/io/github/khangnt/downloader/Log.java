@@ -19,18 +19,18 @@ public class Log {
     }
 
     public static void d(Throwable e, String format, Object... args) {
-        sLogger.log(Level.INFO, String.format(format, args), e);
+        if (sLogger.isLoggable(Level.INFO)) sLogger.log(Level.INFO, String.format(format, args), e);
     }
 
     public static void d(String format, Object... args) {
-        sLogger.info(String.format(format, args));
+        if (sLogger.isLoggable(Level.INFO)) sLogger.info(String.format(format, args));
     }
 
     public static void e(Throwable e, String format, Object... args) {
-        sLogger.log(Level.SEVERE, String.format(format, args), e);
+        if (sLogger.isLoggable(Level.SEVERE)) sLogger.log(Level.SEVERE, String.format(format, args), e);
     }
 
     public static void e(String format, Object... args) {
-        sLogger.severe(String.format(format, args));
+        if (sLogger.isLoggable(Level.SEVERE)) sLogger.severe(String.format(format, args));
     }
 }
@@ -0,0 +1,593 @@
+package io.github.khangnt.downloader;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import io.github.khangnt.downloader.model.Task;
+
+/**
+ * Keep files in direct (off-heap) buffers instead of on disk, for content which is parsed in
+ * memory right after it is downloaded. Chunk files, the merged file and renames between them
+ * never touch the disk while the files fit in the memory budget.
+ * <p>
+ * A file which would grow beyond the budget is spilled: its content is written at the same path
+ * through the spill file manager, and the file stays there. Files which already exist on disk
+ * are accessed through the spill file manager too.
+ * <p>
+ * Direct buffers are released by the garbage collector only, a buffer dropped by a deleted or
+ * grown file counts against the budget until it is collected.
+ * <p>
+ * Memory files aren't durable, {@link #syncFile(String)} is a no-op for them.
+ */
+public class MemoryFileManager implements ExtendedFileManager {
+    private static final int MIN_CAPACITY = 4 * 1024; // 4 KB
+    private static final int COPY_BUFFER_SIZE = 64 * 1024; // 64 KB
+    private static final byte[] ZEROS = new byte[4 * 1024];
+
+    private final long mMemoryBudget;
+    private final ExtendedFileManager mSpillFileManager;
+    private final Map<String, MemoryFile> mFiles = new HashMap<>();
+    private final ReferenceQueue<ByteBuffer> mCollectedBuffers = new ReferenceQueue<>();
+    // dropped buffers not collected yet, their references must stay reachable to be enqueued
+    private final Set<BufferReference> mDroppedBuffers = new HashSet<>();
+    private long mAllocated;
+    private long mSpillCount;
+
+    public MemoryFileManager(long memoryBudget) {
+        this(memoryBudget, new DefaultFileManager());
+    }
+
+    /**
+     * @param memoryBudget     max bytes of direct buffers of all memory files.
+     * @param spillFileManager stores files which don't fit in the budget.
+     */
+    public MemoryFileManager(long memoryBudget, FileManager spillFileManager) {
+        if (memoryBudget < 0) throw new IllegalArgumentException("Memory budget can't < 0");
+        mMemoryBudget = memoryBudget;
+        mSpillFileManager = FileManagerAdapter.of(spillFileManager);
+    }
+
+    public long getMemoryBudget() {
+        return mMemoryBudget;
+    }
+
+    /**
+     * @return bytes of direct buffers allocated by memory files, include dropped buffers not
+     * collected yet.
+     */
+    public synchronized long getMemoryUsage() {
+        reclaim();
+        return mAllocated;
+    }
+
+    /**
+     * @return number of files spilled to disk because the budget is exceeded.
+     */
+    public synchronized long getSpillCount() {
+        return mSpillCount;
+    }
+
+    /**
+     * @return read-only view of content of a memory file, or null if the file doesn't exist or it
+     * is on disk. The view isn't updated if the file is written again.
+     */
+    public synchronized ByteBuffer getContent(String filePath) {
+        MemoryFile file = mFiles.get(filePath);
+        if (file == null) return null;
+        if (file.mBuffer == null) return ByteBuffer.allocate(0).asReadOnlyBuffer();
+        ByteBuffer content = file.mBuffer.duplicate();
+        content.position(0).limit((int) file.mLength);
+        return content.slice().asReadOnlyBuffer();
+    }
+
+    @Override
+    public OutputStream openWritableFile(String filePath, boolean append) throws IOException {
+        synchronized (this) {
+            MemoryFile file = getFile(filePath);
+            if (file == null && mSpillFileManager.isFileExists(filePath)) {
+                return mSpillFileManager.openWritableFile(filePath, append);
+            }
+            if (file == null) file = createFile(filePath);
+            else if (!append) setLength(file, 0);
+            return new MemoryOutputStream(file, append ? file.mLength : 0);
+        }
+    }
+
+    @Override
+    public OutputStream openWritableFileAt(String filePath, long position) throws IOException {
+        synchronized (this) {
+            MemoryFile file = getFile(filePath);
+            if (file == null && mSpillFileManager.isFileExists(filePath)) {
+                return mSpillFileManager.openWritableFileAt(filePath, position);
+            }
+            if (file == null) file = createFile(filePath);
+            return new MemoryOutputStream(file, position);
+        }
+    }
+
+    @Override
+    public InputStream openReadableFile(String filePath) throws IOException {
+        synchronized (this) {
+            MemoryFile file = mFiles.get(filePath);
+            if (file != null) return new MemoryInputStream(file);
+        }
+        return mSpillFileManager.openReadableFile(filePath);
+    }
+
+    @Override
+    public boolean isFileExists(String filePath) {
+        synchronized (this) {
+            if (mFiles.containsKey(filePath)) return true;
+        }
+        return mSpillFileManager.isFileExists(filePath);
+    }
+
+    @Override
+    public long getFileSize(String filePath) {
+        synchronized (this) {
+            MemoryFile file = mFiles.get(filePath);
+            if (file != null) return file.mLength;
+        }
+        return mSpillFileManager.getFileSize(filePath);
+    }
+
+    @Override
+    public void deleteFile(String filePath) {
+        synchronized (this) {
+            MemoryFile file;
+            try {
+                file = getFile(filePath);
+            } catch (InterruptedIOException ex) {
+                // the file is deleted by its spill instead
+                Thread.currentThread().interrupt();
+                file = mFiles.get(filePath);
+            }
+            if (file != null) {
+                mFiles.remove(filePath);
+                free(file);
+                return;
+            }
+        }
+        mSpillFileManager.deleteFile(filePath);
+    }
+
+    @Override
+    public void truncateFile(String filePath, long length) throws IOException {
+        synchronized (this) {
+            MemoryFile file = getFile(filePath);
+            if (file != null) {
+                if (file.mLength > length) setLength(file, length);
+                trimCapacity(file);
+                return;
+            }
+        }
+        mSpillFileManager.truncateFile(filePath, length);
+    }
+
+    @Override
+    public void preallocateFile(String filePath, long length) throws IOException {
+        MemoryFile file;
+        synchronized (this) {
+            file = getFile(filePath);
+            if (file == null && !mSpillFileManager.isFileExists(filePath)) {
+                file = createFile(filePath);
+            }
+            if (file != null) {
+                if (file.mLength >= length) return;
+                if (ensureCapacity(file, length)) {
+                    file.mLength = length;
+                    return;
+                }
+            }
+        }
+        // a spilled file is preallocated on disk
+        if (file != null) spill(file);
+        mSpillFileManager.preallocateFile(filePath, length);
+    }
+
+    @Override
+    public void syncFile(String filePath) throws IOException {
+        synchronized (this) {
+            if (mFiles.containsKey(filePath)) return;
+        }
+        mSpillFileManager.syncFile(filePath);
+    }
+
+    @Override
+    public void renameFile(String fromPath, String toPath) throws IOException {
+        synchronized (this) {
+            getFile(toPath);
+            MemoryFile file = getFile(fromPath);
+            mFiles.remove(fromPath);
+            MemoryFile target = mFiles.remove(toPath);
+            if (target != null) free(target);
+            if (file != null) {
+                if (mSpillFileManager.isFileExists(toPath)) mSpillFileManager.deleteFile(toPath);
+                file.mPath = toPath;
+                mFiles.put(toPath, file);
+                return;
+            }
+        }
+        mSpillFileManager.renameFile(fromPath, toPath);
+    }
+
+    /**
+     * Directories are created by the spill file manager, a memory file can be spilled into them.
+     */
+    @Override
+    public void createDirectories(String dirPath) throws IOException {
+        mSpillFileManager.createDirectories(dirPath);
+    }
+
+    @Override
+    public long getUsableSpace(String filePath) {
+        long diskSpace = mSpillFileManager.getUsableSpace(filePath);
+        if (diskSpace == C.UNSET) return C.UNSET;
+        synchronized (this) {
+            reclaim();
+            return diskSpace + mMemoryBudget - mAllocated;
+        }
+    }
+
+    @Override
+    public boolean isSameFileStore(String filePath1, String filePath2) {
+        return mSpillFileManager.isSameFileStore(filePath1, filePath2);
+    }
+
+    @Override
+    public String getUniqueTempFile(Task task) throws Exception {
+        return mSpillFileManager.getUniqueTempFile(task);
+    }
+
+    /**
+     * Must hold the lock.
+     *
+     * @return memory file at the path after its running spill, or null if it is on disk.
+     */
+    private MemoryFile getFile(String filePath) throws InterruptedIOException {
+        MemoryFile file = mFiles.get(filePath);
+        while (file != null && file.mSpilling) {
+            awaitSpill(file);
+            file = mFiles.get(filePath);
+        }
+        return file;
+    }
+
+    /**
+     * Must hold the lock, content of a file doesn't change while it is written to disk.
+     */
+    private void awaitSpill(MemoryFile file) throws InterruptedIOException {
+        while (file.mSpilling) {
+            try {
+                wait();
+            } catch (InterruptedException ex) {
+                throw new InterruptedIOException("Interrupted while spilling " + file.mPath);
+            }
+        }
+    }
+
+    private MemoryFile createFile(String filePath) {
+        MemoryFile file = new MemoryFile(filePath);
+        mFiles.put(filePath, file);
+        return file;
+    }
+
+    /**
+     * Bytes of a buffer beyond the file length are kept zero, so a file extended by a write past
+     * its end or by preallocation reads zeros in the gap.
+     */
+    private void setLength(MemoryFile file, long length) {
+        if (file.mBuffer != null && length < file.mLength) {
+            ByteBuffer tail = file.mBuffer.duplicate();
+            tail.position((int) length).limit((int) file.mLength);
+            while (tail.hasRemaining()) {
+                tail.put(ZEROS, 0, Math.min(ZEROS.length, tail.remaining()));
+            }
+        }
+        file.mLength = length;
+    }
+
+    /**
+     * Must hold the lock.
+     *
+     * @return false if the budget is exceeded, the file must be spilled to disk instead.
+     */
+    private boolean ensureCapacity(MemoryFile file, long capacity) {
+        int current = file.mBuffer == null ? 0 : file.mBuffer.capacity();
+        if (capacity <= current) return true;
+        if (file.mDeleted) return false;
+        reclaim();
+        // the current buffer is held until the new one is collected
+        long grown = Math.min(Integer.MAX_VALUE,
+                Math.max(capacity, Math.max(MIN_CAPACITY, 2L * current)));
+        if (mAllocated + grown > mMemoryBudget) grown = capacity;
+        ByteBuffer buffer = null;
+        if (capacity <= Integer.MAX_VALUE && mAllocated + grown <= mMemoryBudget) try {
+            buffer = ByteBuffer.allocateDirect((int) grown);
+        } catch (OutOfMemoryError ignore) {
+            // direct memory limit of the VM is lower than the budget
+        }
+        if (buffer == null) return false;
+        if (file.mBuffer != null) {
+            ByteBuffer content = file.mBuffer.duplicate();
+            content.position(0).limit((int) file.mLength);
+            buffer.put(content);
+            buffer.clear();
+            drop(file.mBuffer);
+        }
+        file.mBuffer = buffer;
+        mAllocated += grown;
+        return true;
+    }
+
+    /**
+     * Release slack of a grown buffer, called when a file is truncated after it is written, e.g.
+     * by a merge.
+     */
+    private void trimCapacity(MemoryFile file) {
+        if (file.mBuffer == null || file.mDeleted) return;
+        int current = file.mBuffer.capacity();
+        if (current <= MIN_CAPACITY || current - file.mLength <= file.mLength / 4) return;
+        reclaim();
+        int capacity = (int) Math.max(MIN_CAPACITY, file.mLength);
+        if (mAllocated + capacity > mMemoryBudget) return;
+        ByteBuffer buffer;
+        try {
+            buffer = ByteBuffer.allocateDirect(capacity);
+        } catch (OutOfMemoryError ignore) {
+            return;
+        }
+        ByteBuffer content = file.mBuffer.duplicate();
+        content.position(0).limit((int) file.mLength);
+        buffer.put(content);
+        buffer.clear();
+        drop(file.mBuffer);
+        file.mBuffer = buffer;
+        mAllocated += capacity;
+    }
+
+    /**
+     * Write a memory file to its path on disk. The content is taken under the lock and written
+     * outside it, so other files are accessible meanwhile. Streams of the file wait for it.
+     */
+    private void spill(MemoryFile file) throws IOException {
+        ByteBuffer content;
+        synchronized (this) {
+            awaitSpill(file);
+            // spilled by another stream, or deleted
+            if (file.mSpilled || file.mDeleted) return;
+            file.mSpilling = true;
+            content = file.mBuffer == null ? ByteBuffer.allocate(0) : file.mBuffer.duplicate();
+            content.position(0).limit((int) file.mLength);
+        }
+        Log.d("Memory budget exceeded, spill %s (%d bytes) to disk", file.mPath, file.mLength);
+        boolean spilled = false;
+        try {
+            OutputStream os = mSpillFileManager.openWritableFile(file.mPath, false);
+            try {
+                byte buffer[] = new byte[COPY_BUFFER_SIZE];
+                while (content.hasRemaining()) {
+                    int len = Math.min(buffer.length, content.remaining());
+                    content.get(buffer, 0, len);
+                    os.write(buffer, 0, len);
+                }
+            } finally {
+                os.close();
+            }
+            spilled = true;
+        } finally {
+            boolean deleted;
+            synchronized (this) {
+                file.mSpilling = false;
+                notifyAll();
+                deleted = file.mDeleted;
+                if (spilled && !deleted) {
+                    mFiles.remove(file.mPath);
+                    free(file);
+                    file.mSpilled = true;
+                    mSpillCount++;
+                }
+            }
+            // the file stays in memory if it can't be written, or it was deleted meanwhile
+            if (!spilled || deleted) mSpillFileManager.deleteFile(file.mPath);
+        }
+    }
+
+    private void free(MemoryFile file) {
+        // open streams still read the buffer, it is collected with them
+        if (file.mBuffer != null) drop(file.mBuffer);
+        file.mDeleted = true;
+    }
+
+    /**
+     * Must hold the lock. Memory of the buffer is returned to the budget after it is collected.
+     */
+    private void drop(ByteBuffer buffer) {
+        mDroppedBuffers.add(new BufferReference(buffer, mCollectedBuffers));
+    }
+
+    /**
+     * Must hold the lock.
+     */
+    private void reclaim() {
+        Reference<? extends ByteBuffer> reference;
+        while ((reference = mCollectedBuffers.poll()) != null) {
+            if (mDroppedBuffers.remove(reference))
+                mAllocated -= ((BufferReference) reference).mCapacity;
+        }
+    }
+
+    private static class BufferReference extends PhantomReference<ByteBuffer> {
+        private final int mCapacity;
+
+        BufferReference(ByteBuffer buffer, ReferenceQueue<ByteBuffer> queue) {
+            super(buffer, queue);
+            mCapacity = buffer.capacity();
+        }
+    }
+
+    private static class MemoryFile {
+        private String mPath;
+        private ByteBuffer mBuffer;
+        private long mLength;
+        private boolean mDeleted;
+        private boolean mSpilled;
+        // being written to disk, guarded by the lock
+        private boolean mSpilling;
+
+        MemoryFile(String path) {
+            mPath = path;
+        }
+    }
+
+    /**
+     * Writes to a memory file, or to its path on disk after the file is spilled. Writes to a
+     * deleted file are dropped.
+     */
+    private class MemoryOutputStream extends OutputStream {
+        private final MemoryFile mFile;
+        private long mPosition;
+        private OutputStream mSpillStream;
+
+        MemoryOutputStream(MemoryFile file, long position) {
+            mFile = file;
+            mPosition = position;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            if (mSpillStream == null) {
+                synchronized (MemoryFileManager.this) {
+                    awaitSpill(mFile);
+                    if (mFile.mDeleted && !mFile.mSpilled) return;
+                    if (!mFile.mSpilled && ensureCapacity(mFile, mPosition + length)) {
+                        ByteBuffer target = mFile.mBuffer.duplicate();
+                        target.position((int) mPosition);
+                        target.put(buffer, offset, length);
+                        mPosition += length;
+                        mFile.mLength = Math.max(mFile.mLength, mPosition);
+                        return;
+                    }
+                }
+                // no-op if the file was spilled by another stream
+                spill(mFile);
+                synchronized (MemoryFileManager.this) {
+                    // deleted while it was spilled
+                    if (!mFile.mSpilled) return;
+                }
+                mSpillStream = mSpillFileManager.openWritableFileAt(mFile.mPath, mPosition);
+            }
+            mSpillStream.write(buffer, offset, length);
+            mPosition += length;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (mSpillStream != null) mSpillStream.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mSpillStream != null) mSpillStream.close();
+        }
+    }
+
+    /**
+     * Reads a memory file, or its path on disk after the file is spilled.
+     */
+    private class MemoryInputStream extends InputStream {
+        private final MemoryFile mFile;
+        private long mPosition;
+        private InputStream mSpillStream;
+
+        MemoryInputStream(MemoryFile file) {
+            mFile = file;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) return 0;
+            if (mSpillStream == null) synchronized (MemoryFileManager.this) {
+                if (!mFile.mSpilled) {
+                    if (mPosition >= mFile.mLength || mFile.mBuffer == null) return -1;
+                    int len = (int) Math.min(length, mFile.mLength - mPosition);
+                    ByteBuffer source = mFile.mBuffer.duplicate();
+                    source.position((int) mPosition);
+                    source.get(buffer, offset, len);
+                    mPosition += len;
+                    return len;
+                }
+                mSpillStream = openSpilledFile();
+            }
+            int len = mSpillStream.read(buffer, offset, length);
+            if (len > 0) mPosition += len;
+            return len;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if (n <= 0) return 0;
+            if (mSpillStream == null) synchronized (MemoryFileManager.this) {
+                if (!mFile.mSpilled) {
+                    long skipped = Math.max(0, Math.min(n, mFile.mLength - mPosition));
+                    mPosition += skipped;
+                    return skipped;
+                }
+                mSpillStream = openSpilledFile();
+            }
+            long skipped = mSpillStream.skip(n);
+            mPosition += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            if (mSpillStream != null) return mSpillStream.available();
+            synchronized (MemoryFileManager.this) {
+                return mFile.mSpilled ? 0 : (int) Math.max(0, mFile.mLength - mPosition);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mSpillStream != null) mSpillStream.close();
+        }
+
+        private InputStream openSpilledFile() throws IOException {
+            InputStream is = mSpillFileManager.openReadableFile(mFile.mPath);
+            long skipped = 0;
+            while (skipped < mPosition) {
+                long n = is.skip(mPosition - skipped);
+                if (n <= 0) {
+                    is.close();
+                    throw new FileNotFoundException("Spilled file is shorter than read position: "
+                            + mFile.mPath);
+                }
+                skipped += n;
+            }
+            return is;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package io.github.khangnt.downloader;
+
+/**
+ * Which unfinished chunks are fetched with a multi-range request: small gaps of a task, e.g. left
+ * by retries, corrupted blocks or paused chunks, are requested together in one
+ * {@code Range: bytes=a-b,c-d,...} request instead of one chunk worker request each. An origin
+ * which doesn't answer with multipart/byteranges falls back to single range requests.
+ */
+public class MultiRangePolicy {
+    public static final MultiRangePolicy DISABLED = new MultiRangePolicy(0, 0);
+
+    private final long mMaxGapLength;
+    private final int mMaxRanges;
+
+    /**
+     * @param maxGapLength unfinished chunks with up to this many bytes remaining are gaps.
+     * @param maxRanges    max ranges of a request, must be at least 2 to enable multi-range.
+     */
+    public MultiRangePolicy(long maxGapLength, int maxRanges) {
+        if (maxGapLength < 0 || maxRanges < 0)
+            throw new IllegalArgumentException("Multi-range policy arguments can't < 0");
+        mMaxGapLength = maxGapLength;
+        mMaxRanges = maxRanges;
+    }
+
+    /**
+     * Gaps up to {@link C#MIN_CHUNK_LENGTH}, 16 ranges per request.
+     */
+    public static MultiRangePolicy createDefault() {
+        return new MultiRangePolicy(C.MIN_CHUNK_LENGTH, 16);
+    }
+
+    public boolean isEnabled() {
+        return mMaxGapLength > 0 && mMaxRanges >= 2;
+    }
+
+    public long getMaxGapLength() {
+        return mMaxGapLength;
+    }
+
+    public int getMaxRanges() {
+        return mMaxRanges;
+    }
+}
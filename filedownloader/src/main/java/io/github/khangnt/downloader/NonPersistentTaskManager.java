@@ -15,10 +15,11 @@ import io.github.khangnt.downloader.model.Task;
  * Email: khang.neon.1997@gmail.com
  */
 
-public class NonPersistentTaskManager implements TaskManager {
+public class NonPersistentTaskManager implements ExtendedTaskManager {
 
     private int mTaskAutoIncreaseId;
     private int mChunkAutoIncreaseId;
+    private int mTaskIdStep = 1;
 
     private Map<Integer, Task> mTaskMap;
     private Map<Integer, Map<Integer, Chunk>> mChunkMap;
@@ -35,12 +36,24 @@ public class NonPersistentTaskManager implements TaskManager {
         this.mChunkMap = chunkMap;
     }
 
+    /**
+     * Assign task IDs {@code firstTaskId, firstTaskId + taskIdStep, ...}, so task managers of
+     * {@link ShardedFileDownloader} shards never assign the same ID.
+     */
+    public NonPersistentTaskManager(int firstTaskId, int taskIdStep) {
+        this();
+        if (firstTaskId <= 0 || taskIdStep <= 0)
+            throw new IllegalArgumentException("First task ID and step must > 0");
+        this.mTaskAutoIncreaseId = firstTaskId - taskIdStep;
+        this.mTaskIdStep = taskIdStep;
+    }
+
     @Override
     public Task insertTask(Task task) {
         if (task.getId() != C.UNSET)
             throw new IllegalArgumentException("Can't insert task has assigned an ID");
         synchronized (this) {
-            int taskId = ++mTaskAutoIncreaseId;
+            int taskId = mTaskAutoIncreaseId += mTaskIdStep;
             task = task.newBuilder().setId(taskId).build();
             mTaskMap.put(taskId, task);
             return task;
@@ -118,6 +131,14 @@ public class NonPersistentTaskManager implements TaskManager {
         }
     }
 
+    @Override
+    public void removeChunk(Chunk chunk) {
+        synchronized (this) {
+            Map<Integer, Chunk> chunkMap = mChunkMap.get(chunk.getTaskId());
+            if (chunkMap != null) chunkMap.remove(chunk.getId());
+        }
+    }
+
     @Override
     public List<Task> getUndoneTasks() {
         synchronized (this) {
@@ -0,0 +1,299 @@
+package io.github.khangnt.downloader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.github.khangnt.downloader.model.Task;
+
+/**
+ * Feed content of a task to its {@link ProcessingStage}s while the task is written. Each stage
+ * reads a bounded pipe on its own processing thread, writing blocks while a pipe is full, so a
+ * slow stage slows down the writer instead of buffering the file in memory.
+ * <p>
+ * Stages of a pipeline are started together once enough processing threads are free, pipelines
+ * waiting for threads block their writer.
+ */
+public class ProcessingPipeline {
+    private static final int PIPE_CAPACITY = 256 * 1024; // 256 KB
+
+    private final Task mTask;
+    private final List<ProcessingStage> mStages;
+    private final Executor mExecutor;
+    private final Semaphore mThreadPermits;
+    private final int mPermits;
+    private final List<Pipe> mPipes = new CopyOnWriteArrayList<>();
+    private final String[] mResults;
+    private final CountDownLatch mStagesDone;
+    private final AtomicInteger mRunningStages;
+    private volatile String mError;
+    private volatile long mWrittenLength;
+    private boolean mStarted;
+
+    /**
+     * @param threadPermits shared by pipelines of a downloader, a permit per running stage.
+     * @param maxPermits    total permits, a pipeline with more stages takes all of them.
+     */
+    ProcessingPipeline(Task task, List<ProcessingStage> stages, Executor executor,
+                       Semaphore threadPermits, int maxPermits) {
+        mTask = task;
+        mStages = new ArrayList<>(stages);
+        mExecutor = executor;
+        mThreadPermits = threadPermits;
+        mPermits = Math.min(mStages.size(), maxPermits);
+        mResults = new String[mStages.size()];
+        mStagesDone = new CountDownLatch(mStages.size());
+        mRunningStages = new AtomicInteger(mStages.size());
+    }
+
+    public Task getTask() {
+        return mTask;
+    }
+
+    /**
+     * @return bytes of the task content written to the pipeline.
+     */
+    public long getWrittenLength() {
+        return mWrittenLength;
+    }
+
+    /**
+     * @return true if a stage failed or the pipeline is aborted, it can't be finished.
+     */
+    public boolean isAborted() {
+        return mError != null;
+    }
+
+    /**
+     * Pass next bytes of the task to all stages, blocks while a stage is behind. The pipeline is
+     * aborted if the bytes can't be written to all stages, e.g. the writer is interrupted.
+     *
+     * @throws IOException a stage failed or the pipeline is aborted.
+     */
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        try {
+            start();
+            for (Pipe pipe : mPipes) {
+                pipe.write(buffer, offset, length);
+            }
+            checkError();
+        } catch (IOException ex) {
+            // stages may have read a part of the bytes, they can't continue
+            abort();
+            throw ex;
+        }
+        mWrittenLength += length;
+    }
+
+    /**
+     * Signal end of the task content and wait for all stages to return.
+     *
+     * @return results of stages by name.
+     * @throws IOException a stage failed or the pipeline is aborted.
+     */
+    public Map<String, String> finish() throws IOException {
+        start();
+        checkError();
+        for (Pipe pipe : mPipes) {
+            pipe.closeSink();
+        }
+        try {
+            mStagesDone.await();
+        } catch (InterruptedException ex) {
+            abort();
+            throw new InterruptedIOException();
+        }
+        checkError();
+        Map<String, String> results = new LinkedHashMap<>();
+        synchronized (mResults) {
+            for (int i = 0; i < mStages.size(); i++) {
+                results.put(mStages.get(i).getName(), mResults[i]);
+            }
+        }
+        return Collections.unmodifiableMap(results);
+    }
+
+    /**
+     * Stop the stages, their streams throw an {@link IOException}. Called when the task content
+     * won't be written to the end, e.g. the writer is interrupted or failed.
+     */
+    public void abort() {
+        synchronized (this) {
+            if (mError == null) mError = "Processing aborted";
+        }
+        for (Pipe pipe : mPipes) {
+            pipe.abort();
+        }
+    }
+
+    /**
+     * Abort the stages and delete files they wrote, e.g. the task content doesn't match its
+     * checksum. Blocks until the stages returned.
+     */
+    public void discard() throws InterruptedException {
+        abort();
+        synchronized (this) {
+            if (!mStarted) return;
+        }
+        // stages aren't running if start() was interrupted before submitting them
+        if (mPipes.size() == mStages.size()) mStagesDone.await();
+        for (ProcessingStage stage : mStages) {
+            if (!(stage instanceof ProcessingStage.Discardable)) continue;
+            try {
+                ((ProcessingStage.Discardable) stage).discard(mTask);
+            } catch (Exception ex) {
+                Log.d(ex, "Task-%d can't discard processing stage %s", mTask.getId(),
+                        stage.getName());
+            }
+        }
+    }
+
+    private void checkError() throws IOException {
+        if (mError != null) throw new IOException(mError);
+    }
+
+    private void start() throws IOException {
+        synchronized (this) {
+            // an aborted pipeline never starts its stages
+            if (mStarted || mError != null) return;
+            mStarted = true;
+        }
+        try {
+            mThreadPermits.acquire(mPermits);
+        } catch (InterruptedException ex) {
+            abort();
+            throw new InterruptedIOException();
+        }
+        for (int i = 0; i < mStages.size(); i++) {
+            final int index = i;
+            final ProcessingStage stage = mStages.get(i);
+            // a small task doesn't need a full pipe
+            final Pipe pipe = new Pipe(mTask.getLength() > 0
+                    ? (int) Math.min(PIPE_CAPACITY, mTask.getLength()) : PIPE_CAPACITY);
+            mPipes.add(pipe);
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        String result = stage.process(mTask, pipe);
+                        synchronized (mResults) {
+                            mResults[index] = result;
+                        }
+                    } catch (Throwable ex) {
+                        synchronized (ProcessingPipeline.this) {
+                            // others fail after the first one aborts the pipeline
+                            if (mError == null) {
+                                Log.e(ex, "Task-%d processing stage %s failed", mTask.getId(),
+                                        stage.getName());
+                                mError = "Processing stage " + stage.getName() + " failed: "
+                                        + ex.getMessage();
+                            }
+                        }
+                        abort();
+                    } finally {
+                        pipe.close();
+                        if (mRunningStages.decrementAndGet() == 0) mThreadPermits.release(mPermits);
+                        mStagesDone.countDown();
+                    }
+                }
+            });
+        }
+        if (mError != null) abort();
+    }
+
+    /**
+     * Ring buffer between the writer and a stage. Bytes written after the stage closed its stream
+     * or the pipe is aborted are dropped.
+     */
+    private static class Pipe extends InputStream {
+        private final byte[] mBuffer;
+        private int mHead;
+        private int mCount;
+        private boolean mSinkClosed;
+        private boolean mSourceClosed;
+        private boolean mAborted;
+
+        Pipe(int capacity) {
+            mBuffer = new byte[capacity];
+        }
+
+        synchronized void write(byte[] buffer, int offset, int length) throws IOException {
+            while (length > 0) {
+                while (mCount == mBuffer.length && !mSourceClosed && !mAborted) {
+                    waitInterruptibly();
+                }
+                // writer finds the reason in the pipeline
+                if (mAborted || mSourceClosed) return;
+                int tail = (mHead + mCount) % mBuffer.length;
+                int n = Math.min(length, Math.min(mBuffer.length - mCount, mBuffer.length - tail));
+                System.arraycopy(buffer, offset, mBuffer, tail, n);
+                mCount += n;
+                offset += n;
+                length -= n;
+                notifyAll();
+            }
+        }
+
+        synchronized void closeSink() {
+            mSinkClosed = true;
+            notifyAll();
+        }
+
+        synchronized void abort() {
+            mAborted = true;
+            notifyAll();
+        }
+
+        @Override
+        public synchronized int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public synchronized int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) return 0;
+            while (mCount == 0 && !mSinkClosed && !mAborted && !mSourceClosed) {
+                waitInterruptibly();
+            }
+            if (mAborted) throw new IOException("Processing aborted");
+            if (mCount == 0) return -1;
+            int n = Math.min(length, Math.min(mCount, mBuffer.length - mHead));
+            System.arraycopy(mBuffer, mHead, buffer, offset, n);
+            mHead = (mHead + n) % mBuffer.length;
+            mCount -= n;
+            notifyAll();
+            return n;
+        }
+
+        @Override
+        public synchronized int available() {
+            return mCount;
+        }
+
+        @Override
+        public synchronized void close() {
+            mSourceClosed = true;
+            mCount = 0;
+            notifyAll();
+        }
+
+        private void waitInterruptibly() throws InterruptedIOException {
+            try {
+                wait();
+            } catch (InterruptedException ex) {
+                throw new InterruptedIOException();
+            }
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package io.github.khangnt.downloader;
+
+import java.io.InputStream;
+
+import io.github.khangnt.downloader.model.Task;
+
+/**
+ * Consume content of a task in order while it is merged or fetched, instead of reading the
+ * file again after the task is finished, e.g. decompress, unpack or hash it.
+ *
+ * @see IFileDownloader#addProcessingStage(int, ProcessingStage)
+ */
+public interface ProcessingStage {
+    /**
+     * @return key of the stage result in {@link Task#getStageResults()}.
+     */
+    String getName();
+
+    /**
+     * Read content of the task from the stream until its end, on a processing thread. A task
+     * merged again (e.g. after it's paused or retried) is processed again with a new stream, keep
+     * state of a run local to the call, except what {@link Discardable#discard(Task)} needs.
+     * Bytes left unread when it returns are skipped.
+     *
+     * @return result of the stage, or null.
+     * @throws Exception the task is failed.
+     */
+    String process(Task task, InputStream in) throws Exception;
+
+    /**
+     * Implemented by stages which write files, results of a run are deleted if the task content
+     * fails its checksum.
+     */
+    interface Discardable {
+        /**
+         * Delete files written by the last run, called after it returned.
+         */
+        void discard(Task task);
+    }
+}
@@ -0,0 +1,86 @@
+package io.github.khangnt.downloader;
+
+import java.util.Random;
+
+import io.github.khangnt.downloader.exception.HttpResponseException;
+import io.github.khangnt.downloader.worker.ChunkWorker;
+
+/**
+ * How a chunk worker retries a failed request: exponential backoff with full jitter, delay
+ * is at least the Retry-After of 429/503 responses. Client errors other than 408 and 429 are
+ * not retried.
+ */
+public class RetryPolicy {
+    public static final long DEFAULT_INITIAL_BACKOFF = 500; // 0.5 second
+    public static final long DEFAULT_MAX_BACKOFF = 30000; // 30 seconds
+
+    /**
+     * Retry immediately, same as chunk workers did before retry policy is configurable.
+     */
+    public static final RetryPolicy NO_BACKOFF = new RetryPolicy(ChunkWorker.MAX_RETRY, 0, 0);
+
+    private final int mMaxAttempts;
+    private final long mInitialBackoffMillis;
+    private final long mMaxBackoffMillis;
+    private final Random mRandom = new Random();
+
+    /**
+     * @param maxAttempts          number of requests include the first one.
+     * @param initialBackoffMillis max delay before the first retry, doubled for each next retry.
+     * @param maxBackoffMillis     cap of max delay.
+     */
+    public RetryPolicy(int maxAttempts, long initialBackoffMillis, long maxBackoffMillis) {
+        if (maxAttempts <= 0)
+            throw new IllegalArgumentException("Max attempts must > 0");
+        if (initialBackoffMillis < 0 || maxBackoffMillis < initialBackoffMillis)
+            throw new IllegalArgumentException("Invalid backoff range");
+        mMaxAttempts = maxAttempts;
+        mInitialBackoffMillis = initialBackoffMillis;
+        mMaxBackoffMillis = maxBackoffMillis;
+    }
+
+    public static RetryPolicy createDefault() {
+        return new RetryPolicy(ChunkWorker.MAX_RETRY, DEFAULT_INITIAL_BACKOFF, DEFAULT_MAX_BACKOFF);
+    }
+
+    public int getMaxAttempts() {
+        return mMaxAttempts;
+    }
+
+    public long getInitialBackoffMillis() {
+        return mInitialBackoffMillis;
+    }
+
+    public long getMaxBackoffMillis() {
+        return mMaxBackoffMillis;
+    }
+
+    public boolean isRetryable(Throwable error) {
+        return !(error instanceof HttpResponseException)
+                || ((HttpResponseException) error).isTransient();
+    }
+
+    /**
+     * @param retryTime number of failed attempts, start from 1.
+     * @return milliseconds to wait before next attempt.
+     */
+    public long getRetryDelay(int retryTime, Throwable error) {
+        long backoff = mInitialBackoffMillis;
+        for (int i = 1; i < retryTime && backoff < mMaxBackoffMillis; i++) backoff *= 2;
+        backoff = Math.min(backoff, mMaxBackoffMillis);
+        long delay;
+        synchronized (mRandom) {
+            delay = (long) (mRandom.nextDouble() * backoff);
+        }
+        return Math.max(delay, getRetryAfterMillis(error));
+    }
+
+    /**
+     * @return delay requested by server, or {@link C#UNSET} if not present.
+     */
+    public static long getRetryAfterMillis(Throwable error) {
+        if (error instanceof HttpResponseException)
+            return ((HttpResponseException) error).getRetryAfterMillis();
+        return C.UNSET;
+    }
+}
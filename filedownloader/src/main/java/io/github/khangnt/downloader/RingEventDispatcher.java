@@ -0,0 +1,332 @@
+package io.github.khangnt.downloader;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import io.github.khangnt.downloader.model.TaskReport;
+
+/**
+ * Dispatch events through a preallocated ring of event slots. A producer claims a sequence and
+ * writes the event into its slot, without locking or allocating, whatever the number of
+ * listeners. Each listener has a consumer thread following the ring with its own cursor, and
+ * handing events to the listener's executor one at a time. A listener falling a whole ring behind
+ * skips the overwritten events, producers and other listeners never wait for it.
+ */
+class RingEventDispatcher extends EventDispatcher {
+    private static final int TASK_ADDED = 0;
+    private static final int TASK_UPDATED = 1;
+    private static final int TASK_CANCELLED = 2;
+    private static final int TASK_FINISHED = 3;
+    private static final int TASK_FAILED = 4;
+    private static final int RESUMED = 5;
+    private static final int PAUSED = 6;
+
+    private static final int SPIN_TRIES = 100;
+    private static final long SLEEP_NANOS = 100 * 1000; // 0.1 ms
+    private static final int MAX_CAPACITY = 1 << 30;
+
+    private final Slot[] mSlots;
+    private final int mMask;
+    private final String mThreadName;
+    // next sequence to be claimed by a producer
+    private final AtomicLong mNextSequence = new AtomicLong();
+    // consumers parked by the blocking strategy, producers skip wake-ups while it is 0
+    private final AtomicInteger mParkedConsumers = new AtomicInteger();
+    // replaced on (un)registration under the lock, producers read it without locking
+    private volatile Consumer[] mConsumers = new Consumer[0];
+    private int mConsumerCount;
+
+    /**
+     * @param capacity number of event slots, rounded up to a power of two.
+     */
+    RingEventDispatcher(int capacity, String threadName) {
+        if (capacity <= 0 || capacity > MAX_CAPACITY)
+            throw new IllegalArgumentException("Capacity must in range [1, " + MAX_CAPACITY + "]");
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) size <<= 1;
+        mSlots = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            mSlots[i] = new Slot();
+        }
+        mMask = size - 1;
+        mThreadName = threadName;
+    }
+
+    int getCapacity() {
+        return mSlots.length;
+    }
+
+    @Override
+    public void registerListener(Executor executor, EventListener listener) {
+        registerListener(executor, listener, WaitStrategy.BLOCKING);
+    }
+
+    @Override
+    public synchronized void registerListener(Executor executor, EventListener listener,
+                                              WaitStrategy waitStrategy) {
+        // events published before the listener is in the list are not delivered to it
+        Consumer consumer = new Consumer(executor, listener, waitStrategy, mNextSequence.get());
+        Consumer[] consumers = new Consumer[mConsumers.length + 1];
+        System.arraycopy(mConsumers, 0, consumers, 0, mConsumers.length);
+        consumers[mConsumers.length] = consumer;
+        mConsumers = consumers;
+        consumer.mThread = new Thread(consumer, mThreadName + "-" + (++mConsumerCount));
+        consumer.mThread.setDaemon(true);
+        consumer.mThread.start();
+    }
+
+    @Override
+    public void unregisterListener(EventListener listener) {
+        removeConsumers(listener, false);
+    }
+
+    @Override
+    public void unregisterAllListener() {
+        removeConsumers(null, true);
+    }
+
+    @Override
+    public boolean hasListeners() {
+        return mConsumers.length > 0;
+    }
+
+    private synchronized void removeConsumers(EventListener listener, boolean all) {
+        List<Consumer> remaining = new ArrayList<>();
+        for (Consumer consumer : mConsumers) {
+            EventListener registered = consumer.mWeakRefListener.get();
+            if (all || registered == listener || registered == null) {
+                consumer.stop(mNextSequence.get());
+            } else {
+                remaining.add(consumer);
+            }
+        }
+        if (remaining.size() < mConsumers.length) {
+            mConsumers = remaining.toArray(new Consumer[remaining.size()]);
+        }
+    }
+
+    private void publish(int type, TaskReport taskReport) {
+        Consumer[] consumers = mConsumers;
+        if (consumers.length == 0) return;
+        long sequence = mNextSequence.getAndIncrement();
+        Slot slot = mSlots[(int) (sequence & mMask)];
+        long previous = sequence - mSlots.length;
+        // producers a whole ring apart mustn't write the same slot at once
+        while (previous >= 0 && slot.mSequence != previous) {
+            Thread.yield();
+        }
+        slot.mSequence = -sequence - 2; // being written, see Slot
+        slot.mType = type;
+        slot.mTaskReport = taskReport;
+        slot.mSequence = sequence;
+        if (mParkedConsumers.get() > 0) {
+            for (Consumer consumer : consumers) {
+                // only one of concurrent producers wakes the consumer up
+                if (consumer.mParked.compareAndSet(true, false)) LockSupport.unpark(consumer.mThread);
+            }
+        }
+    }
+
+    @Override
+    public void onTaskAdded(TaskReport taskReport) {
+        publish(TASK_ADDED, taskReport);
+    }
+
+    @Override
+    public void onTaskUpdated(TaskReport taskReport) {
+        publish(TASK_UPDATED, taskReport);
+    }
+
+    @Override
+    public void onTaskCancelled(TaskReport taskReport) {
+        publish(TASK_CANCELLED, taskReport);
+    }
+
+    @Override
+    public void onTaskFinished(TaskReport taskReport) {
+        publish(TASK_FINISHED, taskReport);
+    }
+
+    @Override
+    public void onTaskFailed(TaskReport taskReport) {
+        publish(TASK_FAILED, taskReport);
+    }
+
+    @Override
+    public void onResumed() {
+        publish(RESUMED, null);
+    }
+
+    @Override
+    public void onPaused() {
+        publish(PAUSED, null);
+    }
+
+    /**
+     * Sequence is the published sequence of the slot, -1 while it is empty, or -(sequence + 2)
+     * while the event of the sequence is being written. Fields are volatile so a consumer which
+     * still reads the expected sequence after reading the event didn't read a half-written one.
+     */
+    private static class Slot {
+        volatile long mSequence = -1;
+        volatile int mType;
+        volatile TaskReport mTaskReport;
+    }
+
+    private class Consumer implements Runnable {
+        private final Executor mExecutor;
+        private final WeakReference<EventListener> mWeakRefListener;
+        private final WaitStrategy mWaitStrategy;
+        private final Semaphore mDelivered = new Semaphore(0);
+        private final AtomicBoolean mParked = new AtomicBoolean();
+        private final Runnable mDeliverTask = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    deliver();
+                } catch (RuntimeException ex) {
+                    Log.e(ex, "Listener failed to handle event %d", mType);
+                } finally {
+                    mDelivered.release();
+                }
+            }
+        };
+        private Thread mThread;
+        private long mSequence;
+        private volatile long mStopSequence;
+        private volatile boolean mStopped;
+        private volatile boolean mCollected;
+        // event handed to the executor
+        private volatile int mType;
+        private volatile TaskReport mTaskReport;
+
+        Consumer(Executor executor, EventListener listener, WaitStrategy waitStrategy,
+                 long sequence) {
+            mExecutor = executor;
+            mWeakRefListener = new WeakReference<>(listener);
+            mWaitStrategy = waitStrategy;
+            mSequence = sequence;
+        }
+
+        /**
+         * Deliver events published before the stop sequence, then exit.
+         */
+        void stop(long stopSequence) {
+            mStopSequence = stopSequence;
+            mStopped = true;
+            LockSupport.unpark(mThread);
+        }
+
+        @Override
+        public void run() {
+            int idle = 0;
+            while (!mStopped || mSequence < mStopSequence) {
+                Slot slot = mSlots[(int) (mSequence & mMask)];
+                long published = slot.mSequence;
+                if (published == mSequence) {
+                    mType = slot.mType;
+                    mTaskReport = slot.mTaskReport;
+                    if (slot.mSequence == mSequence) {
+                        if (!handOver()) break;
+                        mSequence++;
+                        idle = 0;
+                        continue;
+                    }
+                    published = slot.mSequence;
+                }
+                long current = published >= 0 ? published : -published - 2;
+                if (current > mSequence) {
+                    // the slot is reused for a later lap, events until the oldest kept are lost
+                    long skipped = Math.max(1, mNextSequence.get() - mSlots.length - mSequence);
+                    mSequence += skipped;
+                    idle = 0;
+                    Log.e("Listener on %s is a ring behind, skipped %d events",
+                            mThread.getName(), skipped);
+                } else {
+                    idle = waitForEvent(idle, slot, published);
+                }
+            }
+            mTaskReport = null;
+            if (mCollected) unregisterListener(null);
+        }
+
+        private boolean handOver() {
+            try {
+                mExecutor.execute(mDeliverTask);
+            } catch (RuntimeException ex) {
+                Log.e(ex, "Executor rejected event %d of sequence %d", mType, mSequence);
+                return true;
+            }
+            mDelivered.acquireUninterruptibly();
+            return !mCollected;
+        }
+
+        private void deliver() {
+            EventListener listener = mWeakRefListener.get();
+            if (listener == null) {
+                mCollected = true;
+                return;
+            }
+            TaskReport taskReport = mTaskReport;
+            switch (mType) {
+                case TASK_ADDED:
+                    listener.onTaskAdded(taskReport);
+                    break;
+                case TASK_UPDATED:
+                    listener.onTaskUpdated(taskReport);
+                    break;
+                case TASK_CANCELLED:
+                    listener.onTaskCancelled(taskReport);
+                    break;
+                case TASK_FINISHED:
+                    listener.onTaskFinished(taskReport);
+                    break;
+                case TASK_FAILED:
+                    listener.onTaskFailed(taskReport);
+                    break;
+                case RESUMED:
+                    listener.onResumed();
+                    break;
+                case PAUSED:
+                    listener.onPaused();
+                    break;
+            }
+        }
+
+        private int waitForEvent(int idle, Slot slot, long published) {
+            switch (mWaitStrategy) {
+                case BUSY_SPIN:
+                    return idle;
+                case YIELDING:
+                    if (idle >= SPIN_TRIES) Thread.yield();
+                    break;
+                case SLEEPING:
+                    if (idle >= 2 * SPIN_TRIES) LockSupport.parkNanos(SLEEP_NANOS);
+                    else if (idle >= SPIN_TRIES) Thread.yield();
+                    break;
+                case BLOCKING:
+                    // yield a while first, waking a parked thread costs the producer
+                    if (idle < 2 * SPIN_TRIES) {
+                        if (idle >= SPIN_TRIES) Thread.yield();
+                        break;
+                    }
+                    mParked.set(true);
+                    mParkedConsumers.incrementAndGet();
+                    // check again, a producer publishing before it saw this consumer parked
+                    // would not wake it up
+                    if (slot.mSequence == published && !mStopped) LockSupport.park(this);
+                    mParked.set(false);
+                    mParkedConsumers.decrementAndGet();
+                    break;
+            }
+            return Math.min(idle + 1, 2 * SPIN_TRIES);
+        }
+    }
+}
@@ -0,0 +1,577 @@
+package io.github.khangnt.downloader;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.github.khangnt.downloader.metrics.EventTracer;
+import io.github.khangnt.downloader.metrics.Metrics;
+import io.github.khangnt.downloader.metrics.MetricsExporter;
+import io.github.khangnt.downloader.model.Chunk;
+import io.github.khangnt.downloader.model.Task;
+import io.github.khangnt.downloader.model.TaskReport;
+
+/**
+ * Downloader partitions tasks across independent {@link FileDownloader} shards, each has its
+ * own moderator thread, lock and task manager, so scheduling of many tasks isn't limited by one
+ * moderator thread.
+ * <p>
+ * Shards share the file manager, http client, metrics and policies. The max workers budget is
+ * shared too: it is split between shards by number of undone tasks, and rebalanced every
+ * {@link #REBALANCE_INTERVAL} while running. Workers of a shard which lost its share aren't
+ * stopped, the shard just doesn't spawn new workers until it is under its share again.
+ */
+public class ShardedFileDownloader implements IFileDownloader {
+    public static final long REBALANCE_INTERVAL = 1000;
+
+    private final Object lock = new Object();
+
+    private final FileDownloader[] mShards;
+    private final TaskManager mTaskManager;
+    private final Metrics mMetrics;
+    private final AtomicInteger mNextShard = new AtomicInteger();
+    private int mMaxWorkers;
+    private Timer mRebalanceTimer;
+
+    public ShardedFileDownloader(int shardCount) {
+        this(shardCount, new DefaultFileManager(), new DefaultHttpClient());
+    }
+
+    public ShardedFileDownloader(int shardCount, FileManager fileManager, HttpClient httpClient) {
+        if (shardCount <= 0) throw new IllegalArgumentException("Number of shards must > 0");
+        mMetrics = new Metrics();
+        mShards = new FileDownloader[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            mShards[i] = new FileDownloader(fileManager, httpClient,
+                    new NonPersistentTaskManager(i + 1, shardCount), mMetrics,
+                    FileDownloader.MODERATOR_THREAD + "-" + i);
+            mShards[i].setLifecycleEventsEnabled(i == 0);
+        }
+        mTaskManager = new ShardedTaskManager();
+    }
+
+    public int getShardCount() {
+        return mShards.length;
+    }
+
+    /**
+     * @return shard owns the task, task IDs of shard {@code i} are {@code i + 1 + k * shardCount}.
+     */
+    public FileDownloader getShard(int taskId) {
+        return mShards[taskId > 0 ? (taskId - 1) % mShards.length : 0];
+    }
+
+    private FileDownloader nextShard() {
+        return mShards[(mNextShard.getAndIncrement() & Integer.MAX_VALUE) % mShards.length];
+    }
+
+    @Override
+    public void start() {
+        synchronized (lock) {
+            rebalance();
+            for (FileDownloader shard : mShards) {
+                shard.start();
+            }
+            if (mRebalanceTimer == null) {
+                mRebalanceTimer = new Timer("ShardRebalancer", true);
+                mRebalanceTimer.schedule(new TimerTask() {
+                    @Override
+                    public void run() {
+                        rebalance();
+                    }
+                }, REBALANCE_INTERVAL, REBALANCE_INTERVAL);
+            }
+        }
+    }
+
+    @Override
+    public void pause() {
+        synchronized (lock) {
+            stopRebalanceTimer();
+            for (FileDownloader shard : mShards) {
+                shard.pause();
+            }
+        }
+    }
+
+    @Override
+    public void release() {
+        synchronized (lock) {
+            stopRebalanceTimer();
+            for (FileDownloader shard : mShards) {
+                shard.release();
+            }
+        }
+    }
+
+    private void stopRebalanceTimer() {
+        if (mRebalanceTimer != null) {
+            mRebalanceTimer.cancel();
+            mRebalanceTimer = null;
+        }
+    }
+
+    /**
+     * Split max workers between shards by number of undone tasks, a shard has undone tasks gets
+     * at least one worker while the budget lasts.
+     */
+    protected void rebalance() {
+        synchronized (lock) {
+            rebalanceLocked();
+        }
+    }
+
+    private void rebalanceLocked() {
+        int budget = mMaxWorkers;
+        int shardCount = mShards.length;
+        long[] demands = new long[shardCount];
+        long totalDemand = 0;
+        for (int i = 0; i < shardCount; i++) {
+            TaskManager taskManager = mShards[i].getTaskManager();
+            if (taskManager == null) return; // released
+            // a task can use up to its max parallel connections
+            for (Task task : taskManager.getUndoneTasks()) {
+                demands[i] += task.getMaxParallelConnections();
+            }
+            demands[i] = Math.min(budget, demands[i]);
+            totalDemand += demands[i];
+        }
+        int[] shares = new int[shardCount];
+        int left = budget;
+        for (int i = 0; i < shardCount && left > 0; i++) {
+            if (demands[i] > 0) {
+                shares[i]++;
+                left--;
+            }
+        }
+        int extra = left;
+        for (int i = 0; i < shardCount && totalDemand > 0; i++) {
+            int share = (int) (extra * demands[i] / totalDemand);
+            shares[i] += share;
+            left -= share;
+        }
+        // remainder of rounding, or the whole budget if there isn't any demand
+        for (int i = 0; left > 0; i = (i + 1) % shardCount) {
+            if (totalDemand == 0 || demands[i] > 0) {
+                shares[i]++;
+                left--;
+            }
+        }
+        for (int i = 0; i < shardCount; i++) {
+            if (mShards[i].getMaxWorkers() != shares[i]) mShards[i].setMaxWorkers(shares[i]);
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return mShards[0].isRunning();
+    }
+
+    @Override
+    public boolean isReleased() {
+        return mShards[0].isReleased();
+    }
+
+    @Override
+    public Task addTask(Task task) {
+        FileDownloader shard = nextShard();
+        Task result = shard.addTask(task);
+        onTaskAdded(shard);
+        return result;
+    }
+
+    @Override
+    public TaskFuture submitTask(Task task) {
+        FileDownloader shard = nextShard();
+        TaskFuture taskFuture = shard.submitTask(task);
+        onTaskAdded(shard);
+        return taskFuture;
+    }
+
+    private void onTaskAdded(FileDownloader shard) {
+        // don't wait for the next round if the shard had nothing to do
+        if (shard.getMaxWorkers() == 0 && getMaxWorkers() > 0) rebalance();
+    }
+
+    @Override
+    public TaskGroup submitTasks(Collection<Task> tasks) {
+        List<TaskFuture> taskFutures = new ArrayList<>();
+        for (Task task : tasks) {
+            taskFutures.add(submitTask(task));
+        }
+        return new TaskGroup(this, taskFutures);
+    }
+
+    @Override
+    public TaskFuture getTaskFuture(int taskId) {
+        return getShard(taskId).getTaskFuture(taskId);
+    }
+
+    @Override
+    public void cancelTask(int taskId) {
+        getShard(taskId).cancelTask(taskId);
+    }
+
+    @Override
+    public void retryTask(int taskId) {
+        getShard(taskId).retryTask(taskId);
+    }
+
+    @Override
+    public TaskInputStream openInputStream(int taskId) {
+        return getShard(taskId).openInputStream(taskId);
+    }
+
+    @Override
+    public void addProcessingStage(int taskId, ProcessingStage stage) {
+        getShard(taskId).addProcessingStage(taskId, stage);
+    }
+
+    /**
+     * @return max workers of all shards.
+     */
+    @Override
+    public int getMaxWorkers() {
+        synchronized (lock) {
+            return mMaxWorkers;
+        }
+    }
+
+    @Override
+    public void setMaxWorkers(int maxWorkers) {
+        if (maxWorkers < 0) throw new IllegalArgumentException("Number of workers must >= 0");
+        synchronized (lock) {
+            mMaxWorkers = maxWorkers;
+        }
+        rebalance();
+    }
+
+    @Override
+    public AllocationPolicy getAllocationPolicy() {
+        return mShards[0].getAllocationPolicy();
+    }
+
+    @Override
+    public void setAllocationPolicy(AllocationPolicy allocationPolicy) {
+        for (FileDownloader shard : mShards) {
+            shard.setAllocationPolicy(allocationPolicy);
+        }
+    }
+
+    @Override
+    public DiskWriter getDiskWriter() {
+        return mShards[0].getDiskWriter();
+    }
+
+    @Override
+    public void setDiskWriter(DiskWriter diskWriter) {
+        for (FileDownloader shard : mShards) {
+            shard.setDiskWriter(diskWriter);
+        }
+    }
+
+    @Override
+    public DurabilityPolicy getDurabilityPolicy() {
+        return mShards[0].getDurabilityPolicy();
+    }
+
+    @Override
+    public void setDurabilityPolicy(DurabilityPolicy durabilityPolicy) {
+        for (FileDownloader shard : mShards) {
+            shard.setDurabilityPolicy(durabilityPolicy);
+        }
+    }
+
+    @Override
+    public RetryPolicy getRetryPolicy() {
+        return mShards[0].getRetryPolicy();
+    }
+
+    @Override
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        for (FileDownloader shard : mShards) {
+            shard.setRetryPolicy(retryPolicy);
+        }
+    }
+
+    @Override
+    public CircuitBreaker getCircuitBreaker() {
+        return mShards[0].getCircuitBreaker();
+    }
+
+    @Override
+    public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        for (FileDownloader shard : mShards) {
+            shard.setCircuitBreaker(circuitBreaker);
+        }
+    }
+
+    @Override
+    public ConcurrencyTuner getConcurrencyTuner() {
+        return mShards[0].getConcurrencyTuner();
+    }
+
+    /**
+     * Each shard samples its own connections with its own tuner: the first shard uses the given
+     * tuner, others use {@link ConcurrencyTuner#newInstance()} of it. So the limit of an origin
+     * applies per shard, pass a tuner with a smaller max limit than for a single downloader.
+     */
+    @Override
+    public void setConcurrencyTuner(ConcurrencyTuner concurrencyTuner) {
+        for (int i = 0; i < mShards.length; i++) {
+            mShards[i].setConcurrencyTuner(i == 0 || concurrencyTuner == null
+                    ? concurrencyTuner : concurrencyTuner.newInstance());
+        }
+    }
+
+    @Override
+    public HedgePolicy getHedgePolicy() {
+        return mShards[0].getHedgePolicy();
+    }
+
+    @Override
+    public void setHedgePolicy(HedgePolicy hedgePolicy) {
+        for (FileDownloader shard : mShards) {
+            shard.setHedgePolicy(hedgePolicy);
+        }
+    }
+
+    @Override
+    public BatchPolicy getBatchPolicy() {
+        return mShards[0].getBatchPolicy();
+    }
+
+    @Override
+    public void setBatchPolicy(BatchPolicy batchPolicy) {
+        for (FileDownloader shard : mShards) {
+            shard.setBatchPolicy(batchPolicy);
+        }
+    }
+
+    @Override
+    public MultiRangePolicy getMultiRangePolicy() {
+        return mShards[0].getMultiRangePolicy();
+    }
+
+    @Override
+    public void setMultiRangePolicy(MultiRangePolicy multiRangePolicy) {
+        for (FileDownloader shard : mShards) {
+            shard.setMultiRangePolicy(multiRangePolicy);
+        }
+    }
+
+    @Override
+    public LeaseStore getLeaseStore() {
+        return mShards[0].getLeaseStore();
+    }
+
+    @Override
+    public void setLeaseStore(LeaseStore leaseStore, String nodeId, long leaseTtlMillis) {
+        // lease keys contain task ID, so shards of a node can share the node ID
+        for (FileDownloader shard : mShards) {
+            shard.setLeaseStore(leaseStore, nodeId, leaseTtlMillis);
+        }
+    }
+
+    /**
+     * The listener is registered on every shard, events of tasks in different shards are
+     * delivered concurrently by the shards. Pass a single thread executor to receive them one at
+     * a time, otherwise the listener must be thread-safe.
+     */
+    @Override
+    public void registerListener(EventListener listener, Executor executor) {
+        for (FileDownloader shard : mShards) {
+            shard.registerListener(listener, executor);
+        }
+    }
+
+    /**
+     * Same as {@link #registerListener(EventListener, Executor)}, events of different shards are
+     * delivered concurrently.
+     */
+    @Override
+    public void registerListener(EventListener listener, Executor executor,
+                                 WaitStrategy waitStrategy) {
+        for (FileDownloader shard : mShards) {
+            shard.registerListener(listener, executor, waitStrategy);
+        }
+    }
+
+    @Override
+    public int getEventRingCapacity() {
+        return mShards[0].getEventRingCapacity();
+    }
+
+    @Override
+    public void setEventRingCapacity(int capacity) {
+        for (FileDownloader shard : mShards) {
+            shard.setEventRingCapacity(capacity);
+        }
+    }
+
+    @Override
+    public void clearAllListener() {
+        for (FileDownloader shard : mShards) {
+            shard.clearAllListener();
+        }
+    }
+
+    @Override
+    public void unregisterListener(EventListener listener) {
+        for (FileDownloader shard : mShards) {
+            shard.unregisterListener(listener);
+        }
+    }
+
+    @Override
+    public void setOnChecksumMismatchListener(OnChecksumMismatchListener listener) {
+        for (FileDownloader shard : mShards) {
+            shard.setOnChecksumMismatchListener(listener);
+        }
+    }
+
+    @Override
+    public long getSpeed() {
+        long speed = 0;
+        for (FileDownloader shard : mShards) {
+            speed += shard.getSpeed();
+        }
+        return speed;
+    }
+
+    /**
+     * @return metrics shared by all shards.
+     */
+    @Override
+    public Metrics getMetrics() {
+        return mMetrics;
+    }
+
+    @Override
+    public void setMetricsExporter(MetricsExporter exporter, long periodMillis) {
+        // metrics are shared, one exporter is enough
+        mShards[0].setMetricsExporter(exporter, periodMillis);
+    }
+
+    @Override
+    public void setEventTracer(EventTracer eventTracer) {
+        mMetrics.setEventTracer(eventTracer);
+    }
+
+    @Override
+    public TaskReport getTaskReport(Task task) {
+        return getShard(task.getId()).getTaskReport(task);
+    }
+
+    @Override
+    public List<TaskReport> getTaskReports(Collection<Task> tasks) {
+        List<TaskReport> taskReports = new ArrayList<>();
+        for (Task task : tasks) {
+            taskReports.add(getTaskReport(task));
+        }
+        return taskReports;
+    }
+
+    /**
+     * @return task manager routes each task to task manager of its shard.
+     */
+    @Override
+    public TaskManager getTaskManager() {
+        return isReleased() ? null : mTaskManager;
+    }
+
+    @Override
+    public HttpClient getHttpClient() {
+        return mShards[0].getHttpClient();
+    }
+
+    @Override
+    public FileManager getFileManager() {
+        return mShards[0].getFileManager();
+    }
+
+    private class ShardedTaskManager implements TaskManager {
+
+        private TaskManager of(int taskId) {
+            return getShard(taskId).getTaskManager();
+        }
+
+        @Override
+        public Task insertTask(Task task) {
+            return nextShard().getTaskManager().insertTask(task);
+        }
+
+        @Override
+        public Task updateTask(Task task) {
+            return of(task.getId()).updateTask(task);
+        }
+
+        @Override
+        public void removeTask(int taskId) {
+            of(taskId).removeTask(taskId);
+        }
+
+        @Override
+        public Task findTask(int taskId) {
+            return of(taskId).findTask(taskId);
+        }
+
+        @Override
+        public List<Chunk> getChunksOfTask(Task task) {
+            return of(task.getId()).getChunksOfTask(task);
+        }
+
+        @Override
+        public void removeChunksOfTask(Task task) {
+            of(task.getId()).removeChunksOfTask(task);
+        }
+
+        @Override
+        public Chunk insertChunk(Chunk chunk) {
+            return of(chunk.getTaskId()).insertChunk(chunk);
+        }
+
+        @Override
+        public Chunk updateChunk(Chunk chunk) {
+            return of(chunk.getTaskId()).updateChunk(chunk);
+        }
+
+        @Override
+        public List<Task> getUndoneTasks() {
+            List<Task> tasks = new ArrayList<>();
+            for (FileDownloader shard : mShards) {
+                tasks.addAll(shard.getTaskManager().getUndoneTasks());
+            }
+            return tasks;
+        }
+
+        @Override
+        public List<Task> getDoneTasks() {
+            List<Task> tasks = new ArrayList<>();
+            for (FileDownloader shard : mShards) {
+                tasks.addAll(shard.getTaskManager().getDoneTasks());
+            }
+            return tasks;
+        }
+
+        @Override
+        public List<Task> getAllTasks() {
+            List<Task> tasks = new ArrayList<>();
+            for (FileDownloader shard : mShards) {
+                tasks.addAll(shard.getTaskManager().getAllTasks());
+            }
+            return tasks;
+        }
+
+        @Override
+        public void cleanUpFinishedTasks() {
+            for (FileDownloader shard : mShards) {
+                shard.getTaskManager().cleanUpFinishedTasks();
+            }
+        }
+    }
+}
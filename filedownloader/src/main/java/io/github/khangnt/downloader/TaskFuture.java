@@ -0,0 +1,47 @@
+package io.github.khangnt.downloader;
+
+import io.github.khangnt.downloader.exception.TaskFailedException;
+import io.github.khangnt.downloader.model.TaskReport;
+
+/**
+ * Result of a task, completed by the downloader when the task is finished, failed or cancelled.
+ * A failed task completes with {@link TaskFailedException}, a later
+ * {@link IFileDownloader#retryTask(int)} doesn't reset the future, use
+ * {@link IFileDownloader#getTaskFuture(int)} to get a new one.
+ */
+public class TaskFuture extends ListenableFuture<TaskReport> {
+    private final IFileDownloader mFileDownloader;
+    private final int mTaskId;
+
+    TaskFuture(IFileDownloader fileDownloader, int taskId) {
+        mFileDownloader = fileDownloader;
+        mTaskId = taskId;
+    }
+
+    public int getTaskId() {
+        return mTaskId;
+    }
+
+    /**
+     * Cancel the task, {@code mayInterruptIfRunning} is ignored, workers of the task are always
+     * stopped.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (!setCancelled()) return false;
+        mFileDownloader.cancelTask(mTaskId);
+        return true;
+    }
+
+    void onTaskFinished(TaskReport taskReport) {
+        set(taskReport);
+    }
+
+    void onTaskFailed(TaskReport taskReport) {
+        setException(new TaskFailedException(taskReport));
+    }
+
+    void onTaskCancelled() {
+        setCancelled();
+    }
+}
@@ -0,0 +1,126 @@
+package io.github.khangnt.downloader;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.github.khangnt.downloader.model.Task;
+import io.github.khangnt.downloader.model.TaskReport;
+
+/**
+ * Tasks added together. The group completes with reports of all tasks (in order they were
+ * added) when all of them are finished, or as soon as one of them fails or is cancelled, other
+ * tasks keep running unless the group is cancelled.
+ */
+public class TaskGroup extends ListenableFuture<List<TaskReport>> {
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private final IFileDownloader mFileDownloader;
+    private final List<TaskFuture> mTaskFutures;
+    private final AtomicInteger mRemaining;
+
+    TaskGroup(IFileDownloader fileDownloader, List<TaskFuture> taskFutures) {
+        mFileDownloader = fileDownloader;
+        mTaskFutures = Collections.unmodifiableList(new ArrayList<>(taskFutures));
+        mRemaining = new AtomicInteger(taskFutures.size());
+        if (taskFutures.isEmpty()) set(Collections.<TaskReport>emptyList());
+        for (final TaskFuture taskFuture : taskFutures) {
+            taskFuture.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    onTaskDone(taskFuture);
+                }
+            }, DIRECT_EXECUTOR);
+        }
+    }
+
+    public List<TaskFuture> getTaskFutures() {
+        return mTaskFutures;
+    }
+
+    private void onTaskDone(TaskFuture taskFuture) {
+        if (taskFuture.isCancelled()) {
+            setCancelled();
+            return;
+        }
+        try {
+            taskFuture.get();
+        } catch (ExecutionException ex) {
+            setException(ex.getCause());
+            return;
+        } catch (InterruptedException ex) {
+            // future is done, never happens
+            Thread.currentThread().interrupt();
+        }
+        if (mRemaining.decrementAndGet() == 0) {
+            List<TaskReport> taskReports = new ArrayList<>();
+            for (TaskFuture future : mTaskFutures) {
+                try {
+                    taskReports.add(future.get());
+                } catch (Exception ex) {
+                    // all futures succeeded
+                }
+            }
+            set(taskReports);
+        }
+    }
+
+    /**
+     * Cancel all unfinished tasks of the group.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (!setCancelled()) return false;
+        for (TaskFuture taskFuture : mTaskFutures) {
+            taskFuture.cancel(mayInterruptIfRunning);
+        }
+        return true;
+    }
+
+    /**
+     * @return total downloaded bytes of tasks in the group.
+     */
+    public long calculateDownloadedLength() {
+        long length = 0;
+        for (TaskFuture taskFuture : mTaskFutures) {
+            Task task = mFileDownloader.getTaskManager().findTask(taskFuture.getTaskId());
+            if (task == null) continue;
+            if (task.getState() == Task.State.FINISHED) length += Math.max(0, task.getLength());
+            else length += mFileDownloader.getTaskReport(task).calculateDownloadedLength();
+        }
+        return length;
+    }
+
+    /**
+     * @return total length of tasks in the group, or {@link C#UNKNOWN_LENGTH} if length of a task
+     * isn't known yet.
+     */
+    public long getLength() {
+        long length = 0;
+        for (TaskFuture taskFuture : mTaskFutures) {
+            Task task = mFileDownloader.getTaskManager().findTask(taskFuture.getTaskId());
+            if (task == null || task.getLength() <= 0) return C.UNKNOWN_LENGTH;
+            length += task.getLength();
+        }
+        return length;
+    }
+
+    public float calculatePercentDownloaded() {
+        if (isDone() && !isCancelled()) try {
+            get();
+            return 100;
+        } catch (Exception ex) {
+            return 0;
+        }
+        long length = getLength();
+        return length == C.UNKNOWN_LENGTH ? 0 : calculateDownloadedLength() * 100f / length;
+    }
+}
@@ -0,0 +1,188 @@
+package io.github.khangnt.downloader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.List;
+
+import io.github.khangnt.downloader.model.BlockCheckSums;
+import io.github.khangnt.downloader.model.Chunk;
+import io.github.khangnt.downloader.model.Task;
+
+/**
+ * Read content of a task in order while it is downloading. Bytes are read from chunk files as
+ * soon as they are downloaded (and verified, if the task has block checksums), from the merged
+ * file after the task is finished. Reading an undownloaded position blocks, and asks the
+ * downloader to fetch that position first.
+ *
+ * @see IFileDownloader#openInputStream(int)
+ */
+public class TaskInputStream extends InputStream {
+    private static final long POLL_INTERVAL = 50;
+
+    private final FileDownloader mFileDownloader;
+    private final int mTaskId;
+    private long mPosition;
+    private boolean mClosed;
+
+    // stream of the file being read and the task position of its next byte
+    private InputStream mSource;
+    private String mSourceFile;
+    private long mSourcePosition;
+
+    TaskInputStream(FileDownloader fileDownloader, int taskId) {
+        mFileDownloader = fileDownloader;
+        mTaskId = taskId;
+    }
+
+    public int getTaskId() {
+        return mTaskId;
+    }
+
+    /**
+     * @return task position of the next byte.
+     */
+    public long getPosition() {
+        return mPosition;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] buffer = new byte[1];
+        int read = read(buffer, 0, 1);
+        return read <= 0 ? -1 : buffer[0] & 0xff;
+    }
+
+    /**
+     * Move forward without waiting for skipped bytes to be downloaded, the next read asks the
+     * downloader to fetch the new position first.
+     */
+    @Override
+    public long skip(long n) throws IOException {
+        if (mClosed) throw new IOException("Stream closed");
+        if (n <= 0) return 0;
+        TaskManager taskManager = mFileDownloader.getTaskManager();
+        Task task = taskManager == null ? null : taskManager.findTask(mTaskId);
+        if (task == null) throw new IOException("Task-" + mTaskId + " not found");
+        if (task.getLength() > 0) n = Math.max(0, Math.min(n, task.getLength() - mPosition));
+        mPosition += n;
+        return n;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) return 0;
+        boolean waiting = false;
+        while (true) {
+            if (mClosed) throw new IOException("Stream closed");
+            TaskManager taskManager = mFileDownloader.getTaskManager();
+            Task task = taskManager == null ? null : taskManager.findTask(mTaskId);
+            if (task == null) throw new IOException("Task-" + mTaskId + " not found");
+            if (task.getState() == Task.State.FAILED)
+                throw new IOException("Task-" + mTaskId + " failed: " + task.getMessage());
+            if (task.getLength() > 0 && mPosition >= task.getLength()) return -1;
+            int read;
+            if (task.getState() == Task.State.FINISHED) {
+                read = readFile(task.getFilePath(), mPosition, buffer, offset, length);
+                if (read == 0) return -1;
+            } else {
+                read = readChunks(task, buffer, offset, length);
+            }
+            if (read < 0) return -1;
+            if (read > 0) {
+                mPosition += read;
+                if (waiting) mFileDownloader.onInputStreamWaiting(this, C.UNSET);
+                return read;
+            }
+            if (!waiting) {
+                mFileDownloader.onInputStreamWaiting(this, mPosition);
+                waiting = true;
+            }
+            try {
+                Thread.sleep(POLL_INTERVAL);
+            } catch (InterruptedException ex) {
+                throw new InterruptedIOException("Interrupted while waiting for position " + mPosition);
+            }
+        }
+    }
+
+    /**
+     * @return bytes read, 0 if position isn't downloaded yet, -1 at the end of a task which
+     * length is unknown.
+     */
+    private int readChunks(Task task, byte[] buffer, int offset, int length) throws IOException {
+        List<Chunk> chunks = mFileDownloader.getTaskManager().getChunksOfTask(task);
+        for (Chunk chunk : chunks) {
+            long begin = chunk.isResumable() ? chunk.getBegin() : 0;
+            if (chunk.isResumable() && (mPosition < begin || mPosition > chunk.getEnd())) continue;
+            long downloaded = mFileDownloader.getFileManager().getFileSize(chunk.getChunkFile());
+            if (chunk.isResumable()) downloaded = Math.min(downloaded, chunk.getLength());
+            long end = begin + downloaded;
+            BlockCheckSums blockCheckSums = task.getBlockCheckSums();
+            if (!chunk.isFinished() && blockCheckSums != null && blockCheckSums.getBlockCount() > 0) {
+                // workers verify a block before writing its last byte, so complete blocks in the
+                // chunk file are verified, the last partial block isn't yet
+                end = Math.max(begin, blockCheckSums.alignDown(end - 1));
+            }
+            if (mPosition >= end) return !chunk.isResumable() && chunk.isFinished() ? -1 : 0;
+            try {
+                return readFile(chunk.getChunkFile(), mPosition - begin, buffer, offset,
+                        (int) Math.min(length, end - mPosition));
+            } catch (IOException ex) {
+                closeSource();
+                // chunk file is moved or deleted after merging, read merged file in next round
+                if (isChunkMerged(chunk)) return 0;
+                throw ex;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return true if the chunk is finished, or isn't a chunk of the task anymore.
+     */
+    private boolean isChunkMerged(Chunk chunk) {
+        Task task = mFileDownloader.getTaskManager().findTask(mTaskId);
+        if (task == null || task.isDone()) return true;
+        for (Chunk current : mFileDownloader.getTaskManager().getChunksOfTask(task)) {
+            if (current.getId() == chunk.getId()) return current.isFinished();
+        }
+        return true;
+    }
+
+    private int readFile(String file, long filePosition, byte[] buffer, int offset, int length)
+            throws IOException {
+        if (mSource == null || !file.equals(mSourceFile) || mSourcePosition != mPosition) {
+            closeSource();
+            mSource = mFileDownloader.getFileManager().openReadableFile(file);
+            mSourceFile = file;
+            long skip = filePosition;
+            while (skip > 0) {
+                long skipped = mSource.skip(skip);
+                if (skipped <= 0) throw new IOException("Unexpected end of file " + file);
+                skip -= skipped;
+            }
+            mSourcePosition = mPosition;
+        }
+        int read = mSource.read(buffer, offset, length);
+        if (read > 0) mSourcePosition += read;
+        return Math.max(read, 0);
+    }
+
+    private void closeSource() {
+        if (mSource != null) try {
+            mSource.close();
+        } catch (Exception ignore) {
+        }
+        mSource = null;
+        mSourceFile = null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mClosed) return;
+        mClosed = true;
+        closeSource();
+        mFileDownloader.onInputStreamWaiting(this, C.UNSET);
+    }
+}
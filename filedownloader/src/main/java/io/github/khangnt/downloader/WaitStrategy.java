@@ -0,0 +1,26 @@
+package io.github.khangnt.downloader;
+
+/**
+ * How a listener of the ring event dispatcher waits for the next event, see
+ * {@link IFileDownloader#setEventRingCapacity(int)}. Strategies trade latency for CPU usage of
+ * the listener's consumer thread, producers never wait for listeners.
+ */
+public enum WaitStrategy {
+    /**
+     * Spin on the ring, lowest latency, occupies a core.
+     */
+    BUSY_SPIN,
+    /**
+     * Spin a little, then yield the thread between checks.
+     */
+    YIELDING,
+    /**
+     * Spin and yield a little, then sleep ~0.1 ms between checks.
+     */
+    SLEEPING,
+    /**
+     * Park until an event is published, producers only pay for waking listeners which are
+     * parked.
+     */
+    BLOCKING
+}
@@ -0,0 +1,28 @@
+package io.github.khangnt.downloader.exception;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a downloaded block doesn't match its expected digest.
+ */
+public class BlockCheckSumMismatchException extends IOException {
+    private final int mBlockIndex;
+    private final long mBlockBegin;
+
+    public BlockCheckSumMismatchException(int blockIndex, long blockBegin, String expected, String found) {
+        super("Block-" + blockIndex + " checksum mismatch, expect: " + expected + " but found " + found);
+        this.mBlockIndex = blockIndex;
+        this.mBlockBegin = blockBegin;
+    }
+
+    public int getBlockIndex() {
+        return mBlockIndex;
+    }
+
+    /**
+     * @return position in file of the first byte of corrupted block.
+     */
+    public long getBlockBegin() {
+        return mBlockBegin;
+    }
+}
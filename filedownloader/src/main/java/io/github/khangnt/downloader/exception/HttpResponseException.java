@@ -0,0 +1,39 @@
+package io.github.khangnt.downloader.exception;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+
+import io.github.khangnt.downloader.C;
+
+/**
+ * Thrown when server responds an unsuccessful status code.
+ */
+public class HttpResponseException extends IOException {
+    private final int mResponseCode;
+    private final long mRetryAfterMillis;
+
+    public HttpResponseException(int responseCode, String responseMessage, long retryAfterMillis) {
+        super("Unsuccessful response code: " + responseCode + " - " + responseMessage);
+        this.mResponseCode = responseCode;
+        this.mRetryAfterMillis = retryAfterMillis;
+    }
+
+    public int getResponseCode() {
+        return mResponseCode;
+    }
+
+    /**
+     * @return true for 408, 429 and server errors, which may succeed if retried later.
+     */
+    public boolean isTransient() {
+        return mResponseCode == HttpURLConnection.HTTP_CLIENT_TIMEOUT || mResponseCode == 429
+                || mResponseCode / 100 == 5;
+    }
+
+    /**
+     * @return delay requested by Retry-After header, or {@link C#UNSET} if not present.
+     */
+    public long getRetryAfterMillis() {
+        return mRetryAfterMillis;
+    }
+}
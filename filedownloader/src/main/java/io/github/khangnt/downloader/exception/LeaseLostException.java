@@ -0,0 +1,10 @@
+package io.github.khangnt.downloader.exception;
+
+/**
+ * Thrown when a write is made with a lease which was taken over by another node.
+ */
+public class LeaseLostException extends IllegalStateException {
+    public LeaseLostException(String s) {
+        super(s);
+    }
+}
@@ -0,0 +1,20 @@
+package io.github.khangnt.downloader.exception;
+
+import io.github.khangnt.downloader.model.TaskReport;
+
+/**
+ * Cause of the {@link java.util.concurrent.ExecutionException} thrown by a task future when the
+ * task failed.
+ */
+public class TaskFailedException extends Exception {
+    private final TaskReport mTaskReport;
+
+    public TaskFailedException(TaskReport taskReport) {
+        super("Task-" + taskReport.getTask().getId() + " failed: " + taskReport.getTask().getMessage());
+        this.mTaskReport = taskReport;
+    }
+
+    public TaskReport getTaskReport() {
+        return mTaskReport;
+    }
+}
@@ -0,0 +1,36 @@
+package io.github.khangnt.downloader.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Monotonic counter, see {@link Metrics}.
+ */
+public class Counter {
+    private final String mName;
+    private final AtomicLong mValue = new AtomicLong();
+
+    public Counter(String name) {
+        mName = name;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public void increment() {
+        mValue.incrementAndGet();
+    }
+
+    public long get() {
+        return mValue.get();
+    }
+
+    public void reset() {
+        mValue.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return mName + "=" + get();
+    }
+}
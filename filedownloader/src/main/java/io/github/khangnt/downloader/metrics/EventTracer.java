@@ -0,0 +1,80 @@
+package io.github.khangnt.downloader.metrics;
+
+/**
+ * Receives lifecycle events of tasks, chunks and moderator runnables, e.g. to emit them as
+ * Java Flight Recorder events ({@code jdk.jfr.Event} on JDK 11+) and correlate them with GC
+ * and I/O events. Durations are in nanoseconds.
+ * <p>
+ * Events are only built when {@link #isEnabled()} returns true, so a tracer which is
+ * disabled while recording is off costs a volatile read per event. Methods are called on
+ * worker and moderator threads and shouldn't block.
+ */
+public interface EventTracer {
+    EventTracer NONE = new EventTracer() {
+        @Override
+        public boolean isEnabled() {
+            return false;
+        }
+
+        @Override
+        public void onTaskInitialized(int taskId, long length, boolean resumable, int chunkCount,
+                                      long duration) {
+        }
+
+        @Override
+        public void onChunkStarted(int taskId, int chunkId, long begin, long end) {
+        }
+
+        @Override
+        public void onChunkFinished(int taskId, int chunkId, long bytes, long duration) {
+        }
+
+        @Override
+        public void onChunkRetry(int taskId, int chunkId, int retryTime, Throwable error) {
+        }
+
+        @Override
+        public void onChunkSplit(int taskId, int chunkId, int newChunkId, long newChunkBegin) {
+        }
+
+        @Override
+        public void onMergeFinished(int taskId, long bytes, long duration) {
+        }
+
+        @Override
+        public void onChecksumVerified(int taskId, String algorithm, boolean matched) {
+        }
+
+        @Override
+        public void onModeratorRunnableExecuted(long queueLatency, long duration) {
+        }
+    };
+
+    boolean isEnabled();
+
+    /**
+     * Task is initialized, duration includes fetching content length and block checksums.
+     */
+    void onTaskInitialized(int taskId, long length, boolean resumable, int chunkCount, long duration);
+
+    void onChunkStarted(int taskId, int chunkId, long begin, long end);
+
+    /**
+     * @param bytes    length of chunk.
+     * @param duration time since the chunk worker started, including retries.
+     */
+    void onChunkFinished(int taskId, int chunkId, long bytes, long duration);
+
+    void onChunkRetry(int taskId, int chunkId, int retryTime, Throwable error);
+
+    void onChunkSplit(int taskId, int chunkId, int newChunkId, long newChunkBegin);
+
+    void onMergeFinished(int taskId, long bytes, long duration);
+
+    /**
+     * Whole file checksum is verified after merging.
+     */
+    void onChecksumVerified(int taskId, String algorithm, boolean matched);
+
+    void onModeratorRunnableExecuted(long queueLatency, long duration);
+}
@@ -0,0 +1,160 @@
+package io.github.khangnt.downloader.metrics;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Histograms and counters recorded by a {@link io.github.khangnt.downloader.FileDownloader},
+ * and the {@link EventTracer} its workers report to. Durations are in nanoseconds, sizes are
+ * in bytes.
+ */
+public class Metrics {
+    private final Histogram mConnectTime = new Histogram("connect_time_nanos");
+    private final Histogram mTimeToFirstByte = new Histogram("time_to_first_byte_nanos");
+    private final Histogram mChunkDuration = new Histogram("chunk_duration_nanos");
+    private final Histogram mReadSize = new Histogram("read_size_bytes");
+    private final Histogram mMergeDuration = new Histogram("merge_duration_nanos");
+    private final Histogram mModeratorQueueLatency = new Histogram("moderator_queue_latency_nanos");
+
+    private final Counter mChunkRetries = new Counter("chunk_retries");
+    private final Counter mChunkSplits = new Counter("chunk_splits");
+    private final Counter mCoalescedChunks = new Counter("coalesced_chunks");
+    private final Counter mChunkFailures = new Counter("chunk_failures");
+    private final Counter mMergeFailures = new Counter("merge_failures");
+    private final Counter mTaskFailures = new Counter("task_failures");
+    private final Counter mHedgedRequests = new Counter("hedged_requests");
+    private final Counter mHedgeWins = new Counter("hedge_wins");
+    private final Counter mMultiRangeRequests = new Counter("multi_range_requests");
+    private final Counter mMultiRangeFallbacks = new Counter("multi_range_fallbacks");
+
+    private volatile EventTracer mEventTracer = EventTracer.NONE;
+
+    private final List<Histogram> mHistograms = Collections.unmodifiableList(Arrays.asList(
+            mConnectTime, mTimeToFirstByte, mChunkDuration, mReadSize, mMergeDuration,
+            mModeratorQueueLatency));
+    private final List<Counter> mCounters = Collections.unmodifiableList(Arrays.asList(
+            mChunkRetries, mChunkSplits, mCoalescedChunks, mChunkFailures, mMergeFailures, mTaskFailures,
+            mHedgedRequests, mHedgeWins, mMultiRangeRequests, mMultiRangeFallbacks));
+
+    /**
+     * Time to open a connection, send the request and receive response headers.
+     */
+    public Histogram getConnectTime() {
+        return mConnectTime;
+    }
+
+    /**
+     * Time from sending the request to receiving the first byte of response body.
+     */
+    public Histogram getTimeToFirstByte() {
+        return mTimeToFirstByte;
+    }
+
+    /**
+     * Time a chunk worker takes to download its chunk successfully, including retries.
+     */
+    public Histogram getChunkDuration() {
+        return mChunkDuration;
+    }
+
+    /**
+     * Bytes returned by each read from a connection.
+     */
+    public Histogram getReadSize() {
+        return mReadSize;
+    }
+
+    public Histogram getMergeDuration() {
+        return mMergeDuration;
+    }
+
+    /**
+     * Time a runnable waits in moderator queue before it is executed.
+     */
+    public Histogram getModeratorQueueLatency() {
+        return mModeratorQueueLatency;
+    }
+
+    public Counter getChunkRetries() {
+        return mChunkRetries;
+    }
+
+    public Counter getChunkSplits() {
+        return mChunkSplits;
+    }
+
+    /**
+     * Unfinished chunks merged into the chunk before them when their task is resumed.
+     */
+    public Counter getCoalescedChunks() {
+        return mCoalescedChunks;
+    }
+
+    public Counter getChunkFailures() {
+        return mChunkFailures;
+    }
+
+    public Counter getMergeFailures() {
+        return mMergeFailures;
+    }
+
+    public Counter getTaskFailures() {
+        return mTaskFailures;
+    }
+
+    /**
+     * Speculative duplicate requests sent for straggling chunks.
+     */
+    public Counter getHedgedRequests() {
+        return mHedgedRequests;
+    }
+
+    /**
+     * Hedged requests finished before their primary chunk worker.
+     */
+    public Counter getHedgeWins() {
+        return mHedgeWins;
+    }
+
+    /**
+     * Requests fetching the gaps of several chunks at once.
+     */
+    public Counter getMultiRangeRequests() {
+        return mMultiRangeRequests;
+    }
+
+    /**
+     * Multi-range requests answered without multipart/byteranges, their origin falls back to
+     * single range requests.
+     */
+    public Counter getMultiRangeFallbacks() {
+        return mMultiRangeFallbacks;
+    }
+
+    public EventTracer getEventTracer() {
+        return mEventTracer;
+    }
+
+    public void setEventTracer(EventTracer eventTracer) {
+        mEventTracer = eventTracer == null ? EventTracer.NONE : eventTracer;
+    }
+
+    public List<Histogram> getHistograms() {
+        return mHistograms;
+    }
+
+    public List<Counter> getCounters() {
+        return mCounters;
+    }
+
+    public void reset() {
+        for (Histogram histogram : mHistograms) histogram.reset();
+        for (Counter counter : mCounters) counter.reset();
+    }
+
+    @Override
+    public String toString() {
+        return "Metrics{" + mHistograms + ", " + mCounters + '}';
+    }
+}
@@ -0,0 +1,15 @@
+package io.github.khangnt.downloader.metrics;
+
+/**
+ * Receives {@link Metrics} periodically, e.g. to push them to a monitoring system.
+ * Called on a timer thread, implementations shouldn't block for long.
+ */
+public interface MetricsExporter {
+    MetricsExporter NONE = new MetricsExporter() {
+        @Override
+        public void export(Metrics metrics) {
+        }
+    };
+
+    void export(Metrics metrics);
+}
@@ -0,0 +1,118 @@
+package io.github.khangnt.downloader.model;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static io.github.khangnt.downloader.util.Utils.isEmpty;
+
+/**
+ * Checksums of fixed-size blocks of a file, block {@code i} covers range
+ * {@code [i * blockSize, min((i + 1) * blockSize, length) - 1]}.
+ */
+public class BlockCheckSums {
+    private final String mAlgorithm;
+    private final long mBlockSize;
+    private final List<String> mDigests;
+
+    public BlockCheckSums(String algorithm, long blockSize, List<String> digests) {
+        if (isEmpty(algorithm))
+            throw new IllegalArgumentException("Block checksum algorithm can't be empty");
+        if (blockSize <= 0)
+            throw new IllegalArgumentException("Block size must > 0");
+        this.mAlgorithm = algorithm;
+        this.mBlockSize = blockSize;
+        this.mDigests = Collections.unmodifiableList(new ArrayList<>(digests));
+    }
+
+    /**
+     * Parse a manifest contains one hex digest per line, ordered by block index.
+     * Empty lines and lines start with '#' are ignored, text after the first whitespace
+     * of a line (e.g. file name in *sum output) is also ignored.
+     */
+    public static BlockCheckSums parseManifest(String algorithm, long blockSize,
+                                               InputStream manifest) throws IOException {
+        List<String> digests = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(manifest, "UTF-8"));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (line.length() == 0 || line.startsWith("#")) continue;
+            int space = indexOfWhitespace(line);
+            digests.add(space < 0 ? line : line.substring(0, space));
+        }
+        return new BlockCheckSums(algorithm, blockSize, digests);
+    }
+
+    private static int indexOfWhitespace(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (Character.isWhitespace(s.charAt(i))) return i;
+        }
+        return -1;
+    }
+
+    public String getAlgorithm() {
+        return mAlgorithm;
+    }
+
+    public long getBlockSize() {
+        return mBlockSize;
+    }
+
+    public int getBlockCount() {
+        return mDigests.size();
+    }
+
+    public String getDigest(int blockIndex) {
+        return mDigests.get(blockIndex);
+    }
+
+    public int getBlockIndex(long position) {
+        return (int) (position / mBlockSize);
+    }
+
+    public long getBlockBegin(int blockIndex) {
+        return blockIndex * mBlockSize;
+    }
+
+    /**
+     * @return end position (inclusive) of block, the last block is cut at file length.
+     */
+    public long getBlockEnd(int blockIndex, long fileLength) {
+        return Math.min((blockIndex + 1) * mBlockSize, fileLength) - 1;
+    }
+
+    /**
+     * Check number of digests matches with file length.
+     */
+    public boolean isValidFor(long fileLength) {
+        return fileLength > 0 && (fileLength + mBlockSize - 1) / mBlockSize == mDigests.size();
+    }
+
+    /**
+     * Round position up to the nearest block boundary.
+     */
+    public long alignUp(long position) {
+        return (position + mBlockSize - 1) / mBlockSize * mBlockSize;
+    }
+
+    /**
+     * Round position down to the nearest block boundary.
+     */
+    public long alignDown(long position) {
+        return position / mBlockSize * mBlockSize;
+    }
+
+    @Override
+    public String toString() {
+        return "BlockCheckSums{" +
+                "mAlgorithm='" + mAlgorithm + '\'' +
+                ", mBlockSize=" + mBlockSize +
+                ", blockCount=" + mDigests.size() +
+                '}';
+    }
+}
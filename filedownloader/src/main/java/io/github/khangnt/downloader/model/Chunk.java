@@ -17,6 +17,7 @@ public class Chunk {
     private boolean mResumable = false;
     private long mBegin = UNSET;
     private long mEnd = UNSET;
+    private long mDurableLength = UNSET;
 
     private Chunk() {}
 
@@ -53,11 +54,20 @@ public class Chunk {
         return mFinished;
     }
 
+    /**
+     * @return bytes of chunk file known to be synced to disk, or {@link C#UNSET} if it isn't
+     * tracked, see {@link io.github.khangnt.downloader.DurabilityPolicy}.
+     */
+    public long getDurableLength() {
+        return mDurableLength;
+    }
+
     public Builder newBuilder() {
         return new Builder(getTaskId(), getChunkFile())
                 .setId(getId())
                 .setRange(getBegin(), getEnd())
-                .setFinished(isFinished());
+                .setFinished(isFinished())
+                .setDurableLength(getDurableLength());
     }
 
     @Override
@@ -81,6 +91,7 @@ public class Chunk {
         result = 31 * result + (mResumable ? 1 : 0);
         result = 31 * result + (int) (mBegin ^ (mBegin >>> 32));
         result = 31 * result + (int) (mEnd ^ (mEnd >>> 32));
+        result = 31 * result + (int) (mDurableLength ^ (mDurableLength >>> 32));
         return result;
     }
 
@@ -121,6 +132,11 @@ public class Chunk {
             return this;
         }
 
+        public Builder setDurableLength(long durableLength) {
+            mChunk.mDurableLength = durableLength;
+            return this;
+        }
+
         public int getId() {
             return mChunk.mId;
         }
@@ -154,6 +170,10 @@ public class Chunk {
             return mChunk.mFinished;
         }
 
+        public long getDurableLength() {
+            return mChunk.mDurableLength;
+        }
+
         public Chunk build() {
             return mChunk;
         }
@@ -1,5 +1,9 @@
 package io.github.khangnt.downloader.model;
 
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 import static io.github.khangnt.downloader.C.DEFAULT_MAX_PARALLEL_CONNECTIONS;
 import static io.github.khangnt.downloader.C.UNSET;
 import static io.github.khangnt.downloader.util.Utils.isEmpty;
@@ -31,6 +35,9 @@ public class Task {
     private int mMaxParallelConnections = DEFAULT_MAX_PARALLEL_CONNECTIONS;
     private String mCheckSumAlgorithm;
     private String mCheckSumDigest;
+    private BlockCheckSums mBlockCheckSums;
+    private String mBlockCheckSumManifestUrl;
+    private Map<String, String> mStageResults = Collections.emptyMap();
 
     private Task() {}
 
@@ -78,6 +85,25 @@ public class Task {
         return mCheckSumAlgorithm;
     }
 
+    /**
+     * @return checksums of fixed-size blocks, or null if task doesn't have block checksums or
+     * they are not fetched from manifest yet.
+     */
+    public BlockCheckSums getBlockCheckSums() {
+        return mBlockCheckSums;
+    }
+
+    public String getBlockCheckSumManifestUrl() {
+        return mBlockCheckSumManifestUrl;
+    }
+
+    /**
+     * @return results of processing stages by stage name, set when the task is finished.
+     */
+    public Map<String, String> getStageResults() {
+        return mStageResults;
+    }
+
     public boolean isDone() {
         return mState == State.FINISHED || mState == State.FAILED;
     }
@@ -91,6 +117,9 @@ public class Task {
                 .setMessage(getMessage())
                 .setState(getState())
                 .setCheckSum(getCheckSumAlgorithm(), getCheckSumDigest())
+                .setBlockCheckSums(getBlockCheckSums())
+                .setBlockCheckSumManifestUrl(getBlockCheckSumManifestUrl())
+                .setStageResults(getStageResults())
                 .setMaxParallelConnections(getMaxParallelConnections());
     }
 
@@ -129,6 +158,9 @@ public class Task {
                 ", mMaxParallelConnections=" + mMaxParallelConnections +
                 ", mCheckSumAlgorithm='" + mCheckSumAlgorithm + '\'' +
                 ", mCheckSumDigest='" + mCheckSumDigest + '\'' +
+                ", mBlockCheckSums=" + mBlockCheckSums +
+                ", mBlockCheckSumManifestUrl='" + mBlockCheckSumManifestUrl + '\'' +
+                ", mStageResults=" + mStageResults +
                 '}';
     }
 
@@ -178,6 +210,39 @@ public class Task {
             return this;
         }
 
+        /**
+         * Verify each block as soon as it's downloaded, a corrupted block will be re-downloaded
+         * instead of the whole file.
+         */
+        public Builder setBlockCheckSums(BlockCheckSums blockCheckSums) {
+            mTask.mBlockCheckSums = blockCheckSums;
+            return this;
+        }
+
+        /**
+         * Same as {@link #setBlockCheckSums(BlockCheckSums)}, but digests will be fetched from
+         * a manifest when the task is initialized, see {@link BlockCheckSums#parseManifest}.
+         */
+        public Builder setBlockCheckSumManifest(String algorithm, long blockSize, String manifestUrl) {
+            if (isEmpty(manifestUrl))
+                throw new IllegalArgumentException("Manifest url can't be empty");
+            mTask.mBlockCheckSums = new BlockCheckSums(algorithm, blockSize,
+                    Collections.<String>emptyList());
+            mTask.mBlockCheckSumManifestUrl = manifestUrl;
+            return this;
+        }
+
+        Builder setBlockCheckSumManifestUrl(String manifestUrl) {
+            mTask.mBlockCheckSumManifestUrl = manifestUrl;
+            return this;
+        }
+
+        public Builder setStageResults(Map<String, String> stageResults) {
+            mTask.mStageResults = stageResults.isEmpty() ? Collections.<String, String>emptyMap()
+                    : Collections.unmodifiableMap(new LinkedHashMap<>(stageResults));
+            return this;
+        }
+
         public Builder setMaxParallelConnections(int n) {
             if (n <= 0) throw new IllegalArgumentException("Max chunk can't < 0");
             mTask.mMaxParallelConnections = n;
@@ -224,6 +289,18 @@ public class Task {
             return mTask.mCheckSumAlgorithm;
         }
 
+        public BlockCheckSums getBlockCheckSums() {
+            return mTask.mBlockCheckSums;
+        }
+
+        public String getBlockCheckSumManifestUrl() {
+            return mTask.mBlockCheckSumManifestUrl;
+        }
+
+        public Map<String, String> getStageResults() {
+            return mTask.mStageResults;
+        }
+
         public int getMaxChunks() {
             return mTask.mMaxParallelConnections;
         }
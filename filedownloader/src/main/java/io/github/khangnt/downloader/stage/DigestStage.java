@@ -0,0 +1,41 @@
+package io.github.khangnt.downloader.stage;
+
+import java.io.InputStream;
+import java.security.MessageDigest;
+
+import io.github.khangnt.downloader.ProcessingStage;
+import io.github.khangnt.downloader.model.Task;
+
+import static io.github.khangnt.downloader.util.Utils.byteArrToHex;
+
+/**
+ * Hash content of a task with an algorithm other than its checksum, result is the hex digest.
+ */
+public class DigestStage implements ProcessingStage {
+    private static final int BUFFER_SIZE = 16 * 1024; // 16 KB
+
+    private final String mAlgorithm;
+
+    /**
+     * @param algorithm name of a {@link MessageDigest} algorithm, e.g. SHA-256.
+     */
+    public DigestStage(String algorithm) {
+        mAlgorithm = algorithm;
+    }
+
+    @Override
+    public String getName() {
+        return mAlgorithm;
+    }
+
+    @Override
+    public String process(Task task, InputStream in) throws Exception {
+        MessageDigest messageDigest = MessageDigest.getInstance(mAlgorithm);
+        int len;
+        byte buffer[] = new byte[BUFFER_SIZE];
+        while ((len = in.read(buffer, 0, BUFFER_SIZE)) > 0) {
+            messageDigest.update(buffer, 0, len);
+        }
+        return byteArrToHex(messageDigest.digest());
+    }
+}
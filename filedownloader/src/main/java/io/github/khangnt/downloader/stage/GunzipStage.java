@@ -0,0 +1,56 @@
+package io.github.khangnt.downloader.stage;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+
+import io.github.khangnt.downloader.FileManager;
+import io.github.khangnt.downloader.ProcessingStage;
+import io.github.khangnt.downloader.model.Task;
+
+/**
+ * Decompress a gzip task to another file, result is the decompressed length.
+ */
+public class GunzipStage implements ProcessingStage, ProcessingStage.Discardable {
+    public static final String NAME = "gunzip";
+    private static final int BUFFER_SIZE = 16 * 1024; // 16 KB
+
+    private final FileManager mFileManager;
+    private final String mOutputPath;
+
+    public GunzipStage(FileManager fileManager, String outputPath) {
+        mFileManager = fileManager;
+        mOutputPath = outputPath;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public String process(Task task, InputStream in) throws Exception {
+        long length = 0;
+        InputStream gzip = new GZIPInputStream(in, BUFFER_SIZE);
+        OutputStream os = mFileManager.openWritableFile(mOutputPath, false);
+        try {
+            int len;
+            byte buffer[] = new byte[BUFFER_SIZE];
+            while ((len = gzip.read(buffer, 0, BUFFER_SIZE)) > 0) {
+                os.write(buffer, 0, len);
+                length += len;
+            }
+        } finally {
+            try {
+                os.close();
+            } catch (Exception ignore) {
+            }
+        }
+        return String.valueOf(length);
+    }
+
+    @Override
+    public void discard(Task task) {
+        mFileManager.deleteFile(mOutputPath);
+    }
+}
@@ -0,0 +1,84 @@
+package io.github.khangnt.downloader.stage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import io.github.khangnt.downloader.ExtendedFileManager;
+import io.github.khangnt.downloader.FileManager;
+import io.github.khangnt.downloader.FileManagerAdapter;
+import io.github.khangnt.downloader.ProcessingStage;
+import io.github.khangnt.downloader.model.Task;
+
+/**
+ * Unpack a zip task into a directory, result is the number of unpacked files. Entries are read
+ * from local headers in stream order, the central directory at the end isn't needed.
+ */
+public class UnzipStage implements ProcessingStage, ProcessingStage.Discardable {
+    public static final String NAME = "unzip";
+    private static final int BUFFER_SIZE = 16 * 1024; // 16 KB
+
+    private final ExtendedFileManager mFileManager;
+    private final File mOutputDir;
+    // files unpacked by the last run, deleted by discard()
+    private final List<String> mUnpackedFiles = new CopyOnWriteArrayList<>();
+
+    public UnzipStage(FileManager fileManager, String outputDir) {
+        mFileManager = FileManagerAdapter.of(fileManager);
+        mOutputDir = new File(outputDir);
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public String process(Task task, InputStream in) throws Exception {
+        String outputDir = mOutputDir.getCanonicalPath() + File.separator;
+        int files = 0;
+        mUnpackedFiles.clear();
+        ZipInputStream zip = new ZipInputStream(in);
+        ZipEntry entry;
+        byte buffer[] = new byte[BUFFER_SIZE];
+        while ((entry = zip.getNextEntry()) != null) {
+            File file = new File(mOutputDir, entry.getName());
+            if (!file.getCanonicalPath().startsWith(outputDir)) {
+                throw new IOException("Zip entry is outside of output directory: " + entry.getName());
+            }
+            if (entry.isDirectory()) {
+                mFileManager.createDirectories(file.getPath());
+                continue;
+            }
+            mFileManager.createDirectories(file.getParent());
+            mUnpackedFiles.add(file.getPath());
+            OutputStream os = mFileManager.openWritableFile(file.getPath(), false);
+            try {
+                int len;
+                while ((len = zip.read(buffer, 0, BUFFER_SIZE)) > 0) {
+                    os.write(buffer, 0, len);
+                }
+            } finally {
+                try {
+                    os.close();
+                } catch (Exception ignore) {
+                }
+            }
+            files++;
+        }
+        return String.valueOf(files);
+    }
+
+    @Override
+    public void discard(Task task) {
+        for (String file : mUnpackedFiles) {
+            mFileManager.deleteFile(file);
+        }
+        mUnpackedFiles.clear();
+    }
+}
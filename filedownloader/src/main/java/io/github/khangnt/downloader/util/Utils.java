@@ -1,5 +1,8 @@
 package io.github.khangnt.downloader.util;
 
+import java.net.MalformedURLException;
+import java.net.URL;
+
 /**
  * Created by Khang NT on 6/2/17.
  * Email: khang.neon.1997@gmail.com
@@ -20,6 +23,17 @@ public class Utils {
         return l1 < l2 ? -1 : (l1 == l2 ? 0 : 1);
     }
 
+    /**
+     * @return host of the url, or the url itself if it is malformed.
+     */
+    public static String getHost(String url) {
+        try {
+            return new URL(url).getHost();
+        } catch (MalformedURLException ex) {
+            return url;
+        }
+    }
+
     public static String byteArrToHex(byte[] arr) {
         String result = "";
         for (int i = 0; i < arr.length; i++) {
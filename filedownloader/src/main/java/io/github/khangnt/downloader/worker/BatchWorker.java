@@ -0,0 +1,301 @@
+package io.github.khangnt.downloader.worker;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+
+import io.github.khangnt.downloader.C;
+import io.github.khangnt.downloader.CircuitBreaker;
+import io.github.khangnt.downloader.DownloadSpeedMeter;
+import io.github.khangnt.downloader.DurabilityPolicy;
+import io.github.khangnt.downloader.ExtendedFileManager;
+import io.github.khangnt.downloader.FileManager;
+import io.github.khangnt.downloader.FileManagerAdapter;
+import io.github.khangnt.downloader.FileSyncer;
+import io.github.khangnt.downloader.HttpClient;
+import io.github.khangnt.downloader.Log;
+import io.github.khangnt.downloader.ProcessingPipeline;
+import io.github.khangnt.downloader.RetryPolicy;
+import io.github.khangnt.downloader.metrics.Metrics;
+import io.github.khangnt.downloader.model.Task;
+import io.github.khangnt.downloader.util.Utils;
+
+import static io.github.khangnt.downloader.util.Utils.byteArrToHex;
+import static io.github.khangnt.downloader.util.Utils.checkInterrupted;
+import static io.github.khangnt.downloader.util.Utils.isEmpty;
+
+/**
+ * Fetch small tasks of an origin one after another, each with a single GET. A response is
+ * fully read and closed before the next request, so the connection is kept alive and reused.
+ * Body is written to a temp file beside the target, verified while it is read, and renamed to
+ * the target.
+ */
+public class BatchWorker extends Thread implements BatchWorkerListener, ConnectionStats {
+    private static final int BUFFER_SIZE = 16 * 1024; // 16 KB
+
+    private final String mOrigin;
+    private final HttpClient mHttpClient;
+    private final ExtendedFileManager mFileManager;
+    private final DownloadSpeedMeter mDownloadSpeedMeter;
+    private final FileSyncer mFileSyncer;
+    private final Metrics mMetrics;
+    private final RetryPolicy mRetryPolicy;
+    private final CircuitBreaker mCircuitBreaker;
+    private final BatchWorkerListener mListener;
+    private volatile int mCurrentTaskId = -1;
+    private volatile boolean mCurrentTaskCancelled;
+    // totals of this worker, written by this worker thread only
+    private volatile long mBytesRead;
+    private volatile int mRequestFailures;
+    private volatile int mFirstByteCount;
+    private volatile long mLastTimeToFirstByte = C.UNSET;
+
+    /**
+     * @param fileSyncer     syncer applies {@link DurabilityPolicy}, or null to never sync.
+     * @param circuitBreaker circuit breaker shared by workers, or null to always connect.
+     */
+    public BatchWorker(String origin, HttpClient httpClient, FileManager fileManager,
+                       DownloadSpeedMeter downloadSpeedMeter, FileSyncer fileSyncer, Metrics metrics,
+                       RetryPolicy retryPolicy, CircuitBreaker circuitBreaker,
+                       BatchWorkerListener listener) {
+        mOrigin = origin;
+        mHttpClient = httpClient;
+        mFileManager = FileManagerAdapter.of(fileManager);
+        mDownloadSpeedMeter = downloadSpeedMeter;
+        mFileSyncer = fileSyncer;
+        mMetrics = metrics;
+        mRetryPolicy = retryPolicy;
+        mCircuitBreaker = circuitBreaker;
+        mListener = listener;
+    }
+
+    public String getOrigin() {
+        return mOrigin;
+    }
+
+    @Override
+    public long getBytesRead() {
+        return mBytesRead;
+    }
+
+    @Override
+    public int getRequestFailures() {
+        return mRequestFailures;
+    }
+
+    @Override
+    public int getFirstByteCount() {
+        return mFirstByteCount;
+    }
+
+    @Override
+    public long getLastTimeToFirstByte() {
+        return mLastTimeToFirstByte;
+    }
+
+    /**
+     * Drop the task if it is being fetched, without stopping the worker. Temp file of the task is
+     * deleted, nothing is reported for it.
+     */
+    public void cancelTask(int taskId) {
+        if (mCurrentTaskId == taskId) mCurrentTaskCancelled = true;
+    }
+
+    @Override
+    public void run() {
+        Task task;
+        while ((task = pollBatchTask(this)) != null) {
+            mCurrentTaskCancelled = false;
+            mCurrentTaskId = task.getId();
+            try {
+                fetchWithRetry(task);
+            } catch (InterruptedException ex) {
+                mFileManager.deleteFile(getTempFileBeside(task));
+                onBatchTaskInterrupted(this, task);
+                return;
+            } finally {
+                mCurrentTaskId = -1;
+            }
+        }
+        onBatchWorkerFinished(this);
+    }
+
+    private void fetchWithRetry(Task task) throws InterruptedException {
+        long startTime = System.nanoTime();
+        String tempFile = getTempFileBeside(task);
+        int retryTime = 0;
+        while (true) {
+            try {
+                fetch(task, tempFile, startTime);
+                return;
+            } catch (InterruptedIOException ex) {
+                throw new InterruptedException();
+            } catch (InterruptedException ex) {
+                throw ex;
+            } catch (Exception ex) {
+                mFileManager.deleteFile(tempFile);
+                if (mCurrentTaskCancelled) return;
+                mRequestFailures++;
+                retryTime++;
+                if (!mRetryPolicy.isRetryable(ex) || retryTime >= mRetryPolicy.getMaxAttempts()) {
+                    onBatchTaskError(this, task, retryTime > 1 ? "Exceed max retry: "
+                            + ex.getMessage() : ex.getMessage(), ex);
+                    return;
+                }
+                mMetrics.getChunkRetries().increment();
+                long delay = mRetryPolicy.getRetryDelay(retryTime, ex);
+                Log.d(ex, "[Batch %s] Task-%d failed, retry %d after %d ms", mOrigin, task.getId(),
+                        retryTime, delay);
+                if (delay > 0) Thread.sleep(delay);
+            }
+        }
+    }
+
+    private void fetch(Task task, String tempFile, long startTime) throws Exception {
+        // a new pipeline for each attempt, stages of a failed attempt are aborted
+        ProcessingPipeline processingPipeline = newProcessingPipeline(task);
+        try {
+            fetch(task, tempFile, startTime, processingPipeline);
+        } finally {
+            // no-op if the pipeline is finished
+            if (processingPipeline != null) processingPipeline.abort();
+        }
+    }
+
+    private void fetch(Task task, String tempFile, long startTime,
+                       ProcessingPipeline processingPipeline) throws Exception {
+        MessageDigest messageDigest = null;
+        if (!isEmpty(task.getCheckSumAlgorithm())) {
+            try {
+                messageDigest = MessageDigest.getInstance(task.getCheckSumAlgorithm());
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("Invalid check sum algorithm: "
+                        + task.getCheckSumAlgorithm(), e);
+            }
+        }
+        long fileLength = 0;
+        InputStream is = null;
+        OutputStream os = null;
+        try {
+            // wait while the host is failing, instead of adding load to it
+            if (mCircuitBreaker != null) mCircuitBreaker.acquire(Utils.getHost(task.getUrl()));
+            long requestTime = System.nanoTime();
+            is = ChunkWorker.openConnection(mHttpClient, mCircuitBreaker, task,
+                    Collections.<String, String>emptyMap());
+            mMetrics.getConnectTime().record(System.nanoTime() - requestTime);
+            os = mFileManager.openWritableFile(tempFile, false);
+            int len;
+            byte buffer[] = new byte[BUFFER_SIZE];
+            while (checkInterrupted() && !mCurrentTaskCancelled
+                    && (len = is.read(buffer, 0, BUFFER_SIZE)) > 0) {
+                if (requestTime != 0) {
+                    mLastTimeToFirstByte = System.nanoTime() - requestTime;
+                    mFirstByteCount++;
+                    mMetrics.getTimeToFirstByte().record(mLastTimeToFirstByte);
+                    requestTime = 0;
+                }
+                mBytesRead += len;
+                os.write(buffer, 0, len);
+                fileLength += len;
+                mDownloadSpeedMeter.onBytesDownloaded(len);
+                if (messageDigest != null) messageDigest.update(buffer, 0, len);
+                if (processingPipeline != null) processingPipeline.write(buffer, 0, len);
+            }
+        } finally {
+            try {
+                // a fully read response returns its connection to the keep-alive cache
+                if (is != null) is.close();
+            } catch (Exception ignore) {
+            }
+            try {
+                if (os != null) os.close();
+            } catch (Exception ignore) {
+            }
+        }
+        if (mCurrentTaskCancelled) {
+            mFileManager.deleteFile(tempFile);
+            return;
+        }
+        if (task.getLength() > 0 && fileLength != task.getLength()) {
+            throw new IOException(String.format(Locale.US,
+                    "Content length mismatch, expect: %d but found %d", task.getLength(), fileLength));
+        }
+        String checksum = null;
+        if (messageDigest != null) {
+            checksum = byteArrToHex(messageDigest.digest());
+            if (!isEmpty(task.getCheckSumDigest())
+                    && !task.getCheckSumDigest().equalsIgnoreCase(checksum)) {
+                mFileManager.deleteFile(tempFile);
+                // outputs of stages are from content which failed verification
+                if (processingPipeline != null) processingPipeline.discard();
+                onBatchTaskCheckSumFailed(this, task, task.getCheckSumAlgorithm(),
+                        task.getCheckSumDigest(), checksum);
+                return;
+            }
+        }
+        Map<String, String> stageResults = processingPipeline != null ? processingPipeline.finish()
+                : Collections.<String, String>emptyMap();
+        if (mFileSyncer != null && mFileSyncer.getPolicy() != DurabilityPolicy.NONE) {
+            // file must be on disk before the task is finished
+            mFileSyncer.sync(tempFile);
+        }
+        if (mCurrentTaskCancelled) {
+            mFileManager.deleteFile(tempFile);
+            return;
+        }
+        mFileManager.renameFile(tempFile, task.getFilePath());
+        mMetrics.getChunkDuration().record(System.nanoTime() - startTime);
+        onBatchTaskFinished(this, task, fileLength, checksum, stageResults);
+    }
+
+    @Override
+    public Task pollBatchTask(BatchWorker worker) {
+        return mListener != null ? mListener.pollBatchTask(worker) : null;
+    }
+
+    @Override
+    public String getTempFileBeside(Task task) {
+        return mListener.getTempFileBeside(task);
+    }
+
+    @Override
+    public ProcessingPipeline newProcessingPipeline(Task task) {
+        return mListener.newProcessingPipeline(task);
+    }
+
+    @Override
+    public void onBatchTaskFinished(BatchWorker worker, Task task, long fileLength, String checkSum,
+                                    Map<String, String> stageResults) {
+        if (mListener != null)
+            mListener.onBatchTaskFinished(worker, task, fileLength, checkSum, stageResults);
+    }
+
+    @Override
+    public void onBatchTaskError(BatchWorker worker, Task task, String reason, Throwable error) {
+        mMetrics.getChunkFailures().increment();
+        if (mListener != null) mListener.onBatchTaskError(worker, task, reason, error);
+    }
+
+    @Override
+    public void onBatchTaskCheckSumFailed(BatchWorker worker, Task task, String algorithm,
+                                          String expect, String found) {
+        if (mListener != null)
+            mListener.onBatchTaskCheckSumFailed(worker, task, algorithm, expect, found);
+    }
+
+    @Override
+    public void onBatchTaskInterrupted(BatchWorker worker, Task task) {
+        if (mListener != null) mListener.onBatchTaskInterrupted(worker, task);
+    }
+
+    @Override
+    public void onBatchWorkerFinished(BatchWorker worker) {
+        if (mListener != null) mListener.onBatchWorkerFinished(worker);
+    }
+}
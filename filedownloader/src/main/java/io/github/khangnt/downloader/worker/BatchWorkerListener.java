@@ -0,0 +1,25 @@
+package io.github.khangnt.downloader.worker;
+
+import java.util.Map;
+
+import io.github.khangnt.downloader.ProcessingPipeline;
+import io.github.khangnt.downloader.model.Task;
+
+public interface BatchWorkerListener {
+    /**
+     * @return next queued task of the worker's origin, or null if the worker should exit.
+     */
+    Task pollBatchTask(BatchWorker worker);
+    String getTempFileBeside(Task task);
+    /**
+     * @return pipeline feeding processing stages of the task, or null if it has no stages.
+     */
+    ProcessingPipeline newProcessingPipeline(Task task);
+    void onBatchTaskFinished(BatchWorker worker, Task task, long fileLength, String checkSum,
+                             Map<String, String> stageResults);
+    void onBatchTaskError(BatchWorker worker, Task task, String reason, Throwable error);
+    void onBatchTaskCheckSumFailed(BatchWorker worker, Task task, String algorithm, String expect,
+                                   String found);
+    void onBatchTaskInterrupted(BatchWorker worker, Task task);
+    void onBatchWorkerFinished(BatchWorker worker);
+}
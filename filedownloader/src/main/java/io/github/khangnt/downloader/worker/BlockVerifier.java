@@ -0,0 +1,83 @@
+package io.github.khangnt.downloader.worker;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import io.github.khangnt.downloader.exception.BlockCheckSumMismatchException;
+import io.github.khangnt.downloader.model.BlockCheckSums;
+
+import static io.github.khangnt.downloader.util.Utils.byteArrToHex;
+
+/**
+ * Incrementally hash a sequential stream of bytes and verify each block when its last byte
+ * is fed. Not thread safe, each {@link ChunkWorker} owns its verifier so blocks of different
+ * chunks are hashed in parallel.
+ */
+class BlockVerifier {
+    private final BlockCheckSums mBlockCheckSums;
+    private final long mFileLength;
+    private final MessageDigest mMessageDigest;
+
+    private long mPosition;
+    private int mBlockIndex;
+    private long mBlockEnd;
+
+    /**
+     * @param position position in file of the next byte will be fed, must be a block boundary.
+     */
+    BlockVerifier(BlockCheckSums blockCheckSums, long fileLength, long position) {
+        if (position % blockCheckSums.getBlockSize() != 0)
+            throw new IllegalArgumentException("Position " + position + " is not block aligned");
+        try {
+            mMessageDigest = MessageDigest.getInstance(blockCheckSums.getAlgorithm());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Invalid block checksum algorithm: "
+                    + blockCheckSums.getAlgorithm(), e);
+        }
+        mBlockCheckSums = blockCheckSums;
+        mFileLength = fileLength;
+        mPosition = position;
+        mBlockIndex = blockCheckSums.getBlockIndex(position);
+        mBlockEnd = blockCheckSums.getBlockEnd(mBlockIndex, fileLength);
+    }
+
+    /**
+     * Feed bytes have been written before (e.g. resume a partial chunk file).
+     */
+    void prime(InputStream is, long count) throws IOException {
+        byte[] buffer = new byte[ChunkWorker.BUFFER_SIZE];
+        while (count > 0) {
+            int read = is.read(buffer, 0, (int) Math.min(buffer.length, count));
+            if (read <= 0) throw new IOException("Unexpected end of chunk file");
+            update(buffer, 0, read);
+            count -= read;
+        }
+    }
+
+    /**
+     * @throws BlockCheckSumMismatchException if a block completed by these bytes is corrupted.
+     */
+    void update(byte[] buffer, int offset, int len) throws BlockCheckSumMismatchException {
+        while (len > 0 && mBlockIndex < mBlockCheckSums.getBlockCount()) {
+            int count = (int) Math.min(len, mBlockEnd - mPosition + 1);
+            mMessageDigest.update(buffer, offset, count);
+            mPosition += count;
+            offset += count;
+            len -= count;
+            if (mPosition > mBlockEnd) verifyBlock();
+        }
+    }
+
+    private void verifyBlock() throws BlockCheckSumMismatchException {
+        String found = byteArrToHex(mMessageDigest.digest());
+        String expected = mBlockCheckSums.getDigest(mBlockIndex);
+        if (!expected.equalsIgnoreCase(found)) {
+            throw new BlockCheckSumMismatchException(mBlockIndex,
+                    mBlockCheckSums.getBlockBegin(mBlockIndex), expected, found);
+        }
+        mBlockIndex++;
+        mBlockEnd = mBlockCheckSums.getBlockEnd(mBlockIndex, mFileLength);
+    }
+}
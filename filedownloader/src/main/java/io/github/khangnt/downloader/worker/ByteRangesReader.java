@@ -0,0 +1,191 @@
+package io.github.khangnt.downloader.worker;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static io.github.khangnt.downloader.util.Utils.isEmpty;
+
+/**
+ * Read parts of a partial response to a multi-range request one after another: parts of a
+ * multipart/byteranges body, or the only part described by Content-Range header if the origin
+ * answered with a single range. Part data is read by the length in its Content-Range, the body
+ * isn't scanned for the boundary.
+ */
+class ByteRangesReader {
+    private static final String MULTIPART_BYTE_RANGES = "multipart/byteranges";
+    private static final int MAX_LINE_LENGTH = 8 * 1024;
+    // lines of preamble and part headers, a longer run is not a multipart/byteranges body
+    private static final int MAX_LINES = 64;
+
+    private final InputStream mInput;
+    // null if the response is a single part
+    private final String mDelimiter;
+    private boolean mSinglePartPending;
+    private boolean mFinished;
+    private long mPartBegin;
+    private long mPartEnd;
+    private long mRemaining;
+    private byte[] mSkipBuffer;
+
+    private ByteRangesReader(InputStream input, String boundary, long[] singlePartRange) {
+        mInput = new BufferedInputStream(input, ChunkWorker.BUFFER_SIZE);
+        mDelimiter = boundary == null ? null : "--" + boundary;
+        if (singlePartRange != null) {
+            mSinglePartPending = true;
+            setPart(singlePartRange);
+        }
+    }
+
+    /**
+     * @param contentType  Content-Type header of the response.
+     * @param contentRange Content-Range header of the response.
+     * @return null if the response is neither multipart/byteranges nor a single range, e.g. the
+     * origin ignored the range header and sent the whole content.
+     */
+    static ByteRangesReader open(InputStream input, String contentType, String contentRange) {
+        String boundary = getBoundary(contentType);
+        if (boundary != null) return new ByteRangesReader(input, boundary, null);
+        long[] range = parseContentRange(contentRange);
+        return range == null ? null : new ByteRangesReader(input, null, range);
+    }
+
+    /**
+     * @return boundary of a multipart/byteranges content type, null for other types.
+     */
+    static String getBoundary(String contentType) {
+        if (isEmpty(contentType)) return null;
+        String[] params = contentType.split(";");
+        if (!params[0].trim().equalsIgnoreCase(MULTIPART_BYTE_RANGES)) return null;
+        for (int i = 1; i < params.length; i++) {
+            String param = params[i].trim();
+            int equals = param.indexOf('=');
+            if (equals <= 0 || !param.substring(0, equals).trim().equalsIgnoreCase("boundary"))
+                continue;
+            String boundary = param.substring(equals + 1).trim();
+            if (boundary.length() >= 2 && boundary.startsWith("\"") && boundary.endsWith("\""))
+                boundary = boundary.substring(1, boundary.length() - 1);
+            return isEmpty(boundary) ? null : boundary;
+        }
+        return null;
+    }
+
+    /**
+     * @param contentRange e.g. "bytes 0-499/1234" or "bytes 0-499/*".
+     * @return first and last position of the range, or null if it isn't a valid byte range.
+     */
+    static long[] parseContentRange(String contentRange) {
+        if (isEmpty(contentRange)) return null;
+        String value = contentRange.trim();
+        if (!value.regionMatches(true, 0, "bytes ", 0, 6)) return null;
+        int dash = value.indexOf('-', 6);
+        int slash = value.indexOf('/', 6);
+        if (dash < 0 || slash < dash) return null;
+        try {
+            long begin = Long.parseLong(value.substring(6, dash).trim());
+            long end = Long.parseLong(value.substring(dash + 1, slash).trim());
+            return begin < 0 || end < begin ? null : new long[]{begin, end};
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+
+    boolean isMultipart() {
+        return mDelimiter != null;
+    }
+
+    /**
+     * Skip the rest of the current part and move to the next one.
+     *
+     * @return false if there are no more parts.
+     */
+    boolean nextPart() throws IOException {
+        if (mDelimiter == null) {
+            if (!mSinglePartPending) return false;
+            mSinglePartPending = false;
+            return true;
+        }
+        if (mFinished) return false;
+        skipRemaining();
+        // preamble, or line break after data of the previous part
+        String line;
+        int lines = 0;
+        while (true) {
+            line = readLine();
+            if (line.startsWith(mDelimiter)) {
+                String rest = line.substring(mDelimiter.length()).trim();
+                if (rest.startsWith("--")) {
+                    mFinished = true;
+                    return false;
+                }
+                if (rest.isEmpty()) break;
+            }
+            if (++lines > MAX_LINES) throw new IOException("Boundary not found in multipart body");
+        }
+        long[] range = null;
+        lines = 0;
+        while (!(line = readLine()).isEmpty()) {
+            if (++lines > MAX_LINES) throw new IOException("Too many part headers");
+            int colon = line.indexOf(':');
+            if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Content-Range"))
+                range = parseContentRange(line.substring(colon + 1));
+        }
+        if (range == null) throw new IOException("Part without valid Content-Range");
+        setPart(range);
+        return true;
+    }
+
+    long getPartBegin() {
+        return mPartBegin;
+    }
+
+    long getPartEnd() {
+        return mPartEnd;
+    }
+
+    /**
+     * Read data of the current part.
+     *
+     * @return -1 at the end of the part.
+     */
+    int read(byte[] buffer, int offset, int length) throws IOException {
+        if (mRemaining == 0) return -1;
+        int read = mInput.read(buffer, offset, (int) Math.min(length, mRemaining));
+        if (read <= 0) throw new IOException("Unexpected end of part " + mPartBegin + "-" + mPartEnd);
+        mRemaining -= read;
+        return read;
+    }
+
+    private void setPart(long[] range) {
+        mPartBegin = range[0];
+        mPartEnd = range[1];
+        mRemaining = mPartEnd - mPartBegin + 1;
+    }
+
+    private void skipRemaining() throws IOException {
+        if (mRemaining > 0 && mSkipBuffer == null) mSkipBuffer = new byte[ChunkWorker.BUFFER_SIZE];
+        while (mRemaining > 0) {
+            read(mSkipBuffer, 0, mSkipBuffer.length);
+        }
+    }
+
+    /**
+     * @return line without the line break, header lines are ISO-8859-1.
+     */
+    private String readLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        int b;
+        while ((b = mInput.read()) != '\n') {
+            if (b < 0) {
+                // close delimiter may end the body without a line break
+                if (line.size() > 0) break;
+                throw new IOException("Unexpected end of multipart body");
+            }
+            if (line.size() >= MAX_LINE_LENGTH) throw new IOException("Multipart line too long");
+            line.write(b);
+        }
+        String result = line.toString("ISO-8859-1");
+        return result.endsWith("\r") ? result.substring(0, result.length() - 1) : result;
+    }
+}
@@ -9,13 +9,27 @@ import java.util.Locale;
 import java.util.Map;
 
 import io.github.khangnt.downloader.C;
+import io.github.khangnt.downloader.CircuitBreaker;
+import io.github.khangnt.downloader.DiskWriter;
 import io.github.khangnt.downloader.DownloadSpeedMeter;
+import io.github.khangnt.downloader.DurabilityPolicy;
+import io.github.khangnt.downloader.ExtendedFileManager;
 import io.github.khangnt.downloader.FileManager;
+import io.github.khangnt.downloader.FileManagerAdapter;
+import io.github.khangnt.downloader.FileSyncer;
 import io.github.khangnt.downloader.HttpClient;
 import io.github.khangnt.downloader.Log;
+import io.github.khangnt.downloader.ProcessingPipeline;
+import io.github.khangnt.downloader.RetryPolicy;
 import io.github.khangnt.downloader.TaskManager;
+import io.github.khangnt.downloader.exception.BlockCheckSumMismatchException;
+import io.github.khangnt.downloader.exception.LeaseLostException;
+import io.github.khangnt.downloader.metrics.EventTracer;
+import io.github.khangnt.downloader.metrics.Metrics;
+import io.github.khangnt.downloader.model.BlockCheckSums;
 import io.github.khangnt.downloader.model.Chunk;
 import io.github.khangnt.downloader.model.Task;
+import io.github.khangnt.downloader.util.Utils;
 
 import static io.github.khangnt.downloader.util.Utils.checkInterrupted;
 import static io.github.khangnt.downloader.util.Utils.isEmpty;
@@ -25,31 +39,145 @@ import static io.github.khangnt.downloader.util.Utils.isEmpty;
  * Email: khang.neon.1997@gmail.com
  */
 
-public class ChunkWorker extends Thread implements ChunkWorkerListener {
+public class ChunkWorker extends Thread implements ChunkWorkerListener, ConnectionStats {
     public final static int MAX_RETRY = 3;
     public final static int BUFFER_SIZE = 1024 * 4; // 4KB
 
     private final Object lock = new Object();
     private final HttpClient mHttpClient;
     private final TaskManager mTaskManager;
-    private final FileManager mFileManager;
+    private final ExtendedFileManager mFileManager;
     private final ChunkWorkerListener mListener;
     private final DownloadSpeedMeter mDownloadSpeedMeter;
+    private final DiskWriter mDiskWriter;
+    private final FileSyncer mFileSyncer;
+    private final Metrics mMetrics;
+    private final RetryPolicy mRetryPolicy;
+    private final CircuitBreaker mCircuitBreaker;
 
     private Chunk mChunk;
+    // bytes of chunk accepted by this worker, may not be written to chunk file yet
+    private volatile long mDownloaded = C.UNSET;
+    private long mLastCommitBytes;
+    private long mLastCommitTime;
+    private volatile boolean mSyncRequested;
+    private long mRequestTime;
+    // download rate of the current connection, used to detect straggling chunks
+    private volatile long mConnectionStartTime;
+    private volatile long mConnectionStartBytes;
+    private volatile long mLastDownloadRate = C.UNSET;
+    // totals of this worker, written by this worker thread only
+    private volatile long mBytesRead;
+    private volatile int mRequestFailures;
+    private volatile int mFirstByteCount;
+    private volatile long mLastTimeToFirstByte = C.UNSET;
+    // stream of the current connection, aborted by cancel()
+    private volatile InputStream mConnection;
+    private volatile boolean mCancelled;
+    // System.nanoTime() the chunk lease may expire, 0 if the chunk isn't leased
+    private volatile long mLeaseDeadline;
+    private volatile DiskWriter.Sink mSink;
+    // written by this worker thread, dropped if it can't continue from the chunk file
+    private volatile ProcessingPipeline mProcessingPipeline;
+    // guarded by lock
+    private HedgeWorker mHedge;
+    private boolean mHedgeResolved;
+    private boolean mHedgeWon;
+    // chunk file replaced by the file of a hedge won the whole range, deleted by this worker
+    private String mReplacedChunkFile;
 
     public ChunkWorker(Chunk chunk, HttpClient httpClient, TaskManager taskManager,
                        FileManager fileManager, DownloadSpeedMeter downloadSpeedMeter,
                        ChunkWorkerListener listener) {
+        this(chunk, httpClient, taskManager, fileManager, downloadSpeedMeter, null, null,
+                new Metrics(), RetryPolicy.NO_BACKOFF, null, listener);
+    }
+
+    /**
+     * @param diskWriter     write-behind stage, or null to write chunk file on this thread.
+     * @param fileSyncer     syncer applies {@link DurabilityPolicy}, or null to never sync.
+     * @param metrics        metrics to record connection timing, read sizes, retries...
+     * @param retryPolicy    how failed requests are retried.
+     * @param circuitBreaker circuit breaker shared by workers, or null to always connect.
+     */
+    public ChunkWorker(Chunk chunk, HttpClient httpClient, TaskManager taskManager,
+                       FileManager fileManager, DownloadSpeedMeter downloadSpeedMeter,
+                       DiskWriter diskWriter, FileSyncer fileSyncer, Metrics metrics,
+                       RetryPolicy retryPolicy, CircuitBreaker circuitBreaker,
+                       ChunkWorkerListener listener) {
         this.mHttpClient = httpClient;
         this.mTaskManager = taskManager;
-        this.mFileManager = fileManager;
+        this.mFileManager = FileManagerAdapter.of(fileManager);
         this.mListener = listener;
         this.mDownloadSpeedMeter = downloadSpeedMeter;
+        this.mDiskWriter = diskWriter;
+        this.mFileSyncer = fileSyncer;
+        this.mMetrics = metrics;
+        this.mRetryPolicy = retryPolicy;
+        this.mCircuitBreaker = circuitBreaker;
 
         this.mChunk = chunk;
     }
 
+    /**
+     * Interrupt the worker, it reports {@link ChunkWorkerListener#onChunkInterrupted(ChunkWorker)}
+     * even if its connection fails because of {@link #abort()}.
+     */
+    public void cancel() {
+        mCancelled = true;
+        interrupt();
+    }
+
+    /**
+     * Cancel the worker and abort its connection, so a blocking read can return before the read
+     * timeout. May block until the read returns if the stream doesn't support abort from another
+     * thread, don't call on the moderator thread.
+     */
+    public void abort() {
+        cancel();
+        abortConnection(mConnection);
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * Feed content of the chunk to processing stages while it's downloaded, the chunk must be the
+     * first chunk of its task. The pipeline is aborted when this worker exits, unless the task is
+     * finished with it meanwhile, see {@link #getProcessingPipeline()}.
+     */
+    public void setProcessingPipeline(ProcessingPipeline processingPipeline) {
+        mProcessingPipeline = processingPipeline;
+    }
+
+    /**
+     * @return pipeline fed with the downloaded content of the chunk, or null if it was dropped.
+     */
+    public ProcessingPipeline getProcessingPipeline() {
+        return mProcessingPipeline;
+    }
+
+    /**
+     * Stop writing to the chunk file after the deadline, unless the lease is renewed before it.
+     * Another node can take over the chunk once the lease expired.
+     */
+    public void setLeaseDeadline(long deadlineNanos) {
+        mLeaseDeadline = deadlineNanos;
+        // buffers queued to the disk writer must not be written after the deadline either
+        DiskWriter.Sink sink = mSink;
+        if (sink != null) sink.setDeadline(deadlineNanos);
+    }
+
+    private boolean isLeaseExpired() {
+        long leaseDeadline = mLeaseDeadline;
+        return leaseDeadline != 0 && System.nanoTime() - leaseDeadline > 0;
+    }
+
+    static void abortConnection(InputStream is) {
+        if (is instanceof HttpClient.Abortable) ((HttpClient.Abortable) is).abort();
+    }
+
     public Chunk getChunk() {
         return mChunk;
     }
@@ -62,13 +190,180 @@ public class ChunkWorker extends Thread implements ChunkWorkerListener {
     public long getRemainingBytes() {
         if (!mChunk.isResumable())
             throw new IllegalStateException("Unknown remaining bytes of non-resumable chunk");
-        return mChunk.getLength() - mFileManager.getFileSize(mChunk.getChunkFile());
+        return mChunk.getLength() - Math.max(mDownloaded,
+                mFileManager.getFileSize(mChunk.getChunkFile()));
     }
 
     public boolean isResumable() {
         return mChunk.isResumable();
     }
 
+    /**
+     * @return bytes per second of the current connection, or of the last connection if this
+     * worker isn't downloading, {@link C#UNSET} if unknown.
+     */
+    public long getDownloadRate() {
+        long startTime = mConnectionStartTime;
+        long downloaded = mDownloaded;
+        if (startTime == 0 || downloaded == C.UNSET) return mLastDownloadRate;
+        long elapsed = System.currentTimeMillis() - startTime;
+        return elapsed <= 0 ? C.UNSET : (downloaded - mConnectionStartBytes) * 1000 / elapsed;
+    }
+
+    /**
+     * @return bytes read from all connections of this worker, include discarded bytes.
+     */
+    @Override
+    public long getBytesRead() {
+        return mBytesRead;
+    }
+
+    /**
+     * @return number of failed requests of this worker.
+     */
+    @Override
+    public int getRequestFailures() {
+        return mRequestFailures;
+    }
+
+    /**
+     * @return number of connections received their first byte, increased with each
+     * {@link #getLastTimeToFirstByte()}.
+     */
+    @Override
+    public int getFirstByteCount() {
+        return mFirstByteCount;
+    }
+
+    /**
+     * @return time to first byte in nanoseconds of the latest connection, or {@link C#UNSET}.
+     */
+    @Override
+    public long getLastTimeToFirstByte() {
+        return mLastTimeToFirstByte;
+    }
+
+    /**
+     * @return milliseconds this worker needs to download its remaining bytes at the current
+     * rate, {@link C#UNSET} if the rate is unknown.
+     */
+    public long getEstimatedRemainingTime() {
+        long rate = getDownloadRate();
+        if (rate <= 0 || !mChunk.isResumable()) return C.UNSET;
+        return Math.max(0, getRemainingBytes()) * 1000 / rate;
+    }
+
+    /**
+     * @return milliseconds since the current connection was opened, 0 if not downloading.
+     */
+    public long getConnectionElapsedTime() {
+        long startTime = mConnectionStartTime;
+        return startTime == 0 ? 0 : System.currentTimeMillis() - startTime;
+    }
+
+    /**
+     * Create a {@link HedgeWorker} requests the remaining range of this chunk again, the caller
+     * must start it. A chunk is hedged at most once. The whole chunk is hedged if nothing was
+     * downloaded yet.
+     *
+     * @return null if chunk can't be hedged.
+     */
+    public HedgeWorker hedge(Task task, HedgeWorkerListener listener) {
+        synchronized (lock) {
+            if (!mChunk.isResumable() || mChunk.isFinished() || mHedge != null) return null;
+            long begin = mChunk.getEnd() - getRemainingBytes() + 1;
+            BlockCheckSums blockCheckSums = getBlockCheckSums(task);
+            // hedge verifies blocks from its begin, so it must start at a block boundary
+            if (blockCheckSums != null) begin = blockCheckSums.alignDown(begin);
+            if (begin < mChunk.getBegin() || begin > mChunk.getEnd()) return null;
+            String hedgeFile;
+            try {
+                hedgeFile = mFileManager.getUniqueTempFile(task);
+            } catch (Exception ex) {
+                Log.d(ex, "[Chunk-%d] Can't create hedge file", mChunk.getId());
+                return null;
+            }
+            mHedge = new HedgeWorker(this, task, hedgeFile, begin, mChunk.getEnd(), mHttpClient,
+                    mFileManager, mDownloadSpeedMeter, mFileSyncer, mCircuitBreaker, listener);
+            mHedgeResolved = false;
+            return mHedge;
+        }
+    }
+
+    /**
+     * Called by a hedge finished downloading its range. If this worker hasn't finished yet, the
+     * range is inserted as a finished chunk and cut from this chunk, or replaces the chunk file
+     * if the hedge has the whole chunk.
+     *
+     * @return true if the hedge wins.
+     */
+    boolean acceptHedge(HedgeWorker hedge) {
+        synchronized (lock) {
+            if (hedge != mHedge || mHedgeResolved || mChunk.isFinished()
+                    || hedge.getEnd() != mChunk.getEnd()) return false;
+            try {
+                if (hedge.getBegin() == mChunk.getBegin()) {
+                    // an empty chunk can't be left, this worker finishes the chunk from the hedge file
+                    Chunk.Builder builder = mChunk.newBuilder().setChunkFile(hedge.getHedgeFile());
+                    // hedge file was synced before it was accepted
+                    if (builder.getDurableLength() != C.UNSET)
+                        builder.setDurableLength(builder.getLength());
+                    String chunkFile = mChunk.getChunkFile();
+                    mChunk = mTaskManager.updateChunk(builder.build());
+                    mReplacedChunkFile = chunkFile;
+                    mHedgeResolved = true;
+                    mHedgeWon = true;
+                    interrupt();
+                    return true;
+                }
+                mTaskManager.insertChunk(new Chunk.Builder(mChunk.getTaskId(), hedge.getHedgeFile())
+                        .setRange(hedge.getBegin(), hedge.getEnd())
+                        .setFinished(true)
+                        .build());
+                Chunk.Builder builder = mChunk.newBuilder()
+                        .setRange(mChunk.getBegin(), hedge.getBegin() - 1);
+                if (builder.getDurableLength() > builder.getLength())
+                    builder.setDurableLength(builder.getLength());
+                mChunk = mTaskManager.updateChunk(builder.build());
+            } catch (Exception ex) {
+                Log.d(ex, "[Chunk-%d] Can't accept hedge", mChunk.getId());
+                return false;
+            }
+            mHedgeResolved = true;
+            mHedgeWon = true;
+            // connection of this worker may be stalled, stop it to re-check the shrunk range
+            interrupt();
+            return true;
+        }
+    }
+
+    /**
+     * @return true if this worker was interrupted because its hedge won.
+     */
+    private boolean consumeHedgeWon() {
+        String replacedChunkFile;
+        synchronized (lock) {
+            if (!mHedgeWon) return false;
+            mHedgeWon = false;
+            Thread.interrupted();
+            replacedChunkFile = mReplacedChunkFile;
+            mReplacedChunkFile = null;
+        }
+        // streams of the replaced file were closed when the download was interrupted
+        if (replacedChunkFile != null) mFileManager.deleteFile(replacedChunkFile);
+        return true;
+    }
+
+    private void cancelHedge() {
+        HedgeWorker hedge;
+        synchronized (lock) {
+            if (mHedge == null || mHedgeResolved) return;
+            mHedgeResolved = true;
+            hedge = mHedge;
+        }
+        hedge.cancel();
+    }
+
     /**
      * Split a half remaining length to new chunks.
      *
@@ -81,68 +376,198 @@ public class ChunkWorker extends Thread implements ChunkWorkerListener {
             long remainingBytes = getRemainingBytes();
             Log.d("Chunk length: %d, remaining bytes: %d", mChunk.getLength(), remainingBytes);
             if (remainingBytes >= C.MIN_CHUNK_LENGTH * 4) {
-                long splitPoint = mChunk.getEnd() - remainingBytes / 2;
-                try {
-                    Chunk.Builder newChunkBuilder = new Chunk.Builder(mChunk.getTaskId(),
-                            mFileManager.getUniqueTempFile(task))
-                            .setRange(splitPoint + 1, mChunk.getEnd());
-                    Chunk newChunk = mTaskManager.insertChunk(newChunkBuilder.build());
-                    mChunk = mTaskManager.updateChunk(mChunk.newBuilder()
-                            .setRange(mChunk.getBegin(), splitPoint).build());
-                    return newChunk;
-                } catch (Exception ex) {
-                    Log.d(ex, "Split chunk error");
-                }
+                return splitAt(task, mChunk.getEnd() - remainingBytes / 2 + 1);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Split range from position to the end of chunk to a new chunk, e.g. the range a reader is
+     * waiting for. Position is moved to the beginning of its block if task has block checksums.
+     *
+     * @return null if this worker will reach the position soon or can't split for any reason.
+     */
+    public Chunk splitChunkAt(Task task, long position) {
+        synchronized (lock) {
+            if (!mChunk.isResumable())
+                throw new IllegalStateException("Can't split chunk not resumable");
+            BlockCheckSums blockCheckSums = getBlockCheckSums(task);
+            if (blockCheckSums != null) position = blockCheckSums.alignDown(position);
+            long downloadingPosition = mChunk.getEnd() - getRemainingBytes() + 1;
+            if (position - downloadingPosition < C.MIN_CHUNK_LENGTH || position > mChunk.getEnd())
+                return null;
+            return splitAt(task, position);
+        }
+    }
+
+    /**
+     * Must hold the lock.
+     */
+    private Chunk splitAt(Task task, long newChunkBegin) {
+        // range of a running hedge must stay the tail of this chunk
+        if (mHedge != null && !mHedgeResolved) return null;
+        BlockCheckSums blockCheckSums = getBlockCheckSums(task);
+        if (blockCheckSums != null) {
+            // new chunk must start at a block boundary, so both chunks can verify their blocks
+            newChunkBegin = blockCheckSums.alignUp(newChunkBegin);
+            if (newChunkBegin > mChunk.getEnd()) return null;
+        }
+        try {
+            Chunk.Builder newChunkBuilder = new Chunk.Builder(mChunk.getTaskId(),
+                    mFileManager.getUniqueTempFile(task))
+                    .setRange(newChunkBegin, mChunk.getEnd());
+            if (isTrackingDurableLength()) newChunkBuilder.setDurableLength(0);
+            Chunk newChunk = mTaskManager.insertChunk(newChunkBuilder.build());
+            mChunk = mTaskManager.updateChunk(mChunk.newBuilder()
+                    .setRange(mChunk.getBegin(), newChunkBegin - 1).build());
+            mMetrics.getChunkSplits().increment();
+            EventTracer tracer = mMetrics.getEventTracer();
+            if (tracer.isEnabled()) {
+                tracer.onChunkSplit(mChunk.getTaskId(), mChunk.getId(), newChunk.getId(),
+                        newChunk.getBegin());
             }
+            return newChunk;
+        } catch (Exception ex) {
+            Log.d(ex, "Split chunk error");
             return null;
         }
     }
 
     @Override
     public void run() {
+        try {
+            downloadChunk();
+        } finally {
+            // no-op if the task was finished with the pipeline
+            ProcessingPipeline pipeline = mProcessingPipeline;
+            if (pipeline != null) pipeline.abort();
+        }
+    }
+
+    private void downloadChunk() {
         if (mChunk.isFinished()) {
             onChunkFinished(this);
             return;
         }
+        long startTime = System.nanoTime();
+        EventTracer tracer = mMetrics.getEventTracer();
+        if (tracer.isEnabled()) {
+            tracer.onChunkStarted(mChunk.getTaskId(), mChunk.getId(), mChunk.getBegin(), mChunk.getEnd());
+        }
         Throwable lastException = null;
         int retryTime = 0;
-        while (retryTime < MAX_RETRY) {
+        while (retryTime < mRetryPolicy.getMaxAttempts()) {
             try {
                 long downloaded = execute();
-                // download successful
+                cancelHedge();
+                // download successful, chunk data must be on disk before it is recorded as finished
+                if (getDurabilityPolicy() != DurabilityPolicy.NONE)
+                    mFileSyncer.sync(mChunk.getChunkFile());
                 Chunk.Builder builder = mChunk.newBuilder();
                 builder.setFinished(true);
                 if (!builder.isResumable()) {
                     // chunk is finished, update the range if it is unknown
                     builder.setRange(0, downloaded - 1);
                 }
-                mTaskManager.updateChunk(mChunk = builder.build());
+                synchronized (lock) {
+                    // bytes after a range cut by the winning hedge are dropped
+                    if (builder.isResumable()
+                            && mFileManager.getFileSize(mChunk.getChunkFile()) > builder.getLength())
+                        mFileManager.truncateFile(mChunk.getChunkFile(), builder.getLength());
+                    mTaskManager.updateChunk(mChunk = builder.build());
+                }
+                long duration = System.nanoTime() - startTime;
+                mMetrics.getChunkDuration().record(duration);
+                if (tracer.isEnabled())
+                    tracer.onChunkFinished(mChunk.getTaskId(), mChunk.getId(), downloaded, duration);
                 onChunkFinished(this);
                 return;
             } catch (InterruptedIOException | InterruptedException ex) {
+                if (consumeHedgeWon()) continue;
+                cancelHedge();
                 onChunkInterrupted(this);
                 return;
+            } catch (BlockCheckSumMismatchException ex) {
+                lastException = ex;
+                retryTime++;
+                mMetrics.getChunkRetries().increment();
+                if (tracer.isEnabled())
+                    tracer.onChunkRetry(mChunk.getTaskId(), mChunk.getId(), retryTime, ex);
+                Log.d(ex, "[Chunk-%d] Corrupted block, re-download from %d, retry %d", mChunk.getId(),
+                        ex.getBlockBegin(), retryTime);
+                try {
+                    discardCorruptedBlock(ex.getBlockBegin());
+                } catch (LeaseLostException e) {
+                    cancelHedge();
+                    onChunkInterrupted(this);
+                    return;
+                } catch (IOException e) {
+                    cancelHedge();
+                    onChunkError(this, "Can't discard corrupted block: " + e.getMessage(), e);
+                    return;
+                }
             } catch (Exception ex) {
+                if (consumeHedgeWon()) continue;
+                if (mCancelled || ex instanceof LeaseLostException || isLeaseExpired()) {
+                    // read failed because the connection was aborted, or another node took over,
+                    // e.g. the disk writer dropped buffers queued before the lease expired
+                    cancelHedge();
+                    onChunkInterrupted(this);
+                    return;
+                }
+                mRequestFailures++;
                 lastException = ex;
+                if (!mRetryPolicy.isRetryable(ex)) {
+                    cancelHedge();
+                    onChunkError(this, ex.getMessage(), ex);
+                    return;
+                }
                 retryTime++;
-                Log.d(ex, "[Chunk-%d] Chunk download failed, retry %d", mChunk.getId(), retryTime);
+                if (retryTime >= mRetryPolicy.getMaxAttempts()) break;
+                mMetrics.getChunkRetries().increment();
+                if (tracer.isEnabled())
+                    tracer.onChunkRetry(mChunk.getTaskId(), mChunk.getId(), retryTime, ex);
+                long delay = mRetryPolicy.getRetryDelay(retryTime, ex);
+                Log.d(ex, "[Chunk-%d] Chunk download failed, retry %d after %d ms", mChunk.getId(),
+                        retryTime, delay);
+                try {
+                    if (delay > 0) Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    if (consumeHedgeWon()) continue;
+                    cancelHedge();
+                    onChunkInterrupted(this);
+                    return;
+                }
             }
         }
+        cancelHedge();
         onChunkError(this, "Exceed max retry: " + lastException.getMessage(), lastException);
     }
 
     private long execute() throws Exception {
         long downloaded;
         String range;
+        Task task = mTaskManager.findTask(mChunk.getTaskId());
         synchronized (lock) {
             downloaded = mFileManager.getFileSize(mChunk.getChunkFile());
             if (!mChunk.isResumable() && downloaded > 0) {
                 Log.d("[Chunk-%d] Re-download chunk from the beginning", mChunk.getId());
                 downloaded = 0;
-            } else if (mChunk.isResumable() && downloaded >= mChunk.getLength()) {
+            } else if (isTrackingDurableLength() && mChunk.isResumable()
+                    && mChunk.getDurableLength() != C.UNSET && downloaded > mChunk.getDurableLength()) {
+                // bytes after durable length may not reach disk before a crash
+                Log.d("[Chunk-%d] Discard %d bytes not synced", mChunk.getId(),
+                        downloaded - mChunk.getDurableLength());
+                mFileManager.truncateFile(mChunk.getChunkFile(), mChunk.getDurableLength());
+                downloaded = mChunk.getDurableLength();
+            }
+            if (mChunk.isResumable() && downloaded >= mChunk.getLength()) {
                 // download completed
                 return downloaded;
             }
+            mLastCommitBytes = downloaded;
+            mLastCommitTime = System.currentTimeMillis();
 
             range = null;
             if (mChunk.isResumable())
@@ -151,13 +576,49 @@ public class ChunkWorker extends Thread implements ChunkWorkerListener {
         }
 
         checkInterrupted();
+        catchUpProcessing(downloaded);
+        BlockVerifier blockVerifier = createBlockVerifier(mFileManager, task, mChunk, downloaded);
         OutputStream os = openChunkFile(downloaded > 0);
-        InputStream is = openConnection(range);
+        InputStream is;
+        try {
+            // wait while the host is failing, instead of adding load to it
+            if (mCircuitBreaker != null) mCircuitBreaker.acquire(Utils.getHost(task.getUrl()));
+            mRequestTime = System.nanoTime();
+            is = openConnection(task, range);
+            mMetrics.getConnectTime().record(System.nanoTime() - mRequestTime);
+            mConnection = is;
+            if (mCancelled) abortConnection(is);
+        } catch (IOException | InterruptedException ex) {
+            try {
+                os.close();
+            } catch (Exception ignore) {
+            }
+            throw ex;
+        }
+        DiskWriter.Sink sink = mDiskWriter == null ? null : mDiskWriter.openSink(os);
+        if (sink != null) {
+            mSink = sink;
+            sink.setDeadline(mLeaseDeadline);
+        }
         try {
-            downloaded = download(os, is, downloaded);
+            if (sink == null) {
+                downloaded = download(os, is, downloaded, blockVerifier);
+            } else {
+                downloaded = download(sink, is, downloaded, blockVerifier);
+                sink.flush();
+            }
             Log.d("Chunk-%d: %d/%d", mChunk.getId(), downloaded, mChunk.getLength());
             return downloaded;
         } finally {
+            mConnection = null;
+            mLastDownloadRate = getDownloadRate();
+            mConnectionStartTime = 0;
+            mDownloaded = C.UNSET;
+            // writer thread may still hold the chunk file
+            if (sink != null) {
+                mSink = null;
+                sink.release();
+            }
             try {
                 os.close();
             } catch (Exception ignore) {
@@ -166,31 +627,231 @@ public class ChunkWorker extends Thread implements ChunkWorkerListener {
                 is.close();
             } catch (Exception ignore) {
             }
+            if (isTrackingDurableLength() && mChunk.isResumable()) {
+                // record progress, so resume after pause doesn't discard unsynced bytes
+                try {
+                    commitDurableLength(mFileSyncer.sync(mChunk.getChunkFile()));
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                } catch (Exception ex) {
+                    Log.d(ex, "[Chunk-%d] Sync chunk file failed", mChunk.getId());
+                }
+            }
         }
     }
 
-    private long download(OutputStream os, InputStream is, long downloaded) throws IOException, InterruptedException {
+    private long download(OutputStream os, InputStream is, long downloaded,
+                          BlockVerifier blockVerifier) throws IOException, InterruptedException {
         int read;
         byte buffer[] = new byte[BUFFER_SIZE];
+        startConnectionRate(downloaded);
         while (checkInterrupted() && (read = is.read(buffer, 0, BUFFER_SIZE)) > 0) {
+            onRead(read);
+            boolean completed;
             synchronized (lock) {
-                if (!mChunk.isResumable() || downloaded + read <= mChunk.getLength()) {
+                if (mChunk.isResumable() && downloaded + read > mChunk.getLength())
+                    read = (int) Math.max(0, mChunk.getLength() - downloaded);
+                // verify before writing, so complete blocks in the chunk file are verified
+                if (blockVerifier != null && read > 0) blockVerifier.update(buffer, 0, read);
+                if (read > 0) {
                     os.write(buffer, 0, read);
                     downloaded += read;
-                } else {
-                    read = (int) (mChunk.getLength() - downloaded);
-                    if (read > 0) {
-                        os.write(buffer, 0, read);
-                        downloaded += read;
-                    }
+                    mDownloaded = downloaded;
                 }
                 mDownloadSpeedMeter.onBytesDownloaded(read);
-                if (mChunk.isResumable() && downloaded >= mChunk.getLength()) break;
+                completed = mChunk.isResumable() && downloaded >= mChunk.getLength();
             }
+            // outside the lock, a slow stage blocks this worker only
+            process(buffer, read);
+            // response of a split chunk is left unread, its connection is closed instead of reused
+            if (completed) break;
+            commitIfNeeded(null, downloaded);
         }
         return downloaded;
     }
 
+    /**
+     * Same as {@link #download(OutputStream, InputStream, long, BlockVerifier)}, but filled buffers
+     * are handed to {@link DiskWriter}, so this thread keeps reading while the disk is busy.
+     */
+    private long download(DiskWriter.Sink sink, InputStream is, long downloaded,
+                          BlockVerifier blockVerifier) throws IOException, InterruptedException {
+        int read;
+        int bufferSize = mDiskWriter.getBufferSize();
+        startConnectionRate(downloaded);
+        while (checkInterrupted()) {
+            byte buffer[] = sink.obtainBuffer();
+            try {
+                read = is.read(buffer, 0, bufferSize);
+                if (read > 0) onRead(read);
+            } catch (IOException | RuntimeException ex) {
+                sink.recycleBuffer(buffer);
+                throw ex;
+            }
+            if (read <= 0) {
+                sink.recycleBuffer(buffer);
+                break;
+            }
+            boolean completed;
+            synchronized (lock) {
+                // chunk range may be split while reading, keep the same trimming as direct write
+                if (mChunk.isResumable() && downloaded + read > mChunk.getLength())
+                    read = (int) Math.max(0, mChunk.getLength() - downloaded);
+                downloaded += read;
+                mDownloaded = downloaded;
+                completed = mChunk.isResumable() && downloaded >= mChunk.getLength();
+            }
+            mDownloadSpeedMeter.onBytesDownloaded(read);
+            if (blockVerifier != null && read > 0) blockVerifier.update(buffer, 0, read);
+            process(buffer, read);
+            sink.write(buffer, read);
+            if (completed) break;
+            commitIfNeeded(sink, downloaded);
+        }
+        return downloaded;
+    }
+
+    /**
+     * Feed the chunk file up to the length to the pipeline, e.g. written by a previous worker or
+     * attempt. A pipeline can't go back, it is dropped if it's ahead of the chunk file.
+     */
+    private void catchUpProcessing(long length) throws InterruptedIOException {
+        ProcessingPipeline pipeline = mProcessingPipeline;
+        if (pipeline == null || pipeline.getWrittenLength() == length) return;
+        if (pipeline.getWrittenLength() > length) {
+            Log.d("[Chunk-%d] Processing is ahead of chunk file, drop it", mChunk.getId());
+            dropProcessingPipeline();
+            return;
+        }
+        InputStream is = null;
+        try {
+            is = mFileManager.openReadableFile(mChunk.getChunkFile());
+            long position = 0;
+            int len;
+            byte buffer[] = new byte[BUFFER_SIZE];
+            while (position < length && (len = is.read(buffer, 0,
+                    (int) Math.min(BUFFER_SIZE, length - position))) > 0) {
+                if (position + len > pipeline.getWrittenLength()) {
+                    int offset = (int) Math.max(0, pipeline.getWrittenLength() - position);
+                    pipeline.write(buffer, offset, len - offset);
+                }
+                position += len;
+            }
+        } catch (InterruptedIOException ex) {
+            dropProcessingPipeline();
+            throw ex;
+        } catch (IOException ex) {
+            Log.d(ex, "[Chunk-%d] Can't process chunk file", mChunk.getId());
+            dropProcessingPipeline();
+        } finally {
+            try {
+                if (is != null) is.close();
+            } catch (Exception ignore) {
+            }
+        }
+    }
+
+    private void process(byte[] buffer, int length) throws InterruptedIOException {
+        ProcessingPipeline pipeline = mProcessingPipeline;
+        if (pipeline == null || length <= 0) return;
+        try {
+            pipeline.write(buffer, 0, length);
+        } catch (InterruptedIOException ex) {
+            dropProcessingPipeline();
+            throw ex;
+        } catch (IOException ex) {
+            // a failed stage fails the task when it's merged
+            dropProcessingPipeline();
+        }
+    }
+
+    /**
+     * Stop feeding the pipeline, merge processes the content with a new one.
+     */
+    private void dropProcessingPipeline() {
+        ProcessingPipeline pipeline = mProcessingPipeline;
+        mProcessingPipeline = null;
+        if (pipeline != null) pipeline.abort();
+    }
+
+    private void startConnectionRate(long downloaded) {
+        mDownloaded = downloaded;
+        mConnectionStartBytes = downloaded;
+        mConnectionStartTime = System.currentTimeMillis();
+    }
+
+    private void onRead(int read) {
+        if (isLeaseExpired())
+            throw new LeaseLostException("Lease of chunk-" + mChunk.getId() + " expired");
+        if (mRequestTime != 0) {
+            mLastTimeToFirstByte = System.nanoTime() - mRequestTime;
+            mFirstByteCount++;
+            mMetrics.getTimeToFirstByte().record(mLastTimeToFirstByte);
+            mRequestTime = 0;
+        }
+        mBytesRead += read;
+        mMetrics.getReadSize().record(read);
+    }
+
+    private DurabilityPolicy getDurabilityPolicy() {
+        return mFileSyncer == null ? DurabilityPolicy.NONE : mFileSyncer.getPolicy();
+    }
+
+    private boolean isTrackingDurableLength() {
+        return getDurabilityPolicy().isTrackingDurableLength();
+    }
+
+    /**
+     * Sync chunk file and record synced length when a commit point of {@link DurabilityPolicy}
+     * is reached: every commit interval bytes for {@link DurabilityPolicy#GROUP_COMMIT} (wait for
+     * it), every sync period for {@link DurabilityPolicy#PERIODIC} (in background).
+     */
+    private void commitIfNeeded(DiskWriter.Sink sink, long downloaded)
+            throws IOException, InterruptedException {
+        if (!mChunk.isResumable()) return;
+        switch (getDurabilityPolicy()) {
+            case GROUP_COMMIT:
+                if (downloaded - mLastCommitBytes >= mFileSyncer.getCommitIntervalBytes()) {
+                    if (sink != null) sink.flush();
+                    commitDurableLength(mFileSyncer.sync(mChunk.getChunkFile()));
+                    mLastCommitBytes = downloaded;
+                }
+                break;
+            case PERIODIC:
+                long now = System.currentTimeMillis();
+                if (now - mLastCommitTime >= mFileSyncer.getSyncPeriod() && !mSyncRequested) {
+                    mSyncRequested = true;
+                    mLastCommitTime = now;
+                    mFileSyncer.requestSync(mChunk.getChunkFile(), new FileSyncer.Callback() {
+                        @Override
+                        public void onSynced(long durableLength) {
+                            mSyncRequested = false;
+                            commitDurableLength(durableLength);
+                        }
+
+                        @Override
+                        public void onSyncFailed(IOException error) {
+                            mSyncRequested = false;
+                            Log.d(error, "[Chunk-%d] Sync chunk file failed", mChunk.getId());
+                        }
+                    });
+                }
+                break;
+        }
+    }
+
+    private void commitDurableLength(long durableLength) {
+        synchronized (lock) {
+            if (mChunk.isFinished() || durableLength <= mChunk.getDurableLength()) return;
+            try {
+                mChunk = mTaskManager.updateChunk(mChunk.newBuilder()
+                        .setDurableLength(Math.min(durableLength, mChunk.getLength())).build());
+            } catch (Exception ex) {
+                Log.d(ex, "[Chunk-%d] Can't record durable length", mChunk.getId());
+            }
+        }
+    }
+
     private OutputStream openChunkFile(boolean append) throws IOException {
         try {
             return mFileManager.openWritableFile(mChunk.getChunkFile(), append);
@@ -199,10 +860,84 @@ public class ChunkWorker extends Thread implements ChunkWorkerListener {
         }
     }
 
-    private InputStream openConnection(String range) throws IOException {
+    private InputStream openConnection(Task task, String range) throws IOException {
         Map<String, String> headers = new HashMap<>();
         if (!isEmpty(range)) headers.put("Range", range);
-        return mHttpClient.openConnection(mTaskManager.findTask(mChunk.getTaskId()), headers);
+        return openConnection(mHttpClient, mCircuitBreaker, task, headers);
+    }
+
+    /**
+     * Open connection and report the result to circuit breaker, the caller must
+     * {@link CircuitBreaker#acquire(String)} first.
+     */
+    static InputStream openConnection(HttpClient httpClient, CircuitBreaker circuitBreaker,
+                                      Task task, Map<String, String> headers) throws IOException {
+        if (circuitBreaker == null) return httpClient.openConnection(task, headers);
+        String host = Utils.getHost(task.getUrl());
+        try {
+            InputStream is = httpClient.openConnection(task, headers);
+            circuitBreaker.onSuccess(host);
+            return is;
+        } catch (IOException ex) {
+            circuitBreaker.onError(host, ex);
+            throw ex;
+        }
+    }
+
+    private static BlockCheckSums getBlockCheckSums(Task task) {
+        BlockCheckSums blockCheckSums = task.getBlockCheckSums();
+        if (blockCheckSums == null || blockCheckSums.getBlockCount() == 0) return null;
+        return blockCheckSums;
+    }
+
+    /**
+     * Create verifier starts at the block contains next downloading byte, bytes of this block
+     * already in chunk file are fed to the verifier first.
+     *
+     * @return null if the task doesn't have block checksums.
+     */
+    static BlockVerifier createBlockVerifier(FileManager fileManager, Task task, Chunk chunk,
+                                             long downloaded) throws IOException {
+        BlockCheckSums blockCheckSums = task == null ? null : getBlockCheckSums(task);
+        if (blockCheckSums == null) return null;
+        long chunkBegin = chunk.isResumable() ? chunk.getBegin() : 0;
+        long blockBegin = blockCheckSums.alignDown(chunkBegin + downloaded);
+        BlockVerifier blockVerifier = new BlockVerifier(blockCheckSums, task.getLength(), blockBegin);
+        long partial = chunkBegin + downloaded - blockBegin;
+        if (partial > 0) {
+            InputStream is = fileManager.openReadableFile(chunk.getChunkFile());
+            try {
+                long skip = blockBegin - chunkBegin;
+                while (skip > 0) {
+                    long skipped = is.skip(skip);
+                    if (skipped <= 0) throw new IOException("Unexpected end of chunk file");
+                    skip -= skipped;
+                }
+                blockVerifier.prime(is, partial);
+            } finally {
+                try {
+                    is.close();
+                } catch (Exception ignore) {
+                }
+            }
+        }
+        return blockVerifier;
+    }
+
+    /**
+     * Truncate chunk file at the corrupted block, so next retry only re-download from there.
+     */
+    private void discardCorruptedBlock(long blockBegin) throws IOException {
+        synchronized (lock) {
+            long chunkBegin = mChunk.isResumable() ? mChunk.getBegin() : 0;
+            // the buffer completing the block wasn't written, the file may end before the block
+            long length = Math.min(Math.max(0, blockBegin - chunkBegin),
+                    mFileManager.getFileSize(mChunk.getChunkFile()));
+            mFileManager.truncateFile(mChunk.getChunkFile(), length);
+            if (mChunk.getDurableLength() > length) {
+                mChunk = mTaskManager.updateChunk(mChunk.newBuilder().setDurableLength(length).build());
+            }
+        }
     }
 
     @Override
@@ -212,6 +947,7 @@ public class ChunkWorker extends Thread implements ChunkWorkerListener {
 
     @Override
     public void onChunkError(ChunkWorker worker, String reason, Throwable throwable) {
+        mMetrics.getChunkFailures().increment();
         if (mListener != null) mListener.onChunkError(worker, reason, throwable);
     }
 
@@ -0,0 +1,28 @@
+package io.github.khangnt.downloader.worker;
+
+/**
+ * Counters of a worker's requests to the origin of its task, sampled by
+ * {@link io.github.khangnt.downloader.ConcurrencyTuner}.
+ */
+public interface ConnectionStats {
+    /**
+     * @return bytes read from all connections of the worker.
+     */
+    long getBytesRead();
+
+    /**
+     * @return number of failed requests of the worker.
+     */
+    int getRequestFailures();
+
+    /**
+     * @return number of connections received their first byte.
+     */
+    int getFirstByteCount();
+
+    /**
+     * @return time to first byte in nanoseconds of the latest connection, or
+     * {@link io.github.khangnt.downloader.C#UNSET}.
+     */
+    long getLastTimeToFirstByte();
+}
@@ -0,0 +1,205 @@
+package io.github.khangnt.downloader.worker;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import io.github.khangnt.downloader.C;
+import io.github.khangnt.downloader.CircuitBreaker;
+import io.github.khangnt.downloader.DownloadSpeedMeter;
+import io.github.khangnt.downloader.DurabilityPolicy;
+import io.github.khangnt.downloader.FileManager;
+import io.github.khangnt.downloader.FileSyncer;
+import io.github.khangnt.downloader.HttpClient;
+import io.github.khangnt.downloader.Log;
+import io.github.khangnt.downloader.model.BlockCheckSums;
+import io.github.khangnt.downloader.model.Task;
+import io.github.khangnt.downloader.util.Utils;
+
+import static io.github.khangnt.downloader.util.Utils.checkInterrupted;
+
+/**
+ * Speculative duplicate request for the remaining range of a straggling {@link ChunkWorker}.
+ * The range is downloaded to its own file, if it finishes before the primary worker, the
+ * primary chunk is shrunk and the range is inserted as a finished chunk.
+ */
+public class HedgeWorker extends Thread implements HedgeWorkerListener, ConnectionStats {
+    private final ChunkWorker mPrimary;
+    private final Task mTask;
+    private final String mHedgeFile;
+    private final long mBegin;
+    private final long mEnd;
+    private final HttpClient mHttpClient;
+    private final FileManager mFileManager;
+    private final DownloadSpeedMeter mDownloadSpeedMeter;
+    private final FileSyncer mFileSyncer;
+    private final CircuitBreaker mCircuitBreaker;
+    private final HedgeWorkerListener mListener;
+    private volatile InputStream mConnection;
+    private volatile boolean mCancelled;
+    private volatile long mBytesRead;
+    private volatile int mRequestFailures;
+    private volatile long mLastTimeToFirstByte = C.UNSET;
+
+    HedgeWorker(ChunkWorker primary, Task task, String hedgeFile, long begin, long end,
+                HttpClient httpClient, FileManager fileManager, DownloadSpeedMeter downloadSpeedMeter,
+                FileSyncer fileSyncer, CircuitBreaker circuitBreaker, HedgeWorkerListener listener) {
+        mPrimary = primary;
+        mTask = task;
+        mHedgeFile = hedgeFile;
+        mBegin = begin;
+        mEnd = end;
+        mHttpClient = httpClient;
+        mFileManager = fileManager;
+        mDownloadSpeedMeter = downloadSpeedMeter;
+        mFileSyncer = fileSyncer;
+        mCircuitBreaker = circuitBreaker;
+        mListener = listener;
+    }
+
+    public ChunkWorker getPrimary() {
+        return mPrimary;
+    }
+
+    public Task getTask() {
+        return mTask;
+    }
+
+    public String getHedgeFile() {
+        return mHedgeFile;
+    }
+
+    public long getBegin() {
+        return mBegin;
+    }
+
+    public long getEnd() {
+        return mEnd;
+    }
+
+    public long getLength() {
+        return mEnd - mBegin + 1;
+    }
+
+    @Override
+    public long getBytesRead() {
+        return mBytesRead;
+    }
+
+    @Override
+    public int getRequestFailures() {
+        return mRequestFailures;
+    }
+
+    @Override
+    public int getFirstByteCount() {
+        return mLastTimeToFirstByte == C.UNSET ? 0 : 1;
+    }
+
+    @Override
+    public long getLastTimeToFirstByte() {
+        return mLastTimeToFirstByte;
+    }
+
+    public void cancel() {
+        mCancelled = true;
+        interrupt();
+    }
+
+    /**
+     * Cancel the hedge and abort its connection, see {@link ChunkWorker#abort()}.
+     */
+    public void abort() {
+        cancel();
+        ChunkWorker.abortConnection(mConnection);
+    }
+
+    @Override
+    public void run() {
+        try {
+            download();
+            if (mFileSyncer != null && mFileSyncer.getPolicy() != DurabilityPolicy.NONE)
+                mFileSyncer.sync(mHedgeFile);
+            boolean won = mPrimary.acceptHedge(this);
+            if (!won) mFileManager.deleteFile(mHedgeFile);
+            onHedgeFinished(this, won);
+        } catch (InterruptedIOException | InterruptedException ex) {
+            mFileManager.deleteFile(mHedgeFile);
+            onHedgeInterrupted(this);
+        } catch (Exception ex) {
+            if (!mCancelled) mRequestFailures++;
+            mFileManager.deleteFile(mHedgeFile);
+            if (mCancelled) {
+                onHedgeInterrupted(this);
+                return;
+            }
+            onHedgeError(this, "Hedge request failed: " + ex.getMessage(), ex);
+        }
+    }
+
+    private void download() throws IOException, InterruptedException {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Range", String.format(Locale.US, "bytes=%d-%d", mBegin, mEnd));
+        BlockCheckSums blockCheckSums = mTask.getBlockCheckSums();
+        BlockVerifier blockVerifier = blockCheckSums == null || blockCheckSums.getBlockCount() == 0
+                ? null : new BlockVerifier(blockCheckSums, mTask.getLength(), mBegin);
+        if (mCircuitBreaker != null) mCircuitBreaker.acquire(Utils.getHost(mTask.getUrl()));
+        OutputStream os = mFileManager.openWritableFile(mHedgeFile, false);
+        InputStream is = null;
+        long requestTime = System.nanoTime();
+        try {
+            is = ChunkWorker.openConnection(mHttpClient, mCircuitBreaker, mTask, headers);
+            mConnection = is;
+            if (mCancelled) ChunkWorker.abortConnection(is);
+            long length = getLength();
+            long downloaded = 0;
+            int read;
+            byte buffer[] = new byte[ChunkWorker.BUFFER_SIZE];
+            while (downloaded < length && checkInterrupted()
+                    && (read = is.read(buffer, 0, ChunkWorker.BUFFER_SIZE)) > 0) {
+                if (mLastTimeToFirstByte == C.UNSET)
+                    mLastTimeToFirstByte = System.nanoTime() - requestTime;
+                mBytesRead += read;
+                read = (int) Math.min(read, length - downloaded);
+                if (blockVerifier != null) blockVerifier.update(buffer, 0, read);
+                os.write(buffer, 0, read);
+                downloaded += read;
+                mDownloadSpeedMeter.onBytesDownloaded(read);
+            }
+            if (downloaded != length) {
+                throw new IOException(String.format(Locale.US,
+                        "Hedge range incomplete, expect: %d but found %d", length, downloaded));
+            }
+            Log.d("Hedge of chunk-%d downloaded %d bytes", mPrimary.getChunk().getId(), downloaded);
+        } finally {
+            mConnection = null;
+            try {
+                os.close();
+            } catch (Exception ignore) {
+            }
+            try {
+                if (is != null) is.close();
+            } catch (Exception ignore) {
+            }
+        }
+    }
+
+    @Override
+    public void onHedgeFinished(HedgeWorker worker, boolean won) {
+        if (mListener != null) mListener.onHedgeFinished(worker, won);
+    }
+
+    @Override
+    public void onHedgeError(HedgeWorker worker, String reason, Throwable throwable) {
+        if (mListener != null) mListener.onHedgeError(worker, reason, throwable);
+    }
+
+    @Override
+    public void onHedgeInterrupted(HedgeWorker worker) {
+        if (mListener != null) mListener.onHedgeInterrupted(worker);
+    }
+}
@@ -0,0 +1,11 @@
+package io.github.khangnt.downloader.worker;
+
+public interface HedgeWorkerListener {
+    /**
+     * @param won true if the hedge finished before its primary chunk worker, its range is
+     *            inserted as a finished chunk.
+     */
+    void onHedgeFinished(HedgeWorker worker, boolean won);
+    void onHedgeError(HedgeWorker worker, String reason, Throwable throwable);
+    void onHedgeInterrupted(HedgeWorker worker);
+}
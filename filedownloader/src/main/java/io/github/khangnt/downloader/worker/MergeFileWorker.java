@@ -2,6 +2,7 @@ package io.github.khangnt.downloader.worker;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -10,10 +11,19 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 
 import io.github.khangnt.downloader.C;
+import io.github.khangnt.downloader.DurabilityPolicy;
+import io.github.khangnt.downloader.ExtendedFileManager;
 import io.github.khangnt.downloader.FileManager;
+import io.github.khangnt.downloader.FileManagerAdapter;
+import io.github.khangnt.downloader.FileSyncer;
 import io.github.khangnt.downloader.Log;
+import io.github.khangnt.downloader.ProcessingPipeline;
+import io.github.khangnt.downloader.exception.LeaseLostException;
+import io.github.khangnt.downloader.metrics.EventTracer;
+import io.github.khangnt.downloader.metrics.Metrics;
 import io.github.khangnt.downloader.model.Chunk;
 import io.github.khangnt.downloader.model.Task;
 import io.github.khangnt.downloader.util.Utils;
@@ -32,13 +42,29 @@ public class MergeFileWorker extends Thread implements MergeFileWorkerListener {
 
     private Task mTask;
     private List<Chunk> mChunkList;
-    private FileManager mFileManager;
+    private ExtendedFileManager mFileManager;
+    private FileSyncer mFileSyncer;
+    private Metrics mMetrics;
     private MergeFileWorkerListener mListener;
+    private boolean mRenameChunkFile;
+    private ProcessingPipeline mProcessingPipeline;
+    private Map<String, String> mStageResults = Collections.emptyMap();
+    private volatile long mLeaseDeadline;
 
     public MergeFileWorker(Task task, List<Chunk> chunkList, FileManager fileManager,
                            MergeFileWorkerListener listener) {
+        this(task, chunkList, fileManager, null, new Metrics(), listener);
+    }
+
+    /**
+     * @param fileSyncer syncer applies {@link DurabilityPolicy}, or null to never sync.
+     */
+    public MergeFileWorker(Task task, List<Chunk> chunkList, FileManager fileManager,
+                           FileSyncer fileSyncer, Metrics metrics, MergeFileWorkerListener listener) {
         this.mTask = task;
-        this.mFileManager = fileManager;
+        this.mFileManager = FileManagerAdapter.of(fileManager);
+        this.mFileSyncer = fileSyncer;
+        this.mMetrics = metrics;
         this.mListener = listener;
 
         // sort chunks by begin position
@@ -55,8 +81,48 @@ public class MergeFileWorker extends Thread implements MergeFileWorkerListener {
         return mTask;
     }
 
+    /**
+     * Rename the chunk file of a single chunk task to the target file instead of copying it, the
+     * chunk file must be beside the target file.
+     */
+    public void setRenameChunkFile(boolean renameChunkFile) {
+        mRenameChunkFile = renameChunkFile;
+    }
+
+    /**
+     * Feed merged content to processing stages of the task, the pipeline is finished after the
+     * content is verified and aborted if merge fails. It may already have a prefix of the content,
+     * e.g. fed by the chunk worker of a single chunk task, merge only feeds bytes after it.
+     */
+    public void setProcessingPipeline(ProcessingPipeline processingPipeline) {
+        mProcessingPipeline = processingPipeline;
+    }
+
+    /**
+     * Stop writing the target file after the deadline, unless the lease is renewed before it.
+     * Another node can take over merging once the lease expired.
+     */
+    public void setLeaseDeadline(long deadlineNanos) {
+        mLeaseDeadline = deadlineNanos;
+    }
+
+    private boolean checkLease() {
+        long leaseDeadline = mLeaseDeadline;
+        if (leaseDeadline != 0 && System.nanoTime() - leaseDeadline > 0)
+            throw new LeaseLostException("Lease of merging task-" + mTask.getId() + " expired");
+        return true;
+    }
+
+    /**
+     * @return results of processing stages, after merge is finished.
+     */
+    public Map<String, String> getStageResults() {
+        return mStageResults;
+    }
+
     @Override
     public void run() {
+        long startTime = System.nanoTime();
         MessageDigest messageDigest = null;
         String checksum = null;
         if (!isEmpty(getTask().getCheckSumAlgorithm())) {
@@ -67,50 +133,94 @@ public class MergeFileWorker extends Thread implements MergeFileWorkerListener {
                         + mTask.getCheckSumAlgorithm(), e);
             }
         }
-        OutputStream os = null;
-        long fileLength = 0;
-        try {
-            os = mFileManager.openWritableFile(mTask.getFilePath(), false);
-            int len;
-            byte buffer[] = new byte[BUFFER_SIZE];
-            for (Chunk chunk : mChunkList) {
-                checkInterrupted();
-                String chunkFile = chunk.getChunkFile();
-                checkChunk(chunk, chunkFile);
-                InputStream is = null;
-                try {
-                    is = mFileManager.openReadableFile(chunkFile);
-                    while (checkInterrupted() && (len = is.read(buffer, 0, BUFFER_SIZE)) > 0) {
-                        os.write(buffer, 0, len);
-                        fileLength += len;
-                        if (messageDigest != null) messageDigest.update(buffer, 0, len);
-                    }
-                } catch (IOException ex) {
-                    onMergeFileError(this, "Can't concat chunks: " + ex.getMessage(), ex);
-                    return;
-                } finally {
+        long fileLength;
+        if (mRenameChunkFile && mChunkList.size() == 1) {
+            try {
+                fileLength = renameChunkFile(mChunkList.get(0), messageDigest);
+            } catch (InterruptedException | InterruptedIOException | LeaseLostException ex) {
+                onMergeFileInterrupted(this);
+                return;
+            } catch (Exception ex) {
+                onMergeFileError(this, "Can't rename chunk file: " + ex.getMessage(), ex);
+                return;
+            }
+        } else {
+            OutputStream os = null;
+            fileLength = 0;
+            try {
+                // write in place, target file may be preallocated
+                os = mFileManager.openWritableFileAt(mTask.getFilePath(), 0);
+                int len;
+                byte buffer[] = new byte[BUFFER_SIZE];
+                for (Chunk chunk : mChunkList) {
+                    checkInterrupted();
+                    String chunkFile = chunk.getChunkFile();
+                    checkChunk(chunk, chunkFile);
+                    InputStream is = null;
                     try {
-                        if (is != null) is.close();
-                    } catch (Exception ignore) {
+                        is = mFileManager.openReadableFile(chunkFile);
+                        while (checkInterrupted() && checkLease()
+                                && (len = is.read(buffer, 0, BUFFER_SIZE)) > 0) {
+                            os.write(buffer, 0, len);
+                            fileLength += len;
+                            if (messageDigest != null) messageDigest.update(buffer, 0, len);
+                            process(buffer, len, fileLength - len);
+                        }
+                    } catch (InterruptedIOException ex) {
+                        onMergeFileInterrupted(this);
+                        return;
+                    } catch (IOException ex) {
+                        onMergeFileError(this, "Can't concat chunks: " + ex.getMessage(), ex);
+                        return;
+                    } finally {
+                        try {
+                            if (is != null) is.close();
+                        } catch (Exception ignore) {
+                        }
                     }
                 }
+            } catch (InterruptedException | InterruptedIOException | LeaseLostException ex) {
+                onMergeFileInterrupted(this);
+                return;
+            } catch (Exception e) {
+                onMergeFileError(this, "Can't concat chunks files: " + e.getMessage(), e);
+                return;
+            } finally {
+                try {
+                    if (os != null) os.close();
+                } catch (Exception ignore) {
+                }
             }
+            try {
+                checkLease();
+                mFileManager.truncateFile(mTask.getFilePath(), fileLength);
+            } catch (LeaseLostException ex) {
+                onMergeFileInterrupted(this);
+                return;
+            } catch (IOException ex) {
+                onMergeFileError(this, "Can't truncate merged file: " + ex.getMessage(), ex);
+                return;
+            }
+        }
+        if (mFileSyncer != null && mFileSyncer.getPolicy() != DurabilityPolicy.NONE) try {
+            // merged file must be on disk before the task is finished and chunk files are deleted
+            mFileSyncer.sync(mTask.getFilePath());
         } catch (InterruptedException ex) {
             onMergeFileInterrupted(this);
             return;
-        } catch (Exception e) {
-            onMergeFileError(this, "Can't concat chunks files: " + e.getMessage(), e);
+        } catch (IOException ex) {
+            onMergeFileError(this, "Can't sync merged file: " + ex.getMessage(), ex);
             return;
-        } finally {
-            try {
-                if (os != null) os.close();
-            } catch (Exception ignore) {
-            }
         }
+        EventTracer tracer = mMetrics.getEventTracer();
         if (messageDigest != null) {
             checksum = byteArrToHex(messageDigest.digest());
-            if (!isEmpty(getTask().getCheckSumDigest()) &&
-                    !getTask().getCheckSumDigest().equalsIgnoreCase(checksum)) {
+            boolean matched = isEmpty(getTask().getCheckSumDigest()) ||
+                    getTask().getCheckSumDigest().equalsIgnoreCase(checksum);
+            if (tracer.isEnabled()) {
+                tracer.onChecksumVerified(mTask.getId(), mTask.getCheckSumAlgorithm(), matched);
+            }
+            if (!matched) {
                 onCheckSumFailed(this, getTask().getCheckSumAlgorithm(), getTask().getCheckSumDigest(),
                         checksum);
                 return;
@@ -119,11 +229,64 @@ public class MergeFileWorker extends Thread implements MergeFileWorkerListener {
                         checksum);
             }
         }
+        try {
+            // only verified content finishes the stages
+            if (mProcessingPipeline != null) mStageResults = mProcessingPipeline.finish();
+        } catch (InterruptedIOException ex) {
+            onMergeFileInterrupted(this);
+            return;
+        } catch (IOException ex) {
+            onMergeFileError(this, ex.getMessage(), ex);
+            return;
+        }
 
         // merge successful
+        long duration = System.nanoTime() - startTime;
+        mMetrics.getMergeDuration().record(duration);
+        if (tracer.isEnabled()) tracer.onMergeFinished(mTask.getId(), fileLength, duration);
         onMergeFileFinished(this, fileLength, checksum);
     }
 
+    private long renameChunkFile(Chunk chunk, MessageDigest messageDigest)
+            throws InterruptedException, IOException {
+        String chunkFile = chunk.getChunkFile();
+        checkChunk(chunk, chunkFile);
+        if (messageDigest != null || (mProcessingPipeline != null
+                && mProcessingPipeline.getWrittenLength() < chunk.getLength())) {
+            InputStream is = mFileManager.openReadableFile(chunkFile);
+            try {
+                int len;
+                long position = 0;
+                byte buffer[] = new byte[BUFFER_SIZE];
+                while (checkInterrupted() && (len = is.read(buffer, 0, BUFFER_SIZE)) > 0) {
+                    if (messageDigest != null) messageDigest.update(buffer, 0, len);
+                    process(buffer, len, position);
+                    position += len;
+                }
+            } finally {
+                try {
+                    is.close();
+                } catch (Exception ignore) {
+                }
+            }
+        }
+        checkInterrupted();
+        checkLease();
+        mFileManager.renameFile(chunkFile, mTask.getFilePath());
+        return chunk.getLength();
+    }
+
+    /**
+     * Feed bytes at a position of the content to the pipeline, except its prefix already fed.
+     */
+    private void process(byte[] buffer, int length, long position) throws IOException {
+        if (mProcessingPipeline == null) return;
+        long fed = mProcessingPipeline.getWrittenLength() - position;
+        if (fed >= length) return;
+        int offset = (int) Math.max(0, fed);
+        mProcessingPipeline.write(buffer, offset, length - offset);
+    }
+
     private void checkChunk(Chunk chunk, String chunkFile) {
         if (chunk.getEnd() == C.UNSET || chunk.getBegin() == C.UNSET) {
             throw new IllegalStateException("Chunk download range should be set after finished");
@@ -142,16 +305,25 @@ public class MergeFileWorker extends Thread implements MergeFileWorkerListener {
 
     @Override
     public void onMergeFileError(MergeFileWorker worker, String reason, Throwable error) {
+        if (mProcessingPipeline != null) mProcessingPipeline.abort();
+        mMetrics.getMergeFailures().increment();
         if (mListener != null) mListener.onMergeFileError(worker, reason, error);
     }
 
     @Override
     public void onMergeFileInterrupted(MergeFileWorker worker) {
+        if (mProcessingPipeline != null) mProcessingPipeline.abort();
         if (mListener != null) mListener.onMergeFileInterrupted(worker);
     }
 
     @Override
     public void onCheckSumFailed(MergeFileWorker mergeFileWorker, String algorithm, String expect, String found) {
+        if (mProcessingPipeline != null) try {
+            // outputs of stages are from content which failed verification
+            mProcessingPipeline.discard();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
         if (mListener != null) mListener.onCheckSumFailed(mergeFileWorker, algorithm, expect, found);
     }
 }
@@ -5,6 +5,9 @@ import java.util.concurrent.Executor;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadFactory;
 
+import io.github.khangnt.downloader.metrics.EventTracer;
+import io.github.khangnt.downloader.metrics.Metrics;
+
 /**
  * Created by Khang NT on 6/4/17.
  * Email: khang.neon.1997@gmail.com
@@ -14,14 +17,24 @@ public class ModeratorExecutor implements Executor, Runnable {
     private BlockingQueue<Runnable> mRunnableBlockingQueue;
     private ThreadFactory mThreadFactory;
     private Thread mModeratorThread;
+    private Metrics mMetrics;
 
     public ModeratorExecutor(ThreadFactory threadFactory) {
+        this(threadFactory, null);
+    }
+
+    /**
+     * @param metrics records time each runnable waits in queue, can be null.
+     */
+    public ModeratorExecutor(ThreadFactory threadFactory, Metrics metrics) {
         mThreadFactory = threadFactory;
+        mMetrics = metrics;
         mRunnableBlockingQueue = new LinkedBlockingQueue<>();
     }
 
     @Override
     public void execute(Runnable runnable) {
+        if (mMetrics != null) runnable = new TimedRunnable(runnable, mMetrics);
         synchronized (this) {
             mRunnableBlockingQueue.offer(runnable);
             if (mModeratorThread == null) {
@@ -48,15 +61,47 @@ public class ModeratorExecutor implements Executor, Runnable {
     }
 
     public void executeAllPendingRunnable() {
+        Thread moderatorThread;
         synchronized (this) {
-            if (mModeratorThread != null) {
-                mModeratorThread.interrupt();
-                try {
-                    mModeratorThread.join();
-                } catch (InterruptedException ignore) {
-                }
-            }
+            moderatorThread = mModeratorThread;
             mModeratorThread = null;
         }
+        // join without the monitor, the moderator thread re-acquires it to return from wait()
+        if (moderatorThread != null) {
+            moderatorThread.interrupt();
+            try {
+                moderatorThread.join();
+            } catch (InterruptedException ignore) {
+            }
+        }
+    }
+
+    private static class TimedRunnable implements Runnable {
+        private final Runnable mRunnable;
+        private final Metrics mMetrics;
+        private final long mEnqueueTime;
+
+        TimedRunnable(Runnable runnable, Metrics metrics) {
+            mRunnable = runnable;
+            mMetrics = metrics;
+            mEnqueueTime = System.nanoTime();
+        }
+
+        @Override
+        public void run() {
+            long startTime = System.nanoTime();
+            mMetrics.getModeratorQueueLatency().record(startTime - mEnqueueTime);
+            EventTracer tracer = mMetrics.getEventTracer();
+            if (!tracer.isEnabled()) {
+                mRunnable.run();
+                return;
+            }
+            try {
+                mRunnable.run();
+            } finally {
+                tracer.onModeratorRunnableExecuted(startTime - mEnqueueTime,
+                        System.nanoTime() - startTime);
+            }
+        }
     }
 }
@@ -0,0 +1,392 @@
+package io.github.khangnt.downloader.worker;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import io.github.khangnt.downloader.C;
+import io.github.khangnt.downloader.CircuitBreaker;
+import io.github.khangnt.downloader.DownloadSpeedMeter;
+import io.github.khangnt.downloader.DurabilityPolicy;
+import io.github.khangnt.downloader.ExtendedFileManager;
+import io.github.khangnt.downloader.FileManager;
+import io.github.khangnt.downloader.FileManagerAdapter;
+import io.github.khangnt.downloader.FileSyncer;
+import io.github.khangnt.downloader.HttpClient;
+import io.github.khangnt.downloader.Log;
+import io.github.khangnt.downloader.MultiRangePolicy;
+import io.github.khangnt.downloader.TaskManager;
+import io.github.khangnt.downloader.exception.BlockCheckSumMismatchException;
+import io.github.khangnt.downloader.exception.HttpResponseException;
+import io.github.khangnt.downloader.metrics.Metrics;
+import io.github.khangnt.downloader.model.Chunk;
+import io.github.khangnt.downloader.model.Task;
+import io.github.khangnt.downloader.util.Utils;
+
+import static io.github.khangnt.downloader.util.Utils.checkInterrupted;
+
+/**
+ * Fetch the remaining ranges of several small unfinished chunks of a task with one multi-range
+ * request, see {@link MultiRangePolicy}. Each part of the response is appended to the chunk files
+ * it covers, a chunk is finished as soon as its range is complete. Chunks the response doesn't
+ * complete are left unfinished for chunk workers, the worker doesn't retry.
+ */
+public class MultiRangeWorker extends Thread implements MultiRangeWorkerListener, ConnectionStats {
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+    private final Task mTask;
+    private final List<Chunk> mChunks;
+    private final HttpClient mHttpClient;
+    private final TaskManager mTaskManager;
+    private final ExtendedFileManager mFileManager;
+    private final DownloadSpeedMeter mDownloadSpeedMeter;
+    private final FileSyncer mFileSyncer;
+    private final Metrics mMetrics;
+    private final CircuitBreaker mCircuitBreaker;
+    private final MultiRangeWorkerListener mListener;
+    private volatile InputStream mConnection;
+    private volatile boolean mCancelled;
+    private volatile long mBytesRead;
+    private volatile int mRequestFailures;
+    private volatile long mLastTimeToFirstByte = C.UNSET;
+
+    /**
+     * @param chunks         unfinished chunks of the task, no other worker may write them until
+     *                       this worker exits.
+     * @param fileSyncer     syncer applies {@link DurabilityPolicy}, or null to never sync.
+     * @param circuitBreaker circuit breaker shared by workers, or null to always connect.
+     */
+    public MultiRangeWorker(Task task, List<Chunk> chunks, HttpClient httpClient,
+                            TaskManager taskManager, FileManager fileManager,
+                            DownloadSpeedMeter downloadSpeedMeter, FileSyncer fileSyncer,
+                            Metrics metrics, CircuitBreaker circuitBreaker,
+                            MultiRangeWorkerListener listener) {
+        List<Chunk> sorted = new ArrayList<>(chunks);
+        Collections.sort(sorted, new Comparator<Chunk>() {
+            @Override
+            public int compare(Chunk c1, Chunk c2) {
+                return Utils.compare(c1.getBegin(), c2.getBegin());
+            }
+        });
+        mTask = task;
+        mChunks = Collections.unmodifiableList(sorted);
+        mHttpClient = httpClient;
+        mTaskManager = taskManager;
+        mFileManager = FileManagerAdapter.of(fileManager);
+        mDownloadSpeedMeter = downloadSpeedMeter;
+        mFileSyncer = fileSyncer;
+        mMetrics = metrics;
+        mCircuitBreaker = circuitBreaker;
+        mListener = listener;
+    }
+
+    public Task getTask() {
+        return mTask;
+    }
+
+    /**
+     * @return chunks requested by this worker, sorted by position.
+     */
+    public List<Chunk> getChunks() {
+        return mChunks;
+    }
+
+    public boolean hasChunk(int chunkId) {
+        for (Chunk chunk : mChunks) {
+            if (chunk.getId() == chunkId) return true;
+        }
+        return false;
+    }
+
+    @Override
+    public long getBytesRead() {
+        return mBytesRead;
+    }
+
+    @Override
+    public int getRequestFailures() {
+        return mRequestFailures;
+    }
+
+    @Override
+    public int getFirstByteCount() {
+        return mLastTimeToFirstByte == C.UNSET ? 0 : 1;
+    }
+
+    @Override
+    public long getLastTimeToFirstByte() {
+        return mLastTimeToFirstByte;
+    }
+
+    public void cancel() {
+        mCancelled = true;
+        interrupt();
+    }
+
+    /**
+     * Cancel the worker and abort its connection, see {@link ChunkWorker#abort()}.
+     */
+    public void abort() {
+        cancel();
+        ChunkWorker.abortConnection(mConnection);
+    }
+
+    @Override
+    public void run() {
+        try {
+            int unfinishedChunks = download();
+            if (unfinishedChunks == C.UNSET) onMultiRangeUnsupported(this);
+            else onMultiRangeFinished(this, unfinishedChunks);
+        } catch (InterruptedIOException | InterruptedException ex) {
+            onMultiRangeInterrupted(this);
+        } catch (Exception ex) {
+            if (mCancelled) {
+                onMultiRangeInterrupted(this);
+                return;
+            }
+            mRequestFailures++;
+            onMultiRangeError(this, "Multi-range request failed: " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * @return number of chunks left unfinished, or {@link C#UNSET} if the origin doesn't support
+     * multi-range requests.
+     */
+    private int download() throws IOException, InterruptedException {
+        List<Target> targets = new ArrayList<>();
+        StringBuilder range = new StringBuilder("bytes=");
+        for (Chunk chunk : mChunks) {
+            Target target = new Target(chunk);
+            if (target.mPosition > chunk.getEnd()) {
+                finish(target);
+                continue;
+            }
+            if (!targets.isEmpty()) range.append(',');
+            range.append(String.format(Locale.US, "%d-%d", target.mPosition, chunk.getEnd()));
+            targets.add(target);
+        }
+        if (targets.isEmpty()) return 0;
+
+        checkInterrupted();
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Range", range.toString());
+        // wait while the host is failing, instead of adding load to it
+        if (mCircuitBreaker != null) mCircuitBreaker.acquire(Utils.getHost(mTask.getUrl()));
+        mMetrics.getMultiRangeRequests().increment();
+        long requestTime = System.nanoTime();
+        InputStream is;
+        try {
+            is = ChunkWorker.openConnection(mHttpClient, mCircuitBreaker, mTask, headers);
+        } catch (HttpResponseException ex) {
+            // some origins refuse more than one range instead of ignoring them
+            if (ex.getResponseCode() == HTTP_RANGE_NOT_SATISFIABLE) return C.UNSET;
+            throw ex;
+        }
+        mMetrics.getConnectTime().record(System.nanoTime() - requestTime);
+        mConnection = is;
+        boolean multipart;
+        try {
+            if (mCancelled) ChunkWorker.abortConnection(is);
+            ByteRangesReader reader = null;
+            if (is instanceof HttpClient.ResponseHeaders) {
+                HttpClient.ResponseHeaders responseHeaders = (HttpClient.ResponseHeaders) is;
+                reader = ByteRangesReader.open(is, responseHeaders.getHeaderField("Content-Type"),
+                        responseHeaders.getHeaderField("Content-Range"));
+            }
+            if (reader == null) {
+                // e.g. the whole content, don't read it
+                ChunkWorker.abortConnection(is);
+                return C.UNSET;
+            }
+            multipart = reader.isMultipart();
+            read(reader, targets, requestTime);
+        } finally {
+            mConnection = null;
+            for (Target target : targets) {
+                if (!target.mFinished) close(target);
+            }
+            try {
+                is.close();
+            } catch (Exception ignore) {
+            }
+        }
+        int unfinishedChunks = 0;
+        for (Target target : targets) {
+            if (!target.mFinished) unfinishedChunks++;
+        }
+        Log.d("Multi-range request of task-%d finished %d/%d chunks", mTask.getId(),
+                targets.size() - unfinishedChunks, targets.size());
+        return unfinishedChunks > 0 && !multipart ? C.UNSET : unfinishedChunks;
+    }
+
+    private void read(ByteRangesReader reader, List<Target> targets, long requestTime)
+            throws IOException, InterruptedException {
+        byte buffer[] = new byte[ChunkWorker.BUFFER_SIZE];
+        boolean firstByte = true;
+        while (reader.nextPart()) {
+            long position = reader.getPartBegin();
+            int read;
+            while (checkInterrupted() && (read = reader.read(buffer, 0, buffer.length)) > 0) {
+                if (firstByte) {
+                    mLastTimeToFirstByte = System.nanoTime() - requestTime;
+                    mMetrics.getTimeToFirstByte().record(mLastTimeToFirstByte);
+                    firstByte = false;
+                }
+                mBytesRead += read;
+                mMetrics.getReadSize().record(read);
+                for (Target target : targets) {
+                    write(target, buffer, position, read);
+                }
+                position += read;
+            }
+        }
+    }
+
+    /**
+     * Append bytes of the buffer starting at the next position of the target, bytes before it
+     * were written already, a part starting after it leaves the target unfinished.
+     *
+     * @param position position in file of the first byte of buffer.
+     */
+    private void write(Target target, byte[] buffer, long position, int length)
+            throws IOException, InterruptedException {
+        if (target.mStopped || target.mPosition < position || target.mPosition >= position + length)
+            return;
+        int offset = (int) (target.mPosition - position);
+        int count = (int) (Math.min(position + length - 1, target.mChunk.getEnd())
+                - target.mPosition + 1);
+        mDownloadSpeedMeter.onBytesDownloaded(count);
+        // verify before writing, so complete blocks in the chunk file are verified
+        if (target.mBlockVerifier != null) {
+            try {
+                target.mBlockVerifier.update(buffer, offset, count);
+            } catch (BlockCheckSumMismatchException ex) {
+                Log.d(ex, "[Chunk-%d] Corrupted block in multi-range response", target.mChunk.getId());
+                close(target);
+                discardCorruptedBlock(target, ex.getBlockBegin());
+                target.mStopped = true;
+                return;
+            }
+        }
+        if (target.mOutput == null)
+            target.mOutput = mFileManager.openWritableFile(target.mChunk.getChunkFile(), true);
+        target.mOutput.write(buffer, offset, count);
+        target.mPosition += count;
+        if (target.mPosition > target.mChunk.getEnd()) finish(target);
+    }
+
+    private void finish(Target target) throws IOException, InterruptedException {
+        close(target);
+        String chunkFile = target.mChunk.getChunkFile();
+        // file may be longer than the chunk, e.g. written by a previous worker before a split
+        if (mFileManager.getFileSize(chunkFile) > target.mChunk.getLength())
+            mFileManager.truncateFile(chunkFile, target.mChunk.getLength());
+        // chunk data must be on disk before it is recorded as finished
+        if (getDurabilityPolicy() != DurabilityPolicy.NONE) mFileSyncer.sync(chunkFile);
+        mTaskManager.updateChunk(target.mChunk.newBuilder().setFinished(true).build());
+        target.mFinished = true;
+        target.mStopped = true;
+    }
+
+    /**
+     * Close chunk file of the target, and record its synced length if durable length is tracked.
+     */
+    private void close(Target target) {
+        if (target.mOutput == null) return;
+        try {
+            target.mOutput.close();
+        } catch (Exception ignore) {
+        }
+        target.mOutput = null;
+        Chunk chunk = target.mChunk;
+        if (!getDurabilityPolicy().isTrackingDurableLength() || target.mPosition > chunk.getEnd())
+            return;
+        try {
+            long durableLength = Math.min(mFileSyncer.sync(chunk.getChunkFile()), chunk.getLength());
+            if (durableLength > chunk.getDurableLength()) {
+                target.mChunk = mTaskManager.updateChunk(chunk.newBuilder()
+                        .setDurableLength(durableLength).build());
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (Exception ex) {
+            Log.d(ex, "[Chunk-%d] Sync chunk file failed", chunk.getId());
+        }
+    }
+
+    /**
+     * Truncate chunk file at the corrupted block, a chunk worker re-downloads from there.
+     */
+    private void discardCorruptedBlock(Target target, long blockBegin) throws IOException {
+        Chunk chunk = target.mChunk;
+        // the buffer completing the block wasn't written, the file may end before the block
+        long length = Math.min(Math.max(0, blockBegin - chunk.getBegin()),
+                mFileManager.getFileSize(chunk.getChunkFile()));
+        mFileManager.truncateFile(chunk.getChunkFile(), length);
+        if (chunk.getDurableLength() > length) {
+            target.mChunk = mTaskManager.updateChunk(chunk.newBuilder()
+                    .setDurableLength(length).build());
+        }
+    }
+
+    private DurabilityPolicy getDurabilityPolicy() {
+        return mFileSyncer == null ? DurabilityPolicy.NONE : mFileSyncer.getPolicy();
+    }
+
+    @Override
+    public void onMultiRangeFinished(MultiRangeWorker worker, int unfinishedChunks) {
+        if (mListener != null) mListener.onMultiRangeFinished(worker, unfinishedChunks);
+    }
+
+    @Override
+    public void onMultiRangeUnsupported(MultiRangeWorker worker) {
+        mMetrics.getMultiRangeFallbacks().increment();
+        if (mListener != null) mListener.onMultiRangeUnsupported(worker);
+    }
+
+    @Override
+    public void onMultiRangeError(MultiRangeWorker worker, String reason, Throwable throwable) {
+        if (mListener != null) mListener.onMultiRangeError(worker, reason, throwable);
+    }
+
+    @Override
+    public void onMultiRangeInterrupted(MultiRangeWorker worker) {
+        if (mListener != null) mListener.onMultiRangeInterrupted(worker);
+    }
+
+    /**
+     * Chunk being fetched and its next position in file.
+     */
+    private class Target {
+        private Chunk mChunk;
+        private long mPosition;
+        private BlockVerifier mBlockVerifier;
+        private OutputStream mOutput;
+        // finished, or a corrupted block was discarded
+        private boolean mStopped;
+        private boolean mFinished;
+
+        Target(Chunk chunk) throws IOException {
+            long downloaded = mFileManager.getFileSize(chunk.getChunkFile());
+            if (getDurabilityPolicy().isTrackingDurableLength()
+                    && chunk.getDurableLength() != C.UNSET && downloaded > chunk.getDurableLength()) {
+                // bytes after durable length may not reach disk before a crash
+                mFileManager.truncateFile(chunk.getChunkFile(), chunk.getDurableLength());
+                downloaded = chunk.getDurableLength();
+            }
+            mChunk = chunk;
+            mPosition = chunk.getBegin() + downloaded;
+            if (mPosition <= chunk.getEnd())
+                mBlockVerifier = ChunkWorker.createBlockVerifier(mFileManager, mTask, chunk, downloaded);
+        }
+    }
+}
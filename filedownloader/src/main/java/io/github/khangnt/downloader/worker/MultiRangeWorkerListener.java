@@ -0,0 +1,16 @@
+package io.github.khangnt.downloader.worker;
+
+public interface MultiRangeWorkerListener {
+    /**
+     * @param unfinishedChunks chunks the response didn't complete, e.g. ranges left out by the
+     *                         origin or corrupted blocks, they are left to chunk workers.
+     */
+    void onMultiRangeFinished(MultiRangeWorker worker, int unfinishedChunks);
+    /**
+     * Origin answered without multipart/byteranges and left chunks unfinished, e.g. with the
+     * whole content, which isn't read, or with the first range only.
+     */
+    void onMultiRangeUnsupported(MultiRangeWorker worker);
+    void onMultiRangeError(MultiRangeWorker worker, String reason, Throwable throwable);
+    void onMultiRangeInterrupted(MultiRangeWorker worker);
+}
@@ -0,0 +1,424 @@
+package io.github.khangnt.downloader.soak;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.sun.management.UnixOperatingSystemMXBean;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import io.github.khangnt.downloader.BatchPolicy;
+import io.github.khangnt.downloader.DefaultFileManager;
+import io.github.khangnt.downloader.DefaultHttpClient;
+import io.github.khangnt.downloader.EventListener;
+import io.github.khangnt.downloader.FileDownloader;
+import io.github.khangnt.downloader.FileManager;
+import io.github.khangnt.downloader.MemoryFileManager;
+import io.github.khangnt.downloader.NonPersistentTaskManager;
+import io.github.khangnt.downloader.model.Task;
+import io.github.khangnt.downloader.model.TaskReport;
+
+/**
+ * Run tens of thousands of tasks against a local origin and sample the process while they run:
+ * allocation rate, GC pauses, heap retained after a full GC, threads and open file descriptors.
+ * Exits with status 1 if allocation rate, GC pauses, retained heap, threads or file descriptors
+ * keep growing after warm-up.
+ * <p>
+ * Arguments are key=value pairs, e.g. {@code tasks=50000 size=16384 window=200 workers=8
+ * sample=5 batch=true memory=67108864 ring=1024}. Run with {@code gradle soak -PsoakArgs="tasks=50000"}.
+ */
+public class SoakBenchmark {
+    private static final String SYSTEM_GC_CAUSE = "System.gc()";
+    // growth of the later half of samples over the earlier half that fails the run
+    private static final double MAX_GROWTH_RATIO = 1.2;
+    private static final long HEAP_SLACK = 8 * 1024 * 1024; // 8 MB
+    private static final long THREAD_SLACK = 8;
+    private static final long FD_SLACK = 16;
+    private static final long ALLOCATION_RATE_SLACK = 16 * 1024 * 1024; // 16 MB/s
+    private static final long GC_PAUSE_SLACK = 10; // ms of pause per second
+    private static final long GC_MAX_PAUSE_SLACK = 20; // ms
+
+    private static final int RETAINED_HEAP = 0;
+    private static final int THREADS = 1;
+    private static final int FDS = 2;
+    private static final int ALLOCATION_RATE = 3;
+    private static final int GC_PAUSE = 4;
+    private static final int GC_MAX_PAUSE = 5;
+
+    private final int mTasks;
+    private final int mSize;
+    private final int mWindow;
+    private final int mWorkers;
+    private final long mSamplePeriod;
+    private final boolean mBatch;
+    private final long mMemoryBudget;
+    private final int mEventRingCapacity;
+
+    // GCs other than the ones forced by samples
+    private final AtomicLong mGcCount = new AtomicLong();
+    private final AtomicLong mGcPauseMillis = new AtomicLong();
+    private final AtomicLong mGcMaxPauseMillis = new AtomicLong();
+    private final AtomicLong mGcFreedBytes = new AtomicLong();
+
+    private final AtomicLong mFinished = new AtomicLong();
+    private final AtomicLong mFailed = new AtomicLong();
+    private final List<Sample> mSamples = new ArrayList<>();
+    // downloader keeps listeners by weak reference
+    private EventListener mListener;
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int i = arg.indexOf('=');
+            if (i <= 0) throw new IllegalArgumentException("Expect key=value: " + arg);
+            options.put(arg.substring(0, i), arg.substring(i + 1));
+        }
+        SoakBenchmark benchmark = new SoakBenchmark(
+                Integer.parseInt(get(options, "tasks", "20000")),
+                Integer.parseInt(get(options, "size", "16384")),
+                Integer.parseInt(get(options, "window", "200")),
+                Integer.parseInt(get(options, "workers", "8")),
+                Long.parseLong(get(options, "sample", "5")) * 1000,
+                Boolean.parseBoolean(get(options, "batch", "false")),
+                Long.parseLong(get(options, "memory", "0")),
+                Integer.parseInt(get(options, "ring", "0")));
+        System.exit(benchmark.run() ? 0 : 1);
+    }
+
+    private static String get(Map<String, String> options, String key, String defaultValue) {
+        String value = options.get(key);
+        return value != null ? value : defaultValue;
+    }
+
+    /**
+     * @param window       max tasks submitted and not done yet.
+     * @param memoryBudget files are kept in a {@link MemoryFileManager} if > 0, on disk otherwise.
+     * @param eventRingCapacity events are dispatched through a ring of this capacity if > 0.
+     */
+    public SoakBenchmark(int tasks, int size, int window, int workers, long samplePeriod,
+                         boolean batch, long memoryBudget, int eventRingCapacity) {
+        mTasks = tasks;
+        mSize = size;
+        mWindow = window;
+        mWorkers = workers;
+        mSamplePeriod = samplePeriod;
+        mBatch = batch;
+        mMemoryBudget = memoryBudget;
+        mEventRingCapacity = eventRingCapacity;
+    }
+
+    /**
+     * @return false if a sampled metric grows without bound.
+     */
+    public boolean run() throws Exception {
+        listenToGc();
+        final byte[] payload = new byte[mSize];
+        new Random(1).nextBytes(payload);
+        HttpServer server = startOrigin(payload);
+        File dir = Files.createTempDirectory("soak").toFile();
+        FileManager fileManager = mMemoryBudget > 0 ? new MemoryFileManager(mMemoryBudget)
+                : new DefaultFileManager();
+        final FileDownloader downloader = new FileDownloader(fileManager, new DefaultHttpClient(),
+                new NonPersistentTaskManager());
+        downloader.setMaxWorkers(mWorkers);
+        if (mBatch) downloader.setBatchPolicy(BatchPolicy.createDefault());
+        downloader.setEventRingCapacity(mEventRingCapacity);
+
+        final Semaphore window = new Semaphore(mWindow);
+        final FileManager files = fileManager;
+        mListener = new EventListener() {
+            @Override
+            public void onTaskAdded(TaskReport taskReport) {
+            }
+
+            @Override
+            public void onTaskUpdated(TaskReport taskReport) {
+            }
+
+            @Override
+            public void onTaskCancelled(TaskReport taskReport) {
+                onDone(taskReport, mFailed);
+            }
+
+            @Override
+            public void onTaskFinished(TaskReport taskReport) {
+                onDone(taskReport, mFinished);
+            }
+
+            @Override
+            public void onTaskFailed(TaskReport taskReport) {
+                onDone(taskReport, mFailed);
+            }
+
+            private void onDone(TaskReport taskReport, AtomicLong counter) {
+                files.deleteFile(taskReport.getTask().getFilePath());
+                counter.incrementAndGet();
+                window.release();
+            }
+
+            @Override
+            public void onResumed() {
+            }
+
+            @Override
+            public void onPaused() {
+            }
+        };
+        downloader.registerListener(mListener, new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                runnable.run();
+            }
+        });
+        downloader.start();
+
+        String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/payload";
+        long startTime = System.currentTimeMillis();
+        long baseHeap = retainedHeap();
+        Sample last = new Sample(0, 0, 0, baseHeap, 0, 0, 0);
+        long nextSample = startTime + mSamplePeriod;
+        printHeader();
+        for (int i = 0; i < mTasks || mFinished.get() + mFailed.get() < mTasks; ) {
+            long now = System.currentTimeMillis();
+            if (now >= nextSample) {
+                last = sample(downloader, last, now - startTime, baseHeap);
+                nextSample = now + mSamplePeriod;
+            }
+            if (i < mTasks && window.tryAcquire()) {
+                downloader.addTask(new Task.Builder(new File(dir, "t" + i).getPath(), url)
+                        .setLength(mBatch ? mSize : -1).build());
+                i++;
+                // a long-running app drops tasks it has handled
+                if (i % 1000 == 0) downloader.getTaskManager().cleanUpFinishedTasks();
+            } else {
+                Thread.sleep(i < mTasks ? 1 : 100);
+            }
+        }
+        downloader.getTaskManager().cleanUpFinishedTasks();
+        sample(downloader, last, System.currentTimeMillis() - startTime, baseHeap);
+        downloader.release();
+        server.stop(0);
+        System.out.printf(Locale.US, "finished=%d failed=%d in %d s%n", mFinished.get(),
+                mFailed.get(), (System.currentTimeMillis() - startTime) / 1000);
+        return verdict();
+    }
+
+    private HttpServer startOrigin(final byte[] payload) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/payload", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                long begin = 0;
+                long end = payload.length - 1;
+                String range = exchange.getRequestHeaders().getFirst("Range");
+                if (range != null && range.startsWith("bytes=")) {
+                    String[] bounds = range.substring(6).split("-");
+                    begin = Long.parseLong(bounds[0]);
+                    if (bounds.length > 1 && !bounds[1].isEmpty()) end = Long.parseLong(bounds[1]);
+                }
+                exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+                exchange.getResponseHeaders().add("Content-Range",
+                        "bytes " + begin + "-" + end + "/" + payload.length);
+                if (exchange.getRequestMethod().equals("HEAD")) {
+                    exchange.getResponseHeaders().add("Content-Length", "" + payload.length);
+                    exchange.sendResponseHeaders(200, -1);
+                } else {
+                    exchange.sendResponseHeaders(range != null ? 206 : 200, end - begin + 1);
+                    OutputStream os = exchange.getResponseBody();
+                    os.write(payload, (int) begin, (int) (end - begin + 1));
+                }
+                exchange.close();
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    private void listenToGc() {
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (!(gc instanceof NotificationEmitter)) continue;
+            ((NotificationEmitter) gc).addNotificationListener(new NotificationListener() {
+                @Override
+                public void handleNotification(Notification notification, Object handback) {
+                    if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION
+                            .equals(notification.getType())) return;
+                    GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo
+                            .from((CompositeData) notification.getUserData());
+                    if (SYSTEM_GC_CAUSE.equals(info.getGcCause())) return;
+                    long pause = info.getGcInfo().getDuration();
+                    mGcCount.incrementAndGet();
+                    mGcPauseMillis.addAndGet(pause);
+                    long max;
+                    while ((max = mGcMaxPauseMillis.get()) < pause
+                            && !mGcMaxPauseMillis.compareAndSet(max, pause)) ;
+                    long freed = used(info.getGcInfo().getMemoryUsageBeforeGc())
+                            - used(info.getGcInfo().getMemoryUsageAfterGc());
+                    if (freed > 0) mGcFreedBytes.addAndGet(freed);
+                }
+            }, null, null);
+        }
+    }
+
+    private static long used(Map<String, MemoryUsage> usages) {
+        long used = 0;
+        for (MemoryUsage usage : usages.values()) {
+            used += usage.getUsed();
+        }
+        return used;
+    }
+
+    private static long heapUsed() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static long retainedHeap() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return heapUsed();
+    }
+
+    private static long openFileDescriptors() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        return os instanceof UnixOperatingSystemMXBean
+                ? ((UnixOperatingSystemMXBean) os).getOpenFileDescriptorCount() : -1;
+    }
+
+    private static void printHeader() {
+        System.out.printf(Locale.US, "%8s %8s %8s %10s %6s %8s %8s %10s %10s %8s %6s%n", "time(s)",
+                "done", "tasks", "alloc/s", "gcs", "pause", "maxPause", "retained", "perTask",
+                "threads", "fds");
+    }
+
+    private Sample sample(FileDownloader downloader, Sample last, long elapsed, long baseHeap)
+            throws InterruptedException {
+        long done = mFinished.get() + mFailed.get();
+        // bytes allocated since the last sample = heap growth + bytes freed by GCs meanwhile
+        long allocated = heapUsed() - last.mRetainedHeap + mGcFreedBytes.getAndSet(0);
+        long gcCount = mGcCount.getAndSet(0);
+        long pause = mGcPauseMillis.getAndSet(0);
+        long maxPause = mGcMaxPauseMillis.getAndSet(0);
+        long retained = retainedHeap();
+        int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+        long fds = openFileDescriptors();
+        int tasks = downloader.getTaskManager().getAllTasks().size();
+        double seconds = Math.max(1, elapsed - last.mElapsed) / 1000.0;
+        long perTask = done > 0 ? (retained - baseHeap) / done : 0;
+        System.out.printf(Locale.US, "%8d %8d %8d %8.1fMB %6d %6dms %6dms %8.1fMB %9dB %8d %6d%n",
+                elapsed / 1000, done, tasks, allocated / seconds / 1024 / 1024, gcCount, pause,
+                maxPause, retained / 1024.0 / 1024, perTask, threads, fds);
+        Sample sample = new Sample(elapsed, threads, fds, retained,
+                (long) (allocated / seconds), (long) (pause / seconds), maxPause);
+        mSamples.add(sample);
+        return sample;
+    }
+
+    private boolean verdict() {
+        // first quarter is warm-up: class loading, JIT, caches and pools filling up
+        List<Sample> samples = mSamples.subList(mSamples.size() / 4, mSamples.size());
+        if (samples.size() < 4) {
+            System.out.println("Not enough samples for a verdict, run more tasks");
+            return true;
+        }
+        int half = samples.size() / 2;
+        List<Sample> earlier = samples.subList(0, half);
+        List<Sample> later = samples.subList(half, samples.size());
+        boolean ok = true;
+        ok &= check("allocation rate", mean(earlier, ALLOCATION_RATE),
+                mean(later, ALLOCATION_RATE), ALLOCATION_RATE_SLACK);
+        ok &= check("gc pause per second", mean(earlier, GC_PAUSE), mean(later, GC_PAUSE),
+                GC_PAUSE_SLACK);
+        ok &= check("gc max pause", mean(earlier, GC_MAX_PAUSE), mean(later, GC_MAX_PAUSE),
+                GC_MAX_PAUSE_SLACK);
+        ok &= check("retained heap", mean(earlier, RETAINED_HEAP), mean(later, RETAINED_HEAP),
+                HEAP_SLACK);
+        ok &= check("threads", mean(earlier, THREADS), mean(later, THREADS), THREAD_SLACK);
+        if (mean(earlier, FDS) >= 0) {
+            ok &= check("file descriptors", mean(earlier, FDS), mean(later, FDS), FD_SLACK);
+        }
+        System.out.println(ok ? "PASS" : "FAIL");
+        return ok;
+    }
+
+    private static boolean check(String name, double earlier, double later, long slack) {
+        boolean ok = later <= earlier * MAX_GROWTH_RATIO + slack;
+        System.out.printf(Locale.US, "%s: %.0f -> %.0f %s%n", name, earlier, later,
+                ok ? "bounded" : "GROWING");
+        return ok;
+    }
+
+    private static double mean(List<Sample> samples, int metric) {
+        double sum = 0;
+        for (Sample sample : samples) {
+            sum += sample.get(metric);
+        }
+        return sum / samples.size();
+    }
+
+    private static class Sample {
+        final long mElapsed;
+        final long mThreads;
+        final long mFds;
+        final long mRetainedHeap;
+        // bytes allocated and ms of GC pause per second since the previous sample
+        final long mAllocationRate;
+        final long mGcPause;
+        final long mGcMaxPause;
+
+        Sample(long elapsed, long threads, long fds, long retainedHeap, long allocationRate,
+               long gcPause, long gcMaxPause) {
+            mElapsed = elapsed;
+            mThreads = threads;
+            mFds = fds;
+            mRetainedHeap = retainedHeap;
+            mAllocationRate = allocationRate;
+            mGcPause = gcPause;
+            mGcMaxPause = gcMaxPause;
+        }
+
+        long get(int metric) {
+            switch (metric) {
+                case RETAINED_HEAP:
+                    return mRetainedHeap;
+                case THREADS:
+                    return mThreads;
+                case FDS:
+                    return mFds;
+                case ALLOCATION_RATE:
+                    return mAllocationRate;
+                case GC_PAUSE:
+                    return mGcPause;
+                case GC_MAX_PAUSE:
+                    return mGcMaxPause;
+                default:
+                    throw new IllegalArgumentException("Unknown metric: " + metric);
+            }
+        }
+    }
+}